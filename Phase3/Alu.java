@@ -0,0 +1,94 @@
+// RV32 integer arithmetic on raw 32-bit register values.
+// Shared by the pipeline's EX stage and the functional simulator, so both engines wrap on
+// overflow the same way and agree on the corner cases: division by zero returns all ones
+// (DIV/DIVU) or the dividend (REM/REMU), and MIN_VALUE / -1 overflows to MIN_VALUE with remainder 0.
+final class Alu {
+
+    private static final long UNSIGNED = 0xFFFFFFFFL;
+
+    private Alu() {
+    }
+
+    // Register-register / register-immediate result for 'op' (shift amounts use the low 5 bits)
+    static int compute(AluOp op, int a, int b) {
+        switch (op) {
+            case ADD:
+            case ADDI:
+                return a + b;
+            case SUB:
+                return a - b;
+            case SLL:
+            case SLLI:
+                return a << (b & 0x1F);
+            case SLT:
+            case SLTI:
+                return a < b ? 1 : 0;
+            case SLTU:
+            case SLTIU:
+                return Integer.compareUnsigned(a, b) < 0 ? 1 : 0;
+            case XOR:
+            case XORI:
+                return a ^ b;
+            case SRL:
+            case SRLI:
+                return a >>> (b & 0x1F);
+            case SRA:
+            case SRAI:
+                return a >> (b & 0x1F);
+            case OR:
+            case ORI:
+                return a | b;
+            case AND:
+            case ANDI:
+                return a & b;
+            case MUL:
+                return a * b;
+            case MULH:
+                return mulh(a, b);
+            case MULHSU:
+                return mulhsu(a, b);
+            case MULHU:
+                return mulhu(a, b);
+            case DIV:
+                return div(a, b);
+            case DIVU:
+                return divu(a, b);
+            case REM:
+                return rem(a, b);
+            case REMU:
+                return remu(a, b);
+            default:
+                throw new IllegalArgumentException("Not an arithmetic ALU op: " + op);
+        }
+    }
+
+    // --- M Extension ---
+
+    static int mulh(int a, int b) {
+        return (int) (((long) a * b) >> 32);
+    }
+
+    static int mulhsu(int a, int b) {
+        return (int) (((long) a * (b & UNSIGNED)) >> 32);
+    }
+
+    static int mulhu(int a, int b) {
+        return (int) (((a & UNSIGNED) * (b & UNSIGNED)) >>> 32);
+    }
+
+    static int div(int a, int b) {
+        return b == 0 ? -1 : a / b; // Java already wraps MIN_VALUE / -1 to MIN_VALUE
+    }
+
+    static int divu(int a, int b) {
+        return b == 0 ? -1 : Integer.divideUnsigned(a, b);
+    }
+
+    static int rem(int a, int b) {
+        return b == 0 ? a : a % b;
+    }
+
+    static int remu(int a, int b) {
+        return b == 0 ? a : Integer.remainderUnsigned(a, b);
+    }
+}
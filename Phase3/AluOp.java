@@ -0,0 +1,15 @@
+// ALU operation selected by decode and dispatched on in the EX stage.
+// Names match the mnemonics printed in the ID/EX register trace.
+enum AluOp {
+    NOP,
+    // R-Type
+    ADD, SUB, SLL, SLT, SLTU, XOR, SRL, SRA, OR, AND,
+    MUL, MULH, MULHSU, MULHU, DIV, DIVU, REM, REMU,
+    // I-Type arithmetic
+    ADDI, SLTI, SLTIU, XORI, ORI, ANDI, SLLI, SRLI, SRAI,
+    // B-Type
+    BEQ, BNE, BLT, BGE, BLTU, BGEU,
+    // Jumps and U-Type
+    JAL, JALR, LUI, AUIPC,
+    INVALID
+}
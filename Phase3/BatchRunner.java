@@ -0,0 +1,300 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs many programs across a matrix of configurations, one PipelinedCPU per job, on a pool of
+// worker threads, and writes one results table.
+//
+//   java -cp out BatchRunner <file.mc | @list.txt>... [--workers=N] [--out=results.csv|results.json]
+//                [--log-dir=<dir>] [--sweep-<option>=v1,v2,...]... [--<option>=value]...
+//
+// Every --sweep-<option> multiplies the job list by its values; "pipelining" and "forwarding"
+// sweep the positional knobs, anything else is passed to the CPU as --<option>=value. Plain
+// --options apply to every job. Jobs share nothing: each gets its own CPU, memory and console
+// (discarded, or written to <log-dir>/<job>.log). Each job stops after --max-cycles (default 10^9);
+// one that gets there is recorded as "truncated" rather than "ok".
+public class BatchRunner {
+
+    private static final String SWEEP_PREFIX = "sweep-";
+    private static final String DEFAULT_MAX_CYCLES = "1000000000"; // Per job, unless --max-cycles is given
+
+    // --- One program under one configuration ---
+    static final class Job {
+        final int index;
+        final String program;
+        final Map<String, String> sweep; // The swept values for this job, in sweep order
+
+        Job(int index, String program, Map<String, String> sweep) {
+            this.index = index;
+            this.program = program;
+            this.sweep = sweep;
+        }
+    }
+
+    static final class Result {
+        final Job job;
+        String status = "ok";
+        long cycles;
+        long instructions;
+        double cpi = Double.NaN;
+        long predictions;
+        long mispredictions;
+        double millis;
+
+        Result(Job job) {
+            this.job = job;
+        }
+    }
+
+    private final Map<String, String> commonOptions;
+    private final Path logDir; // null: job output is discarded
+
+    BatchRunner(Map<String, String> commonOptions, Path logDir) {
+        this.commonOptions = commonOptions;
+        this.logDir = logDir;
+    }
+
+    // Every program crossed with every combination of the sweep values
+    static List<Job> expand(List<String> programs, Map<String, List<String>> sweeps) {
+        List<Job> jobs = new ArrayList<>();
+        for (String program : programs) {
+            List<Map<String, String>> combinations = new ArrayList<>();
+            combinations.add(new LinkedHashMap<>());
+            for (Map.Entry<String, List<String>> sweep : sweeps.entrySet()) {
+                List<Map<String, String>> next = new ArrayList<>();
+                for (Map<String, String> combination : combinations) {
+                    for (String value : sweep.getValue()) {
+                        Map<String, String> extended = new LinkedHashMap<>(combination);
+                        extended.put(sweep.getKey(), value);
+                        next.add(extended);
+                    }
+                }
+                combinations = next;
+            }
+            for (Map<String, String> combination : combinations) {
+                jobs.add(new Job(jobs.size(), program, combination));
+            }
+        }
+        return jobs;
+    }
+
+    // --- Running ---
+
+    List<Result> runAll(List<Job> jobs, int workers) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Job job : jobs) {
+                futures.add(pool.submit(() -> run(job)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause()); // run() reports its own failures
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    Result run(Job job) {
+        Result result = new Result(job);
+        if (!Files.isReadable(Paths.get(job.program))) {
+            result.status = "error: cannot read " + job.program;
+            return result;
+        }
+        boolean pipelining = true;
+        boolean forwarding = true;
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("trace", "none"); // No per-cycle output unless the batch asks for it
+        options.putAll(commonOptions);
+        for (Map.Entry<String, String> entry : job.sweep.entrySet()) {
+            switch (entry.getKey()) {
+                case "pipelining":
+                    pipelining = Boolean.parseBoolean(entry.getValue());
+                    break;
+                case "forwarding":
+                    forwarding = Boolean.parseBoolean(entry.getValue());
+                    break;
+                default:
+                    options.put(entry.getKey(), entry.getValue());
+                    break;
+            }
+        }
+        options.putIfAbsent("max-cycles", DEFAULT_MAX_CYCLES); // A program that never ends can't hold a worker
+
+        try (PrintStream console = openLog(job)) {
+            PipelinedCPU cpu = PipelinedCPU.configure(pipelining, forwarding, options);
+            cpu.setConsole(console);
+            long start = System.nanoTime();
+            cpu.load(job.program);
+            cpu.run();
+            result.millis = (System.nanoTime() - start) / 1e6;
+            result.cycles = cpu.getClockCycle();
+            result.instructions = cpu.getInstructionsRetired();
+            result.cpi = cpu.getCpi();
+            result.predictions = cpu.getBranchPredictions();
+            result.mispredictions = cpu.getBranchMispredictions();
+            if (cpu.isTruncated()) {
+                result.status = "truncated"; // Hit the cycle limit: the numbers cover only part of the run
+            }
+        } catch (IOException | RuntimeException e) {
+            result.status = "error: " + e;
+        }
+        return result;
+    }
+
+    private PrintStream openLog(Job job) throws IOException {
+        if (logDir == null) {
+            return new PrintStream(OutputStream.nullOutputStream());
+        }
+        String name = String.format("%04d-%s.log", job.index, Paths.get(job.program).getFileName());
+        return new PrintStream(new FileOutputStream(logDir.resolve(name).toFile()), false, StandardCharsets.UTF_8);
+    }
+
+    // --- Results Table ---
+
+    static void writeCsv(PrintWriter out, List<String> sweepNames, List<Result> results) {
+        StringBuilder header = new StringBuilder("job,program");
+        for (String name : sweepNames) {
+            header.append(',').append(csv(name));
+        }
+        header.append(",status,cycles,instructions,cpi,predictions,mispredictions,millis");
+        out.println(header);
+        for (Result r : results) {
+            StringBuilder row = new StringBuilder();
+            row.append(r.job.index).append(',').append(csv(r.job.program));
+            for (String name : sweepNames) {
+                row.append(',').append(csv(r.job.sweep.get(name)));
+            }
+            row.append(',').append(csv(r.status)).append(',').append(r.cycles).append(',').append(r.instructions)
+                    .append(',').append(Double.isNaN(r.cpi) ? "" : String.format(Locale.ROOT, "%.4f", r.cpi))
+                    .append(',').append(r.predictions).append(',').append(r.mispredictions)
+                    .append(',').append(String.format(Locale.ROOT, "%.3f", r.millis));
+            out.println(row);
+        }
+    }
+
+    static void writeJson(PrintWriter out, List<String> sweepNames, List<Result> results) {
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            StringBuilder row = new StringBuilder("  {\"job\": ").append(r.job.index)
+                    .append(", \"program\": ").append(json(r.job.program));
+            for (String name : sweepNames) {
+                row.append(", ").append(json(name)).append(": ").append(json(r.job.sweep.get(name)));
+            }
+            row.append(", \"status\": ").append(json(r.status)).append(", \"cycles\": ").append(r.cycles)
+                    .append(", \"instructions\": ").append(r.instructions)
+                    .append(", \"cpi\": ")
+                    .append(Double.isNaN(r.cpi) ? "null" : String.format(Locale.ROOT, "%.4f", r.cpi))
+                    .append(", \"predictions\": ").append(r.predictions)
+                    .append(", \"mispredictions\": ").append(r.mispredictions)
+                    .append(", \"millis\": ").append(String.format(Locale.ROOT, "%.3f", r.millis)).append('}');
+            out.println(i + 1 < results.size() ? row + "," : row.toString());
+        }
+        out.println("]");
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String json(String value) {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append('"').toString();
+    }
+
+    // --- Main ---
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> programs = new ArrayList<>();
+        for (String arg : PipelinedCPU.parseArguments(args, options)) {
+            if (arg.startsWith("@")) { // A file listing one program per line
+                for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                    if (!line.isBlank() && !line.startsWith("#")) {
+                        programs.add(line.trim());
+                    }
+                }
+            } else {
+                programs.add(arg);
+            }
+        }
+        if (programs.isEmpty()) {
+            System.err.println("Usage: BatchRunner <file.mc | @list.txt>... [--workers=N] [--out=results.csv|json]"
+                    + " [--log-dir=dir] [--sweep-<option>=v1,v2]... [--<option>=value]...");
+            return;
+        }
+
+        int workers = Integer.parseInt(options.getOrDefault("workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String outFile = options.getOrDefault("out", "results.csv");
+        String logDir = options.get("log-dir");
+        options.remove("workers");
+        options.remove("out");
+        options.remove("log-dir");
+
+        Map<String, List<String>> sweeps = new LinkedHashMap<>();
+        Map<String, String> common = new LinkedHashMap<>();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith(SWEEP_PREFIX)) {
+                sweeps.put(option.getKey().substring(SWEEP_PREFIX.length()), List.of(option.getValue().split(",")));
+            } else {
+                common.put(option.getKey(), option.getValue());
+            }
+        }
+        if (logDir != null) {
+            Files.createDirectories(Paths.get(logDir));
+        }
+
+        List<Job> jobs = expand(programs, sweeps);
+        System.out.printf("Running %d jobs on %d workers\n", jobs.size(), workers);
+        long start = System.nanoTime();
+        List<Result> results = new BatchRunner(common, logDir == null ? null : Paths.get(logDir))
+                .runAll(jobs, workers);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<String> sweepNames = new ArrayList<>(sweeps.keySet());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(outFile)))) {
+            if (outFile.endsWith(".json")) {
+                writeJson(out, sweepNames, results);
+            } else {
+                writeCsv(out, sweepNames, results);
+            }
+        }
+        long failed = results.stream().filter(r -> !r.status.equals("ok")).count();
+        System.out.printf("Finished in %.2f s (%d failed); results written to %s\n", seconds, failed, outFile);
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Compact binary form of the per-cycle pipeline register trace.
+//
+// File:   magic "RVTR" (u32), version (u16), then one record per cycle, then an end record.
+// Record: tag (u8) | cycle delta (varint) | control word (fixed 8 bytes) | value slots (varints)
+//
+// The control word packs every flag, mux select, ALU op and register number of the four
+// pipeline registers. PCs, data values and instruction words are zigzag-encoded deltas
+// against the same slot in the previous record, so steady-state cycles cost a few bytes each.
+final class BinaryTrace {
+
+    static final int MAGIC = 0x52565452; // "RVTR"
+    static final int VERSION = 1;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_CYCLE = 1;
+
+    // Value slots, delta-encoded against the previous record
+    private static final int IF_PC = 0, IF_NEXT_PC = 1, IF_PRED_TARGET = 2, IF_WORD = 3;
+    private static final int ID_PC = 4, ID_NEXT_PC = 5, ID_RVAL1 = 6, ID_RVAL2 = 7, ID_IMM = 8, ID_WORD = 9;
+    private static final int EX_PC = 10, EX_ALU = 11, EX_WRITE_DATA = 12, EX_TARGET = 13;
+    private static final int WB_PC = 14, WB_ALU = 15, WB_READ_DATA = 16;
+    private static final int SLOTS = 17;
+
+    // Tag + cycle varint + control word + one worst-case varint per slot
+    private static final int MAX_RECORD_BYTES = 1 + 10 + 8 + SLOTS * 10;
+
+    private BinaryTrace() {
+    }
+
+    // --- Control Word Layout ---
+    // Bit positions of the packed flags and small fields (57 of 64 bits used)
+    private static final int B_IF_VALID = 0, B_IF_PRED_TAKEN = 1;
+    private static final int B_ID_VALID = 2, B_ID_RW = 3, B_ID_MR = 4, B_ID_MW = 5, B_ID_BR = 6, B_ID_JMP = 7,
+            B_ID_IMM = 8, B_ID_WBMUX = 9, B_ID_SIZE = 11, B_ID_ALUOP = 13, B_ID_RS1 = 19, B_ID_RS2 = 24,
+            B_ID_RD = 29;
+    private static final int B_EX_VALID = 34, B_EX_RW = 35, B_EX_MR = 36, B_EX_MW = 37, B_EX_TAKEN = 38,
+            B_EX_WBMUX = 39, B_EX_SIZE = 41, B_EX_RD = 43;
+    private static final int B_WB_VALID = 48, B_WB_RW = 49, B_WB_WBMUX = 50, B_WB_RD = 52;
+
+    private static long bit(boolean flag, int pos) {
+        return flag ? 1L << pos : 0;
+    }
+
+    private static long field(int value, int pos) {
+        return (long) value << pos;
+    }
+
+    private static boolean flag(long word, int pos) {
+        return ((word >>> pos) & 1) != 0;
+    }
+
+    private static int get(long word, int pos, int bits) {
+        return (int) ((word >>> pos) & ((1L << bits) - 1));
+    }
+
+    private static long packControl(PipelinedCPU.IFIDRegister f, PipelinedCPU.IDEXRegister d,
+                                    PipelinedCPU.EXMEMRegister e, PipelinedCPU.MEMWBRegister w) {
+        return bit(f.valid, B_IF_VALID) | bit(f.predictedTaken, B_IF_PRED_TAKEN)
+                | bit(d.valid, B_ID_VALID) | bit(d.regWrite, B_ID_RW) | bit(d.memRead, B_ID_MR)
+                | bit(d.memWrite, B_ID_MW) | bit(d.branch, B_ID_BR) | bit(d.jump, B_ID_JMP)
+                | bit(d.useImm, B_ID_IMM) | field(d.writeBackMux, B_ID_WBMUX) | field(d.memSize.ordinal(), B_ID_SIZE)
+                | field(d.aluOp.ordinal(), B_ID_ALUOP) | field(d.rs1, B_ID_RS1) | field(d.rs2, B_ID_RS2)
+                | field(d.rd, B_ID_RD)
+                | bit(e.valid, B_EX_VALID) | bit(e.regWrite, B_EX_RW) | bit(e.memRead, B_EX_MR)
+                | bit(e.memWrite, B_EX_MW) | bit(e.branchTaken, B_EX_TAKEN) | field(e.writeBackMux, B_EX_WBMUX)
+                | field(e.memSize.ordinal(), B_EX_SIZE) | field(e.rd, B_EX_RD)
+                | bit(w.valid, B_WB_VALID) | bit(w.regWrite, B_WB_RW) | field(w.writeBackMux, B_WB_WBMUX)
+                | field(w.rd, B_WB_RD);
+    }
+
+    // --- Writer ---
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final long[] previous = new long[SLOTS];
+        private long previousCycle;
+
+        Writer(String path) {
+            try {
+                channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open binary trace " + path, e);
+            }
+            buffer.putInt(MAGIC).putShort((short) VERSION);
+        }
+
+        // Append the state of the four pipeline registers at the end of 'cycle'
+        void writeCycle(long cycle, PipelinedCPU.IFIDRegister f, PipelinedCPU.IDEXRegister d,
+                        PipelinedCPU.EXMEMRegister e, PipelinedCPU.MEMWBRegister w) {
+            if (buffer.remaining() < MAX_RECORD_BYTES) {
+                flush();
+            }
+            buffer.put(RECORD_CYCLE);
+            putVarLong(cycle - previousCycle);
+            previousCycle = cycle;
+            buffer.putLong(packControl(f, d, e, w));
+
+            putDelta(IF_PC, f.instructionPC);
+            putDelta(IF_NEXT_PC, f.nextPC);
+            putDelta(IF_PRED_TARGET, f.predictedTarget);
+            putDelta(IF_WORD, f.instruction.word);
+            putDelta(ID_PC, d.instructionPC);
+            putDelta(ID_NEXT_PC, d.nextPC);
+            putDelta(ID_RVAL1, d.readData1);
+            putDelta(ID_RVAL2, d.readData2);
+            putDelta(ID_IMM, d.immediate);
+            putDelta(ID_WORD, d.instruction.word);
+            putDelta(EX_PC, e.instructionPC);
+            putDelta(EX_ALU, e.aluResult);
+            putDelta(EX_WRITE_DATA, e.writeData);
+            putDelta(EX_TARGET, e.branchTarget);
+            putDelta(WB_PC, w.instructionPC);
+            putDelta(WB_ALU, w.aluResult);
+            putDelta(WB_READ_DATA, w.readData);
+        }
+
+        private void putDelta(int slot, long value) {
+            long delta = value - previous[slot];
+            previous[slot] = value;
+            putVarLong((delta << 1) ^ (delta >> 63)); // Zigzag: small negative deltas stay small
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Binary trace write failed", e);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() {
+            buffer.put(RECORD_END);
+            flush();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // --- Reader ---
+    // Rebuilds the pipeline register objects record by record, so their toString() renders
+    // exactly what the text trace would have printed.
+    static final class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final long[] previous = new long[SLOTS];
+        private final Map<Integer, DecodedInstruction> decoded = new HashMap<>();
+        private boolean eof;
+
+        long cycle;
+        final PipelinedCPU.IFIDRegister ifId = new PipelinedCPU.IFIDRegister();
+        final PipelinedCPU.IDEXRegister idEx = new PipelinedCPU.IDEXRegister();
+        final PipelinedCPU.EXMEMRegister exMem = new PipelinedCPU.EXMEMRegister();
+        final PipelinedCPU.MEMWBRegister memWb = new PipelinedCPU.MEMWBRegister();
+
+        Reader(String path) throws IOException {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            buffer.flip();
+            fill(6);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a binary pipeline trace");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+        }
+
+        // Advance to the next cycle record; false at the end of the trace
+        boolean next() throws IOException {
+            fill(MAX_RECORD_BYTES);
+            if (!buffer.hasRemaining() || buffer.get() == RECORD_END) {
+                return false;
+            }
+            cycle += getVarLong();
+            long control = buffer.getLong();
+            AluOp[] aluOps = AluOp.values();
+            MemSize[] sizes = MemSize.values();
+
+            ifId.valid = flag(control, B_IF_VALID);
+            ifId.predictedTaken = flag(control, B_IF_PRED_TAKEN);
+            ifId.instructionPC = getDelta(IF_PC);
+            ifId.nextPC = getDelta(IF_NEXT_PC);
+            ifId.predictedTarget = getDelta(IF_PRED_TARGET);
+            ifId.instruction = instruction((int) getDelta(IF_WORD));
+
+            idEx.valid = flag(control, B_ID_VALID);
+            idEx.regWrite = flag(control, B_ID_RW);
+            idEx.memRead = flag(control, B_ID_MR);
+            idEx.memWrite = flag(control, B_ID_MW);
+            idEx.branch = flag(control, B_ID_BR);
+            idEx.jump = flag(control, B_ID_JMP);
+            idEx.useImm = flag(control, B_ID_IMM);
+            idEx.writeBackMux = get(control, B_ID_WBMUX, 2);
+            idEx.memSize = sizes[get(control, B_ID_SIZE, 2)];
+            idEx.aluOp = aluOps[get(control, B_ID_ALUOP, 6)];
+            idEx.rs1 = get(control, B_ID_RS1, 5);
+            idEx.rs2 = get(control, B_ID_RS2, 5);
+            idEx.rd = get(control, B_ID_RD, 5);
+            idEx.instructionPC = getDelta(ID_PC);
+            idEx.nextPC = getDelta(ID_NEXT_PC);
+            idEx.readData1 = getDelta(ID_RVAL1);
+            idEx.readData2 = getDelta(ID_RVAL2);
+            idEx.immediate = getDelta(ID_IMM);
+            idEx.instruction = instruction((int) getDelta(ID_WORD));
+
+            exMem.valid = flag(control, B_EX_VALID);
+            exMem.regWrite = flag(control, B_EX_RW);
+            exMem.memRead = flag(control, B_EX_MR);
+            exMem.memWrite = flag(control, B_EX_MW);
+            exMem.branchTaken = flag(control, B_EX_TAKEN);
+            exMem.writeBackMux = get(control, B_EX_WBMUX, 2);
+            exMem.memSize = sizes[get(control, B_EX_SIZE, 2)];
+            exMem.rd = get(control, B_EX_RD, 5);
+            exMem.instructionPC = getDelta(EX_PC);
+            exMem.aluResult = getDelta(EX_ALU);
+            exMem.writeData = getDelta(EX_WRITE_DATA);
+            exMem.branchTarget = getDelta(EX_TARGET);
+
+            memWb.valid = flag(control, B_WB_VALID);
+            memWb.regWrite = flag(control, B_WB_RW);
+            memWb.writeBackMux = get(control, B_WB_WBMUX, 2);
+            memWb.rd = get(control, B_WB_RD, 5);
+            memWb.instructionPC = getDelta(WB_PC);
+            memWb.aluResult = getDelta(WB_ALU);
+            memWb.readData = getDelta(WB_READ_DATA);
+            return true;
+        }
+
+        private DecodedInstruction instruction(int word) {
+            return decoded.computeIfAbsent(word, DecodedInstruction::decode);
+        }
+
+        private long getDelta(int slot) throws IOException {
+            long zigzag = getVarLong();
+            previous[slot] += (zigzag >>> 1) ^ -(zigzag & 1);
+            return previous[slot];
+        }
+
+        private long getVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!buffer.hasRemaining()) {
+                    throw new EOFException("Truncated trace record");
+                }
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in trace");
+        }
+
+        // Make at least 'bytes' bytes available unless the file ends first
+        private void fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes || eof) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,570 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Translates a hot basic block into a hidden JVM class, so HotSpot compiles the guest code to
+// native code. The generated run() method keeps every guest register the block touches in a JVM
+// local, performs the block's ALU and memory effects directly, evaluates the terminator and writes
+// the modified registers back before returning. A block that branches back to its own start loops
+// inside the method while the instruction budget allows.
+//
+// The class file is emitted by hand at version 49, which needs no stack map frames, and is loaded
+// with Lookup.defineHiddenClass so it can be unloaded with the block cache.
+//
+// run() returns (instructions executed << 32) | next pc.
+final class BlockCompiler {
+
+    static final int MAX_BLOCK_LENGTH = 1000; // Larger blocks stay interpreted (64 KiB method limit)
+
+    private static final String CLASS_NAME = "TranslatedBlock";
+    private static final String RUN_DESCRIPTOR = "([ILPagedMemory;LFunctionalSimulator;I)J";
+
+    // Local variable slots of run(this, x, mem, sim, budget)
+    private static final int L_X = 1, L_MEM = 2, L_SIM = 3, L_BUDGET = 4;
+    private static final int L_COUNT = 5; // Instructions executed so far (self-loops)
+    private static final int L_TMP = 6; // Store address / JALR target
+    private static final int L_REG = 7; // Guest register r lives in local L_REG + r
+
+    private BlockCompiler() {
+    }
+
+    static FunctionalSimulator.CompiledBlock compile(FunctionalSimulator.Block block)
+            throws ReflectiveOperationException {
+        byte[] classFile = new ClassWriter(block).toByteArray();
+        Class<?> translated = MethodHandles.lookup().defineHiddenClass(classFile, true).lookupClass();
+        return (FunctionalSimulator.CompiledBlock) translated.getDeclaredConstructor().newInstance();
+    }
+
+    // --- Class File Emission ---
+    private static final class ClassWriter {
+        private final FunctionalSimulator.Block block;
+        private final ConstantPool pool = new ConstantPool();
+        private final Code code = new Code(pool);
+        private final boolean[] used = new boolean[33]; // Registers loaded into locals
+        private final boolean[] written = new boolean[33]; // Registers written back on exit
+
+        ClassWriter(FunctionalSimulator.Block block) {
+            this.block = block;
+        }
+
+        byte[] toByteArray() {
+            int thisClass = pool.classRef(CLASS_NAME);
+            int superClass = pool.classRef("java/lang/Object");
+            int iface = pool.classRef("FunctionalSimulator$CompiledBlock");
+            byte[] runCode = emitRun();
+            int codeName = pool.utf8("Code");
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int runName = pool.utf8("run");
+            int runType = pool.utf8(RUN_DESCRIPTOR);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0); // Minor
+                out.writeShort(49); // Java 5: type-inferencing verifier, no StackMapTable
+                pool.writeTo(out);
+                out.writeShort(0x0011); // ACC_PUBLIC | ACC_FINAL
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0); // Fields
+
+                out.writeShort(2); // Methods
+                // public <init>() { super(); }
+                out.writeShort(0x0001);
+                out.writeShort(initName);
+                out.writeShort(initType);
+                out.writeShort(1);
+                byte[] init = {0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1};
+                writeCode(out, codeName, 1, 1, init);
+                // public long run(int[] x, PagedMemory mem, FunctionalSimulator sim, int budget)
+                out.writeShort(0x0001);
+                out.writeShort(runName);
+                out.writeShort(runType);
+                out.writeShort(1);
+                writeCode(out, codeName, 8, L_REG + used.length, runCode);
+
+                out.writeShort(0); // Class attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // ByteArrayOutputStream does not throw
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals,
+                                      byte[] body) throws IOException {
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // Exception table
+            out.writeShort(0); // Code attributes
+        }
+
+        private byte[] emitRun() {
+            int[] ops = block.code;
+            int count = ops.length / FunctionalSimulator.OP_STRIDE;
+            collectRegisters(ops, count);
+
+            // Prologue: guest registers into locals
+            for (int r = 1; r < used.length; r++) {
+                if (used[r]) {
+                    code.aload(L_X);
+                    code.pushInt(r);
+                    code.op(IALOAD);
+                    code.istore(L_REG + r);
+                }
+            }
+            code.pushInt(0);
+            code.istore(L_COUNT);
+
+            Label top = new Label();
+            code.place(top);
+            for (int j = 0; j < count; j++) {
+                emitOperation(ops, j * FunctionalSimulator.OP_STRIDE, j);
+            }
+            // count += length
+            code.iload(L_COUNT);
+            code.pushInt(block.length);
+            code.op(IADD);
+            code.istore(L_COUNT);
+            emitTerminator(top);
+            return code.toByteArray();
+        }
+
+        private void collectRegisters(int[] ops, int count) {
+            for (int j = 0; j < count; j++) {
+                int c = j * FunctionalSimulator.OP_STRIDE;
+                int kind = ops[c];
+                used[ops[c + 2]] = true;
+                if (usesRs2(kind)) {
+                    used[ops[c + 3]] = true;
+                }
+                if (!isStore(kind)) {
+                    used[ops[c + 1]] = true;
+                    written[ops[c + 1]] = true;
+                }
+            }
+            int exit = block.exitKind;
+            if (exit >= FunctionalSimulator.K_BEQ && exit <= FunctionalSimulator.K_BGEU) {
+                used[block.exitRs1] = true;
+                used[block.exitRs2] = true;
+            } else if (exit == FunctionalSimulator.K_JAL || exit == FunctionalSimulator.K_JALR) {
+                if (exit == FunctionalSimulator.K_JALR) {
+                    used[block.exitRs1] = true;
+                }
+                used[block.exitRd] = true;
+                written[block.exitRd] = true;
+            }
+            used[0] = false; // x0 reads are the constant 0
+            used[FunctionalSimulator.SCRATCH_REG] = false; // Writes to x0 are popped
+            written[0] = false;
+            written[FunctionalSimulator.SCRATCH_REG] = false;
+        }
+
+        private static boolean usesRs2(int kind) {
+            return kind <= FunctionalSimulator.K_REMU || isStore(kind);
+        }
+
+        private static boolean isStore(int kind) {
+            return kind == FunctionalSimulator.K_SB || kind == FunctionalSimulator.K_SH
+                    || kind == FunctionalSimulator.K_SW;
+        }
+
+        private void loadReg(int r) {
+            if (r == 0) {
+                code.pushInt(0);
+            } else {
+                code.iload(L_REG + r);
+            }
+        }
+
+        private void storeReg(int r) {
+            if (r == FunctionalSimulator.SCRATCH_REG) {
+                code.op(POP);
+            } else {
+                code.istore(L_REG + r);
+            }
+        }
+
+        private void emitOperation(int[] ops, int c, int index) {
+            int kind = ops[c], d = ops[c + 1], a = ops[c + 2], b = ops[c + 3], k = ops[c + 4];
+            switch (kind) {
+                case FunctionalSimulator.K_ADD: binary(a, b, d, IADD); break;
+                case FunctionalSimulator.K_SUB: binary(a, b, d, ISUB); break;
+                case FunctionalSimulator.K_SLL: binary(a, b, d, ISHL); break;
+                case FunctionalSimulator.K_XOR: binary(a, b, d, IXOR); break;
+                case FunctionalSimulator.K_SRL: binary(a, b, d, IUSHR); break;
+                case FunctionalSimulator.K_SRA: binary(a, b, d, ISHR); break;
+                case FunctionalSimulator.K_OR: binary(a, b, d, IOR); break;
+                case FunctionalSimulator.K_AND: binary(a, b, d, IAND); break;
+                case FunctionalSimulator.K_MUL: binary(a, b, d, IMUL); break;
+                case FunctionalSimulator.K_SLT: compare(a, b, false, d, "compare"); break;
+                case FunctionalSimulator.K_SLTU: compare(a, b, false, d, "compareUnsigned"); break;
+                case FunctionalSimulator.K_MULH: aluCall(a, b, false, d, "mulh"); break;
+                case FunctionalSimulator.K_MULHSU: aluCall(a, b, false, d, "mulhsu"); break;
+                case FunctionalSimulator.K_MULHU: aluCall(a, b, false, d, "mulhu"); break;
+                case FunctionalSimulator.K_DIV: aluCall(a, b, false, d, "div"); break;
+                case FunctionalSimulator.K_DIVU: aluCall(a, b, false, d, "divu"); break;
+                case FunctionalSimulator.K_REM: aluCall(a, b, false, d, "rem"); break;
+                case FunctionalSimulator.K_REMU: aluCall(a, b, false, d, "remu"); break;
+                case FunctionalSimulator.K_ADDI: immediate(a, k, d, IADD); break;
+                case FunctionalSimulator.K_XORI: immediate(a, k, d, IXOR); break;
+                case FunctionalSimulator.K_ORI: immediate(a, k, d, IOR); break;
+                case FunctionalSimulator.K_ANDI: immediate(a, k, d, IAND); break;
+                case FunctionalSimulator.K_SLLI: immediate(a, k, d, ISHL); break;
+                case FunctionalSimulator.K_SRLI: immediate(a, k, d, IUSHR); break;
+                case FunctionalSimulator.K_SRAI: immediate(a, k, d, ISHR); break;
+                case FunctionalSimulator.K_SLTI: compare(a, k, true, d, "compare"); break;
+                case FunctionalSimulator.K_SLTIU: compare(a, k, true, d, "compareUnsigned"); break;
+                case FunctionalSimulator.K_LUI:
+                case FunctionalSimulator.K_AUIPC: // pc + imm already folded in
+                    code.pushInt(k);
+                    storeReg(d);
+                    break;
+                case FunctionalSimulator.K_LB: load(a, k, d, "loadByte"); break;
+                case FunctionalSimulator.K_LH: load(a, k, d, "loadHalf"); break;
+                case FunctionalSimulator.K_LW: load(a, k, d, "loadWord"); break;
+                case FunctionalSimulator.K_SB: store(a, b, k, "storeByte", 1, index); break;
+                case FunctionalSimulator.K_SH: store(a, b, k, "storeHalf", 2, index); break;
+                case FunctionalSimulator.K_SW: store(a, b, k, "storeWord", 4, index); break;
+                default:
+                    throw new IllegalArgumentException("Cannot translate operation kind " + kind);
+            }
+        }
+
+        private void binary(int a, int b, int d, int opcode) {
+            loadReg(a);
+            loadReg(b);
+            code.op(opcode);
+            storeReg(d);
+        }
+
+        private void immediate(int a, int k, int d, int opcode) {
+            loadReg(a);
+            code.pushInt(k);
+            code.op(opcode);
+            storeReg(d);
+        }
+
+        // rd = Integer.compare[Unsigned](a, b) >>> 31, i.e. 1 when a < b
+        private void compare(int a, int b, boolean bIsImmediate, int d, String method) {
+            loadReg(a);
+            if (bIsImmediate) {
+                code.pushInt(b);
+            } else {
+                loadReg(b);
+            }
+            code.invoke(INVOKESTATIC, pool.methodRef("java/lang/Integer", method, "(II)I"));
+            code.pushInt(31);
+            code.op(IUSHR);
+            storeReg(d);
+        }
+
+        private void aluCall(int a, int b, boolean bIsImmediate, int d, String method) {
+            loadReg(a);
+            if (bIsImmediate) {
+                code.pushInt(b);
+            } else {
+                loadReg(b);
+            }
+            code.invoke(INVOKESTATIC, pool.methodRef("Alu", method, "(II)I"));
+            storeReg(d);
+        }
+
+        private void load(int a, int k, int d, String method) {
+            code.aload(L_MEM);
+            loadReg(a);
+            code.pushInt(k);
+            code.op(IADD);
+            code.op(I2L);
+            code.invoke(INVOKEVIRTUAL, pool.methodRef("PagedMemory", method, "(J)I"));
+            storeReg(d);
+        }
+
+        // Store, then leave the block right after it if it rewrote the text
+        private void store(int a, int b, int k, String method, int width, int index) {
+            loadReg(a);
+            code.pushInt(k);
+            code.op(IADD);
+            code.istore(L_TMP);
+            code.aload(L_MEM);
+            code.iload(L_TMP);
+            code.op(I2L);
+            loadReg(b);
+            code.invoke(INVOKEVIRTUAL, pool.methodRef("PagedMemory", method, "(JI)V"));
+            code.aload(L_SIM);
+            code.iload(L_TMP);
+            code.pushInt(width);
+            code.invoke(INVOKEVIRTUAL, pool.methodRef("FunctionalSimulator", "checkTextWrite", "(II)Z"));
+            Label carryOn = new Label();
+            code.branch(IFEQ, carryOn);
+            emitReturn(index + 1, () -> code.pushInt(block.startPc + 4 * (index + 1)));
+            code.place(carryOn);
+        }
+
+        private void emitTerminator(Label top) {
+            int exit = block.exitKind;
+            if (exit >= FunctionalSimulator.K_BEQ && exit <= FunctionalSimulator.K_BGEU) {
+                Label taken = new Label();
+                loadReg(block.exitRs1);
+                loadReg(block.exitRs2);
+                switch (exit) {
+                    case FunctionalSimulator.K_BEQ: code.branch(IF_ICMPEQ, taken); break;
+                    case FunctionalSimulator.K_BNE: code.branch(IF_ICMPNE, taken); break;
+                    case FunctionalSimulator.K_BLT: code.branch(IF_ICMPLT, taken); break;
+                    case FunctionalSimulator.K_BGE: code.branch(IF_ICMPGE, taken); break;
+                    case FunctionalSimulator.K_BLTU:
+                        code.invoke(INVOKESTATIC, pool.methodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+                        code.branch(IFLT, taken);
+                        break;
+                    default: // BGEU
+                        code.invoke(INVOKESTATIC, pool.methodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+                        code.branch(IFGE, taken);
+                        break;
+                }
+                emitReturn(0, () -> code.pushInt(block.fallPc));
+                code.place(taken);
+                if (block.takenPc == block.startPc) {
+                    // Self-loop: go round again while another full iteration fits in the budget
+                    code.iload(L_BUDGET);
+                    code.iload(L_COUNT);
+                    code.op(ISUB);
+                    code.pushInt(block.length);
+                    code.branch(IF_ICMPGE, top);
+                }
+                emitReturn(0, () -> code.pushInt(block.takenPc));
+            } else if (exit == FunctionalSimulator.K_JAL) {
+                code.pushInt(block.fallPc);
+                storeReg(block.exitRd);
+                emitReturn(0, () -> code.pushInt(block.takenPc));
+            } else if (exit == FunctionalSimulator.K_JALR) {
+                loadReg(block.exitRs1); // Target before rd may overwrite rs1
+                code.pushInt(block.exitImm);
+                code.op(IADD);
+                code.pushInt(~1);
+                code.op(IAND);
+                code.istore(L_TMP);
+                code.pushInt(block.fallPc);
+                storeReg(block.exitRd);
+                emitReturn(0, () -> code.iload(L_TMP));
+            } else {
+                emitReturn(0, () -> code.pushInt(block.fallPc));
+            }
+        }
+
+        // Write back the modified registers and return ((count + extra) << 32) | nextPc
+        private void emitReturn(int extra, Runnable pushNextPc) {
+            for (int r = 1; r < written.length; r++) {
+                if (written[r]) {
+                    code.aload(L_X);
+                    code.pushInt(r);
+                    code.iload(L_REG + r);
+                    code.op(IASTORE);
+                }
+            }
+            code.iload(L_COUNT);
+            if (extra != 0) {
+                code.pushInt(extra);
+                code.op(IADD);
+            }
+            code.op(I2L);
+            code.pushInt(32);
+            code.op(LSHL);
+            pushNextPc.run();
+            code.op(I2L);
+            code.ldc2(pool.longConstant(0xFFFFFFFFL));
+            code.op(LAND);
+            code.op(LOR);
+            code.op(LRETURN);
+        }
+    }
+
+    // --- Bytecode Buffer ---
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    private static final int ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, IALOAD = 0x2E, IASTORE = 0x4F, POP = 0x57;
+    private static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, ISHL = 0x78, LSHL = 0x79, ISHR = 0x7A,
+            IUSHR = 0x7C, IAND = 0x7E, LAND = 0x7F, IOR = 0x80, LOR = 0x81, IXOR = 0x82, I2L = 0x85;
+    private static final int IFEQ = 0x99, IFLT = 0x9B, IFGE = 0x9C, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0,
+            IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, LRETURN = 0xAD;
+    private static final int INVOKEVIRTUAL = 0xB6, INVOKESTATIC = 0xB8;
+
+    private static final class Label {
+        int position = -1;
+        final List<Integer> fixups = new ArrayList<>(); // Offsets of branch opcodes waiting for this label
+    }
+
+    private static final class Code {
+        private final ConstantPool pool;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+
+        Code(ConstantPool pool) {
+            this.pool = pool;
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                op(LDC_W);
+                u2(pool.intConstant(value));
+            }
+        }
+
+        void ldc2(int index) {
+            op(LDC2_W);
+            u2(index);
+        }
+
+        void iload(int local) {
+            op(ILOAD);
+            bytes.write(local);
+        }
+
+        void istore(int local) {
+            op(ISTORE);
+            bytes.write(local);
+        }
+
+        void aload(int local) {
+            op(ALOAD);
+            bytes.write(local);
+        }
+
+        void invoke(int opcode, int methodRef) {
+            op(opcode);
+            u2(methodRef);
+        }
+
+        void branch(int opcode, Label target) {
+            int at = bytes.size();
+            op(opcode);
+            if (target.position >= 0) {
+                u2(target.position - at); // Backward: offset known
+            } else {
+                target.fixups.add(at);
+                u2(0);
+            }
+        }
+
+        void place(Label label) {
+            label.position = bytes.size();
+            labels.add(label);
+        }
+
+        byte[] toByteArray() {
+            byte[] out = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int at : label.fixups) {
+                    int offset = label.position - at;
+                    out[at + 1] = (byte) (offset >> 8);
+                    out[at + 2] = (byte) offset;
+                }
+            }
+            return out;
+        }
+    }
+
+    // Constant pool with de-duplicated entries
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        private int entry(String key, int slots, Writer writer) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int assigned = next;
+            next += slots; // Long constants take two slots
+            entries.put(key, assigned);
+            return assigned;
+        }
+
+        int utf8(String text) {
+            return entry("U" + text, 1, () -> {
+                out.writeByte(1);
+                out.writeUTF(text);
+            });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, 1, () -> {
+                out.writeByte(7);
+                out.writeShort(name);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + ":" + descriptor, 1, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return entry("M" + owner + "." + name + descriptor, 1, () -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int intConstant(int value) {
+            return entry("I" + value, 1, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int longConstant(long value) {
+            return entry("J" + value, 2, () -> {
+                out.writeByte(5);
+                out.writeLong(value);
+            });
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(next);
+            target.write(bytes.toByteArray());
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Set-associative branch target buffer of fixed capacity (--btb-entries, --btb-ways,
+// --btb-tag-bits, --btb-replacement). Everything lives in flat arrays indexed by
+// set * ways + way, so lookups never allocate or box.
+//
+// With partial tags (--btb-tag-bits=N) two branches can share an entry: the lookup hits with
+// the other branch's target and EX catches it as a target mispredict. The full PC of the branch
+// that wrote each entry is kept next to it purely so those alias hits can be counted and
+// dumped; the prediction itself only looks at the stored tag.
+final class BranchTargetBuffer {
+
+    static final String[] POLICIES = {"lru", "plru", "random"};
+    static final int DEFAULT_ENTRIES = 1024;
+    static final int DEFAULT_WAYS = 4;
+
+    final int entries;
+    final int ways;
+    final int tagBits; // 0 = full tags (no aliasing)
+    final String policy;
+    private final int sets;
+    private final int setBits;
+    private final int wayBits;
+    private final long tagMask;
+
+    private final long[] tags; // -1 = invalid
+    private final long[] targets;
+    private final long[] owners; // PC that wrote the entry (statistics and dumps only)
+    private final long[] lastUse; // LRU stamps
+    private final long[] plruTree; // Per set: tree bits, node n at bit n (1 .. ways-1)
+    private long clock; // LRU stamp source
+    private long random = 0x9E3779B97F4A7C15L; // xorshift state, fixed seed so runs repeat
+
+    // Statistics
+    long lookups;
+    long hits;
+    long aliases; // Hits on an entry another branch wrote
+    long evictions; // Valid entries replaced
+
+    BranchTargetBuffer(int entries, int ways, int tagBits, String policy) {
+        if (entries < 1 || Integer.bitCount(entries) != 1) {
+            throw new IllegalArgumentException("BTB size must be a power of two: " + entries);
+        }
+        if (ways < 1 || ways > 32 || ways > entries || Integer.bitCount(ways) != 1) {
+            throw new IllegalArgumentException("BTB associativity must be a power of two from 1 to 32, at most "
+                    + "the size: " + ways);
+        }
+        if (tagBits < 0 || tagBits > 62) {
+            throw new IllegalArgumentException("BTB tag bits must be 0 (full) to 62: " + tagBits);
+        }
+        if (!policy.equals("lru") && !policy.equals("plru") && !policy.equals("random")) {
+            throw new IllegalArgumentException("Unknown BTB replacement " + policy);
+        }
+        this.entries = entries;
+        this.ways = ways;
+        this.tagBits = tagBits;
+        this.policy = policy;
+        this.sets = entries / ways;
+        this.setBits = Integer.numberOfTrailingZeros(sets);
+        this.wayBits = Integer.numberOfTrailingZeros(ways);
+        this.tagMask = tagBits == 0 ? -1L : (1L << tagBits) - 1;
+        this.tags = new long[entries];
+        this.targets = new long[entries];
+        this.owners = new long[entries];
+        this.lastUse = new long[entries];
+        this.plruTree = new long[sets];
+        Arrays.fill(tags, -1);
+    }
+
+    private int set(long pc) {
+        return (int) (pc >>> 2) & (sets - 1);
+    }
+
+    private long tag(long pc) {
+        return (pc >>> (2 + setBits)) & tagMask;
+    }
+
+    private int find(int set, long tag) {
+        int base = set * ways;
+        for (int i = base; i < base + ways; i++) {
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Predicted target for the control-flow instruction at 'pc', or -1 on a miss
+    long lookup(long pc) {
+        lookups++;
+        int set = set(pc);
+        int i = find(set, tag(pc));
+        if (i < 0) {
+            return -1;
+        }
+        hits++;
+        if (owners[i] != pc) {
+            aliases++;
+        }
+        touch(set, i - set * ways);
+        return targets[i];
+    }
+
+    // Record a taken branch's target, allocating a victim way on a miss
+    void update(long pc, long target) {
+        int set = set(pc);
+        long tag = tag(pc);
+        int i = find(set, tag);
+        if (i < 0) {
+            i = set * ways + victim(set);
+            if (tags[i] != -1) {
+                evictions++;
+            }
+            tags[i] = tag;
+        }
+        targets[i] = target;
+        owners[i] = pc;
+        touch(set, i - set * ways);
+    }
+
+    // --- Replacement ---
+
+    private void touch(int set, int way) {
+        lastUse[set * ways + way] = ++clock;
+        long bits = plruTree[set];
+        int node = 1;
+        for (int level = wayBits - 1; level >= 0; level--) {
+            int bit = (way >>> level) & 1;
+            // Point the node at the other half
+            bits = bit == 0 ? bits | (1L << node) : bits & ~(1L << node);
+            node = node * 2 + bit;
+        }
+        plruTree[set] = bits;
+    }
+
+    private int victim(int set) {
+        int base = set * ways;
+        for (int way = 0; way < ways; way++) {
+            if (tags[base + way] == -1) {
+                return way; // Free way first, whatever the policy
+            }
+        }
+        switch (policy) {
+            case "plru": {
+                long bits = plruTree[set];
+                int node = 1;
+                int way = 0;
+                for (int level = 0; level < wayBits; level++) {
+                    int bit = (int) (bits >>> node) & 1;
+                    way = (way << 1) | bit;
+                    node = node * 2 + bit;
+                }
+                return way;
+            }
+            case "random":
+                random ^= random << 13;
+                random ^= random >>> 7;
+                random ^= random << 17;
+                return (int) (random >>> 40) & (ways - 1);
+            default: {
+                int oldest = 0;
+                for (int way = 1; way < ways; way++) {
+                    if (lastUse[base + way] < lastUse[base + oldest]) {
+                        oldest = way;
+                    }
+                }
+                return oldest;
+            }
+        }
+    }
+
+    // --- Reports ---
+
+    String describe() {
+        return String.format("%d entries, %d-way, %s, %s tags", entries, ways, policy.toUpperCase(Locale.ROOT),
+                tagBits == 0 ? "full" : tagBits + "-bit");
+    }
+
+    String summary() {
+        long misses = lookups - hits;
+        return String.format("%s: lookups %d, hits %d, misses %d, aliases %d, evictions %d", describe(), lookups,
+                hits, misses, aliases, evictions);
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 48 + entries * 32 + sets * 8;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(clock).putLong(random).putLong(lookups).putLong(hits).putLong(aliases).putLong(evictions);
+        for (int i = 0; i < entries; i++) {
+            out.putLong(tags[i]).putLong(targets[i]).putLong(owners[i]).putLong(lastUse[i]);
+        }
+        for (long bits : plruTree) {
+            out.putLong(bits);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        clock = in.getLong();
+        random = in.getLong();
+        lookups = in.getLong();
+        hits = in.getLong();
+        aliases = in.getLong();
+        evictions = in.getLong();
+        for (int i = 0; i < entries; i++) {
+            tags[i] = in.getLong();
+            targets[i] = in.getLong();
+            owners[i] = in.getLong();
+            lastUse[i] = in.getLong();
+        }
+        for (int s = 0; s < sets; s++) {
+            plruTree[s] = in.getLong();
+        }
+    }
+
+    // --- Trace Dump: valid entries by the PC that wrote them ---
+
+    void dump(StringBuilder sb) {
+        sb.append(" BTB: ").append(summary()).append('\n');
+        sb.append(" Branch Target Buffer (PC -> Target):\n");
+        Map<Long, Long> sorted = new TreeMap<>();
+        for (int i = 0; i < entries; i++) {
+            if (tags[i] != -1) {
+                sorted.put(owners[i], targets[i]);
+            }
+        }
+        if (sorted.isEmpty()) {
+            sb.append("  <Empty>\n");
+        } else {
+            for (Map.Entry<Long, Long> entry : sorted.entrySet()) {
+                sb.append(String.format("  0x%08X -> 0x%08X\n", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Set-associative cache timing model. Only tags are kept (in flat arrays indexed by
+// set * ways + way); the data itself always lives in PagedMemory, so a cache can never change
+// what a program computes, only how long it takes. MemoryHierarchy decides what a miss costs.
+//
+// Writes are write-back (dirty lines are written to the next level when evicted) or
+// write-through (every write goes to the next level), and write-allocate or not (a write miss
+// without allocation goes straight to the next level). Replacement is LRU, tree PLRU or FIFO.
+// Prefetched lines are filled ahead of use and remember when they arrive, so MemoryHierarchy
+// can tell a timely prefetch from a late one and count the ones evicted unused.
+final class Cache {
+
+    static final String[] POLICIES = {"lru", "plru", "fifo"};
+
+    final String name;
+    final int size; // Bytes
+    final int lineSize;
+    final int ways;
+    final String policy;
+    final boolean writeBack;
+    final boolean writeAllocate;
+    private final int sets;
+    private final int lineBits;
+    private final int setBits;
+    private final int wayBits;
+
+    private final long[] tags; // Line address >>> set bits, -1 = invalid
+    private final boolean[] dirty;
+    private final long[] stamps; // LRU: last use; FIFO: fill time
+    private final long[] plruTree; // Per set: tree bits, node n at bit n (1 .. ways-1)
+    private final long[] ready; // Cycle a prefetched (or, non-blocking, missed) line arrives
+    private final boolean[] prefetched; // Filled by a prefetch, not used yet
+    private long clock;
+    private long writeback = -1; // Line address the last access evicted dirty, -1 if none
+    private boolean unusedEvicted; // The last fill replaced a prefetched line nobody used
+
+    // The line the last access hit: first use of a prefetched line, and when it arrives
+    boolean hitPrefetch;
+    long hitReadyCycle;
+
+    // Statistics
+    long reads;
+    long writes;
+    long readMisses;
+    long writeMisses;
+    long writebacks; // Dirty lines written to the next level
+    long evictions; // Valid lines replaced
+
+    Cache(String name, int size, int lineSize, int ways, String policy, boolean writeBack, boolean writeAllocate) {
+        if (lineSize < 4 || Integer.bitCount(lineSize) != 1) {
+            throw new IllegalArgumentException(name + " line size must be a power of two >= 4: " + lineSize);
+        }
+        if (ways < 1 || ways > 32 || Integer.bitCount(ways) != 1) {
+            throw new IllegalArgumentException(name + " associativity must be a power of two from 1 to 32: " + ways);
+        }
+        if (Integer.bitCount(size) != 1 || size < lineSize * ways) {
+            throw new IllegalArgumentException(name + " size must be a power of two of at least one set ("
+                    + lineSize * ways + " bytes): " + size);
+        }
+        if (Arrays.asList(POLICIES).indexOf(policy) < 0) {
+            throw new IllegalArgumentException("Unknown " + name + " replacement " + policy);
+        }
+        this.name = name;
+        this.size = size;
+        this.lineSize = lineSize;
+        this.ways = ways;
+        this.policy = policy;
+        this.writeBack = writeBack;
+        this.writeAllocate = writeAllocate;
+        this.sets = size / lineSize / ways;
+        this.lineBits = Integer.numberOfTrailingZeros(lineSize);
+        this.setBits = Integer.numberOfTrailingZeros(sets);
+        this.wayBits = Integer.numberOfTrailingZeros(ways);
+        this.tags = new long[sets * ways];
+        this.dirty = new boolean[sets * ways];
+        this.stamps = new long[sets * ways];
+        this.plruTree = new long[sets];
+        this.ready = new long[sets * ways];
+        this.prefetched = new boolean[sets * ways];
+        Arrays.fill(tags, -1);
+    }
+
+    long lineAddress(long address) {
+        return (address & 0xFFFFFFFFL) >>> lineBits;
+    }
+
+    // Look up (and on a miss, normally fill) the line holding 'address'; true on a hit. A dirty
+    // line evicted by the fill is left for takeWriteback().
+    boolean access(long address, boolean write) {
+        long line = lineAddress(address);
+        int set = (int) line & (sets - 1);
+        long tag = line >>> setBits;
+        int base = set * ways;
+        if (write) {
+            writes++;
+        } else {
+            reads++;
+        }
+        hitPrefetch = false;
+        int way = find(base, tag);
+        if (way >= 0) {
+            int i = base + way;
+            if (write && writeBack) {
+                dirty[i] = true;
+            }
+            hitPrefetch = prefetched[i];
+            hitReadyCycle = ready[i];
+            prefetched[i] = false;
+            touch(set, way, false);
+            return true;
+        }
+        if (write) {
+            writeMisses++;
+            if (!writeAllocate) {
+                return false; // Goes around the cache
+            }
+        } else {
+            readMisses++;
+        }
+        fill(set, tag, write && writeBack, false, 0);
+        return false;
+    }
+
+    // Without statistics or replacement updates
+    boolean contains(long address) {
+        long line = lineAddress(address);
+        int set = (int) line & (sets - 1);
+        return find(set * ways, line >>> setBits) >= 0;
+    }
+
+    // Fill the line holding 'address' ahead of use; it arrives at 'readyCycle'. No-op if present.
+    void prefetch(long address, long readyCycle) {
+        long line = lineAddress(address);
+        int set = (int) line & (sets - 1);
+        long tag = line >>> setBits;
+        if (find(set * ways, tag) < 0) {
+            fill(set, tag, false, true, readyCycle);
+        }
+    }
+
+    // A line fill in flight: the line at 'address' only arrives at 'readyCycle'
+    void arriveAt(long address, long readyCycle) {
+        long line = lineAddress(address);
+        int set = (int) line & (sets - 1);
+        int way = find(set * ways, line >>> setBits);
+        if (way >= 0) {
+            ready[set * ways + way] = readyCycle;
+        }
+    }
+
+    private int find(int base, long tag) {
+        for (int way = 0; way < ways; way++) {
+            if (tags[base + way] == tag) {
+                return way;
+            }
+        }
+        return -1;
+    }
+
+    private void fill(int set, long tag, boolean dirtyLine, boolean prefetch, long readyCycle) {
+        int way = victim(set);
+        int i = set * ways + way;
+        if (tags[i] != -1) {
+            evictions++;
+            if (dirty[i]) {
+                writebacks++;
+                writeback = (tags[i] << setBits) | set;
+            }
+            unusedEvicted = prefetched[i];
+        }
+        tags[i] = tag;
+        dirty[i] = dirtyLine;
+        prefetched[i] = prefetch;
+        ready[i] = readyCycle;
+        touch(set, way, true);
+    }
+
+    // Line address of the dirty victim of the last access (then forgotten), or -1
+    long takeWriteback() {
+        long line = writeback;
+        writeback = -1;
+        return line;
+    }
+
+    // Whether the last fill evicted a prefetched line before its first use (then forgotten)
+    boolean takeUnusedEviction() {
+        boolean evicted = unusedEvicted;
+        unusedEvicted = false;
+        return evicted;
+    }
+
+    long lineToAddress(long line) {
+        return line << lineBits;
+    }
+
+    // --- Replacement ---
+
+    private void touch(int set, int way, boolean fill) {
+        if (fill || !policy.equals("fifo")) {
+            stamps[set * ways + way] = ++clock;
+        }
+        long bits = plruTree[set];
+        int node = 1;
+        for (int level = wayBits - 1; level >= 0; level--) {
+            int bit = (way >>> level) & 1;
+            // Point the node at the other half
+            bits = bit == 0 ? bits | (1L << node) : bits & ~(1L << node);
+            node = node * 2 + bit;
+        }
+        plruTree[set] = bits;
+    }
+
+    private int victim(int set) {
+        int base = set * ways;
+        for (int way = 0; way < ways; way++) {
+            if (tags[base + way] == -1) {
+                return way; // Free way first, whatever the policy
+            }
+        }
+        if (policy.equals("plru")) {
+            long bits = plruTree[set];
+            int node = 1;
+            int way = 0;
+            for (int level = 0; level < wayBits; level++) {
+                int bit = (int) (bits >>> node) & 1;
+                way = (way << 1) | bit;
+                node = node * 2 + bit;
+            }
+            return way;
+        }
+        int oldest = 0; // LRU and FIFO: smallest stamp
+        for (int way = 1; way < ways; way++) {
+            if (stamps[base + way] < stamps[base + oldest]) {
+                oldest = way;
+            }
+        }
+        return oldest;
+    }
+
+    // --- Reports ---
+
+    String describe() {
+        return String.format("%d B, %d B lines, %d-way, %s, %s, %s", size, lineSize, ways,
+                policy.toUpperCase(Locale.ROOT), writeBack ? "write-back" : "write-through",
+                writeAllocate ? "write-allocate" : "no-write-allocate");
+    }
+
+    String summary() {
+        long accesses = reads + writes;
+        long misses = readMisses + writeMisses;
+        return String.format(Locale.ROOT, "%s: accesses %d, misses %d (%s), read misses %d, write misses %d,"
+                        + " writebacks %d, evictions %d", name, accesses, misses,
+                accesses == 0 ? "n/a" : String.format(Locale.ROOT, "%.2f%%", 100.0 * misses / accesses), readMisses,
+                writeMisses, writebacks, evictions);
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 65 + tags.length * 26 + sets * 8;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(clock).putLong(writeback).putLong(reads).putLong(writes).putLong(readMisses)
+                .putLong(writeMisses).putLong(writebacks).putLong(evictions).put((byte) (unusedEvicted ? 1 : 0));
+        for (int i = 0; i < tags.length; i++) {
+            out.putLong(tags[i]).putLong(stamps[i]).putLong(ready[i]).put((byte) (dirty[i] ? 1 : 0))
+                    .put((byte) (prefetched[i] ? 1 : 0));
+        }
+        for (long bits : plruTree) {
+            out.putLong(bits);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        clock = in.getLong();
+        writeback = in.getLong();
+        reads = in.getLong();
+        writes = in.getLong();
+        readMisses = in.getLong();
+        writeMisses = in.getLong();
+        writebacks = in.getLong();
+        evictions = in.getLong();
+        unusedEvicted = in.get() != 0;
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = in.getLong();
+            stamps[i] = in.getLong();
+            ready[i] = in.getLong();
+            dirty[i] = in.get() != 0;
+            prefetched[i] = in.get() != 0;
+        }
+        for (int s = 0; s < sets; s++) {
+            plruTree[s] = in.getLong();
+        }
+    }
+}
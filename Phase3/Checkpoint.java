@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Binary snapshot of the complete simulator state (little-endian).
+//
+// File:   header (HEADER_SIZE bytes) | state section | page directory | pages
+// Header: magic "RVCK", version, pc, clock cycle, instructions retired, stall/flush flags,
+//         page count and the offsets of the sections below
+// State:  registers, text segment words, the eight pipeline register halves, branch predictor
+//         (kind, geometry and raw tables) and BTB, caches (geometry, tags and outstanding
+//         misses), prefetcher, MSHRs with the scoreboard
+//         and DRAM, MUL/DIV units and their scoreboard, performance counters
+// Pages:  one u64 base address per allocated data page, then the pages themselves as raw
+//         PAGE_SIZE blocks aligned to PAGE_SIZE in the file
+//
+// The reader maps the file and copies each page straight into PagedMemory, so restoring costs
+// time proportional to the pages that were touched, not to the address space.
+final class Checkpoint {
+
+    static final int MAGIC = 0x4B435652; // "RVCK"
+    static final int VERSION = 14;
+    private static final int HEADER_SIZE = 128;
+
+    private static final int FLAG_HAZARD_STALL = 1, FLAG_FORWARDING_STALL = 2, FLAG_MISPREDICT_FLUSH = 4,
+            FLAG_BRANCH_STALL = 8, FLAG_MISS_STALL = 16, FLAG_UNIT_STALL = 32;
+
+    private Checkpoint() {
+    }
+
+    // --- Scalar state carried in the header ---
+    static final class Header {
+        long pc;
+        long clockCycle;
+        long instructionsRetired;
+        boolean hazardStall;
+        boolean dataForwardingStall;
+        boolean branchStall;
+        boolean missStall;
+        boolean unitStall;
+        boolean branchMispredictFlush;
+    }
+
+    // --- Writer ---
+    static final class Writer {
+        private ByteBuffer state = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+
+        private ByteBuffer ensure(int bytes) {
+            if (state.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(state.capacity() * 2, state.position() + bytes))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                state.flip();
+                grown.put(state);
+                state = grown;
+            }
+            return state;
+        }
+
+        void writeRegisters(PipelinedCPU.RegisterFile registers) {
+            ensure(32 * 4);
+            for (int r = 0; r < 32; r++) {
+                state.putInt(registers.read(r));
+            }
+        }
+
+        void writeText(long textBase, DecodedInstruction[] text) {
+            ensure(12 + text.length * 4).putLong(textBase).putInt(text.length);
+            for (DecodedInstruction instruction : text) {
+                state.putInt(instruction.word);
+            }
+        }
+
+        void writeLatch(PipelinedCPU.IFIDRegister r) {
+            ensure(46).put(flag(r.valid)).put(flag(r.predictedTaken)).putLong(r.instructionPC).putLong(r.nextPC)
+                    .putLong(r.predictedTarget).putLong(r.pathHistory).putLong(r.branchHistory)
+                    .putInt(r.instruction.word);
+        }
+
+        void writeLatch(PipelinedCPU.IDEXRegister r) {
+            ensure(82).put(flag(r.valid)).put(flag(r.regWrite)).put(flag(r.memRead)).put(flag(r.memWrite))
+                    .put(flag(r.branch)).put(flag(r.jump)).put(flag(r.useImm)).put((byte) r.writeBackMux)
+                    .put((byte) r.memSize.ordinal()).put((byte) r.aluOp.ordinal()).put((byte) r.rs1)
+                    .put((byte) r.rs2).put((byte) r.rd).putLong(r.instructionPC).putLong(r.nextPC)
+                    .putLong(r.readData1).putLong(r.readData2).putLong(r.immediate).put(flag(r.predictedTaken))
+                    .putLong(r.predictedTarget).putLong(r.pathHistory).putLong(r.branchHistory)
+                    .putInt(r.instruction.word);
+        }
+
+        void writeLatch(PipelinedCPU.EXMEMRegister r) {
+            ensure(44).put(flag(r.valid)).put(flag(r.regWrite)).put(flag(r.memRead)).put(flag(r.memWrite))
+                    .put(flag(r.branchTaken)).put((byte) r.writeBackMux).put((byte) r.memSize.ordinal())
+                    .put((byte) r.rd).putLong(r.instructionPC).putLong(r.aluResult).putLong(r.writeData)
+                    .putLong(r.branchTarget).putInt(r.instruction.word);
+        }
+
+        void writeLatch(PipelinedCPU.MEMWBRegister r) {
+            ensure(32).put(flag(r.valid)).put(flag(r.regWrite)).put((byte) r.writeBackMux).put((byte) r.rd)
+                    .putLong(r.instructionPC).putLong(r.aluResult).putLong(r.readData)
+                    .putInt(r.instruction.word);
+        }
+
+        void writeBranchPredictor(PipelinedCPU.BranchPredictor bpu) {
+            DirectionPredictor direction = bpu.getDirectionPredictor();
+            BranchTargetBuffer targets = bpu.getTargetBuffer();
+            byte[] kind = direction.kind.getBytes(StandardCharsets.US_ASCII);
+            ensure(42 + kind.length + direction.stateSize() + targets.stateSize());
+            state.putLong(bpu.predictions).putLong(bpu.mispredictions);
+            state.put((byte) kind.length).put(kind).putInt(direction.entries).putInt(direction.historyBits);
+            direction.saveState(state);
+            // BTB: geometry, then state
+            state.putInt(targets.entries).putInt(targets.ways).put((byte) targets.tagBits)
+                    .put((byte) Arrays.asList(BranchTargetBuffer.POLICIES).indexOf(targets.policy));
+            targets.saveState(state);
+            // Jump predictors: size (0 = off), then state
+            ReturnAddressStack returnStack = bpu.getReturnStack();
+            IndirectTargetPredictor indirect = bpu.getIndirectPredictor();
+            ensure(8 + (returnStack == null ? 0 : returnStack.stateSize())
+                    + (indirect == null ? 0 : indirect.stateSize()));
+            state.putInt(returnStack == null ? 0 : returnStack.depth);
+            if (returnStack != null) {
+                returnStack.saveState(state);
+            }
+            state.putInt(indirect == null ? 0 : indirect.entries);
+            if (indirect != null) {
+                indirect.saveState(state);
+            }
+        }
+
+        void writeCaches(MemoryHierarchy caches) {
+            caches.saveState(ensure(caches.stateSize()));
+        }
+
+        void writeUnits(FunctionalUnits units) {
+            units.saveState(ensure(units.stateSize()));
+        }
+
+        void writeCounters(PerfCounters perf) {
+            long[] values = perf.values();
+            ensure(4 + values.length * 8).putInt(values.length);
+            for (long value : values) {
+                state.putLong(value);
+            }
+        }
+
+        private static byte flag(boolean value) {
+            return (byte) (value ? 1 : 0);
+        }
+
+        // Write the header, the state section collected so far and every allocated page of 'memory'
+        void finish(String path, Header header, PagedMemory memory) throws IOException {
+            int pageCount = memory.getAllocatedPages();
+            long stateLength = state.position();
+            long directoryOffset = HEADER_SIZE + stateLength;
+            long pagesOffset = alignUp(directoryOffset + 8L * pageCount, PagedMemory.PAGE_SIZE);
+
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int flags = (header.hazardStall ? FLAG_HAZARD_STALL : 0)
+                    | (header.dataForwardingStall ? FLAG_FORWARDING_STALL : 0)
+                    | (header.branchMispredictFlush ? FLAG_MISPREDICT_FLUSH : 0)
+                    | (header.branchStall ? FLAG_BRANCH_STALL : 0)
+                    | (header.missStall ? FLAG_MISS_STALL : 0)
+                    | (header.unitStall ? FLAG_UNIT_STALL : 0);
+            head.putInt(MAGIC).putInt(VERSION).putLong(header.pc).putLong(header.clockCycle)
+                    .putLong(header.instructionsRetired).putInt(flags).putInt(pageCount)
+                    .putLong(HEADER_SIZE).putLong(stateLength).putLong(directoryOffset).putLong(pagesOffset);
+            head.clear();
+
+            ByteBuffer directory = ByteBuffer.allocate(8 * pageCount).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer[] pages = new ByteBuffer[pageCount];
+            int[] index = {0};
+            memory.forEachPage((base, page) -> {
+                directory.putLong(base);
+                pages[index[0]++] = ByteBuffer.wrap(page);
+            });
+            directory.flip();
+            state.flip();
+
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, head);
+                writeFully(channel, state);
+                writeFully(channel, directory);
+                channel.position(pagesOffset);
+                for (ByteBuffer page : pages) {
+                    writeFully(channel, page);
+                }
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static long alignUp(long value, int alignment) {
+            return (value + alignment - 1) & -alignment;
+        }
+    }
+
+    // --- Reader ---
+    // Sections must be read back in the order they were written.
+    static final class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final MappedByteBuffer file;
+        private final ByteBuffer state;
+        private final Map<Integer, DecodedInstruction> decoded = new HashMap<>();
+        final Header header = new Header();
+        private final int pageCount;
+        private final long directoryOffset;
+        private final long pagesOffset;
+
+        Reader(String path) throws IOException {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                file.order(ByteOrder.LITTLE_ENDIAN);
+                if (size < HEADER_SIZE || file.getInt() != MAGIC) {
+                    throw new IOException(path + " is not a simulator checkpoint");
+                }
+                int version = file.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported checkpoint version " + version);
+                }
+                header.pc = file.getLong();
+                header.clockCycle = file.getLong();
+                header.instructionsRetired = file.getLong();
+                int flags = file.getInt();
+                header.hazardStall = (flags & FLAG_HAZARD_STALL) != 0;
+                header.dataForwardingStall = (flags & FLAG_FORWARDING_STALL) != 0;
+                header.branchStall = (flags & FLAG_BRANCH_STALL) != 0;
+                header.missStall = (flags & FLAG_MISS_STALL) != 0;
+                header.unitStall = (flags & FLAG_UNIT_STALL) != 0;
+                header.branchMispredictFlush = (flags & FLAG_MISPREDICT_FLUSH) != 0;
+                pageCount = file.getInt();
+                long stateOffset = file.getLong();
+                long stateLength = file.getLong();
+                directoryOffset = file.getLong();
+                pagesOffset = file.getLong();
+                // A truncated or damaged file must fail here, not as an index error halfway through restoring
+                if (pageCount < 0 || stateOffset < HEADER_SIZE || stateLength < 0 || stateOffset + stateLength > size
+                        || directoryOffset < 0 || directoryOffset + 8L * pageCount > size || pagesOffset < 0
+                        || pagesOffset + (long) pageCount * PagedMemory.PAGE_SIZE > size || size > Integer.MAX_VALUE) {
+                    throw new IOException(path + " is truncated or corrupt");
+                }
+                state = file.slice((int) stateOffset, (int) stateLength).order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                channel.close(); // The caller never gets a Reader to close
+                throw e;
+            }
+        }
+
+        void readRegisters(PipelinedCPU.RegisterFile registers) {
+            for (int r = 0; r < 32; r++) {
+                registers.write(r, state.getInt());
+            }
+        }
+
+        long readTextBase() {
+            return state.getLong();
+        }
+
+        DecodedInstruction[] readText() {
+            DecodedInstruction[] text = new DecodedInstruction[state.getInt()];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = instruction(state.getInt());
+            }
+            return text;
+        }
+
+        void readLatch(PipelinedCPU.IFIDRegister r) {
+            r.valid = flag();
+            r.predictedTaken = flag();
+            r.instructionPC = state.getLong();
+            r.nextPC = state.getLong();
+            r.predictedTarget = state.getLong();
+            r.pathHistory = state.getLong();
+            r.branchHistory = state.getLong();
+            r.instruction = instruction(state.getInt());
+        }
+
+        void readLatch(PipelinedCPU.IDEXRegister r) {
+            r.valid = flag();
+            r.regWrite = flag();
+            r.memRead = flag();
+            r.memWrite = flag();
+            r.branch = flag();
+            r.jump = flag();
+            r.useImm = flag();
+            r.writeBackMux = state.get();
+            r.memSize = MemSize.values()[state.get()];
+            r.aluOp = AluOp.values()[state.get()];
+            r.rs1 = state.get();
+            r.rs2 = state.get();
+            r.rd = state.get();
+            r.instructionPC = state.getLong();
+            r.nextPC = state.getLong();
+            r.readData1 = state.getLong();
+            r.readData2 = state.getLong();
+            r.immediate = state.getLong();
+            r.predictedTaken = flag();
+            r.predictedTarget = state.getLong();
+            r.pathHistory = state.getLong();
+            r.branchHistory = state.getLong();
+            r.instruction = instruction(state.getInt());
+        }
+
+        void readLatch(PipelinedCPU.EXMEMRegister r) {
+            r.valid = flag();
+            r.regWrite = flag();
+            r.memRead = flag();
+            r.memWrite = flag();
+            r.branchTaken = flag();
+            r.writeBackMux = state.get();
+            r.memSize = MemSize.values()[state.get()];
+            r.rd = state.get();
+            r.instructionPC = state.getLong();
+            r.aluResult = state.getLong();
+            r.writeData = state.getLong();
+            r.branchTarget = state.getLong();
+            r.instruction = instruction(state.getInt());
+        }
+
+        void readLatch(PipelinedCPU.MEMWBRegister r) {
+            r.valid = flag();
+            r.regWrite = flag();
+            r.writeBackMux = state.get();
+            r.rd = state.get();
+            r.instructionPC = state.getLong();
+            r.aluResult = state.getLong();
+            r.readData = state.getLong();
+            r.instruction = instruction(state.getInt());
+        }
+
+        void readBranchPredictor(PipelinedCPU.BranchPredictor bpu) {
+            bpu.predictions = state.getLong();
+            bpu.mispredictions = state.getLong();
+            byte[] kind = new byte[state.get()];
+            state.get(kind);
+            int entries = state.getInt();
+            int historyBits = state.getInt();
+            DirectionPredictor direction = DirectionPredictor.create(new String(kind, StandardCharsets.US_ASCII),
+                    entries, historyBits); // The checkpoint's predictor replaces the configured one
+            direction.restoreState(state);
+            bpu.setDirectionPredictor(direction);
+            int btbEntries = state.getInt();
+            int btbWays = state.getInt();
+            int btbTagBits = state.get();
+            BranchTargetBuffer targets = new BranchTargetBuffer(btbEntries, btbWays, btbTagBits,
+                    BranchTargetBuffer.POLICIES[state.get()]);
+            targets.restoreState(state);
+            bpu.setTargetBuffer(targets);
+            int depth = state.getInt();
+            ReturnAddressStack returnStack = depth == 0 ? null : new ReturnAddressStack(depth);
+            if (returnStack != null) {
+                returnStack.restoreState(state);
+            }
+            bpu.setReturnStack(returnStack);
+            int indirectEntries = state.getInt();
+            IndirectTargetPredictor indirect = indirectEntries == 0 ? null : new IndirectTargetPredictor(indirectEntries);
+            if (indirect != null) {
+                indirect.restoreState(state);
+            }
+            bpu.setIndirectPredictor(indirect);
+        }
+
+        // The checkpoint's caches replace the configured ones
+        void readCaches(MemoryHierarchy caches) {
+            caches.restoreState(state);
+        }
+
+        void readUnits(FunctionalUnits units) {
+            units.restoreState(state);
+        }
+
+        void readCounters(PerfCounters perf) {
+            long[] values = new long[state.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = state.getLong();
+            }
+            perf.setValues(values);
+        }
+
+        // Replace the contents of 'memory' with the checkpointed pages
+        void readPages(PagedMemory memory) {
+            memory.clear();
+            for (int i = 0; i < pageCount; i++) {
+                long base = file.getLong((int) (directoryOffset + 8L * i));
+                int offset = (int) (pagesOffset + (long) i * PagedMemory.PAGE_SIZE);
+                memory.restorePage(base, file.slice(offset, PagedMemory.PAGE_SIZE));
+            }
+        }
+
+        private boolean flag() {
+            return state.get() != 0;
+        }
+
+        private DecodedInstruction instruction(int word) {
+            return decoded.computeIfAbsent(word, DecodedInstruction::decode);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// Immutable, fully decoded form of one instruction word.
+// Built once per static instruction when the program is loaded, so the pipeline's
+// fetch/decode stages only copy fields instead of re-parsing the hex each cycle.
+final class DecodedInstruction {
+
+    // Opcode classes (bits 6:0)
+    static final int OP_R_TYPE = 0b0110011;
+    static final int OP_I_ARITH = 0b0010011;
+    static final int OP_LOAD = 0b0000011;
+    static final int OP_JALR = 0b1100111;
+    static final int OP_STORE = 0b0100011;
+    static final int OP_BRANCH = 0b1100011;
+    static final int OP_LUI = 0b0110111;
+    static final int OP_AUIPC = 0b0010111;
+    static final int OP_JAL = 0b1101111;
+
+    static final int HALT_WORD = 0xDEADBEEF; // End-of-text marker emitted by the assembler
+
+    static final DecodedInstruction NOP = decode(0);
+
+    // Raw encoding
+    final int word;
+    final String hex; // Formatted once, used by the pipeline register printers
+    final int opcode;
+    final int rd;
+    final int rs1;
+    final int rs2;
+    final long immediate; // Sign-extended immediate for the instruction's format
+
+    // Control Signals
+    final AluOp aluOp;
+    final boolean regWrite;
+    final boolean memRead;
+    final boolean memWrite;
+    final boolean branch; // B-Type
+    final boolean jump; // JAL or JALR
+    final boolean useImm;
+    final int writeBackMux; // 0: ALU result, 1: Mem data, 2: PC+4
+    final MemSize memSize;
+
+    final boolean valid; // False for unsupported opcodes
+    final boolean nop; // All-zero word (also what fetch returns outside the text segment)
+    final boolean halt; // 0xDEADBEEF end marker
+    final boolean mightBeBranch; // B-Type, JAL or JALR opcode; checked by fetch for prediction
+
+    private DecodedInstruction(int word, int opcode, long immediate, AluOp aluOp, boolean regWrite,
+                               boolean memRead, boolean memWrite, boolean branch, boolean jump, boolean useImm,
+                               int writeBackMux, MemSize memSize, boolean valid) {
+        this.word = word;
+        this.hex = String.format("0x%08X", word);
+        this.opcode = opcode;
+        this.rd = (word >>> 7) & 0x1F; // bits 11:7
+        this.rs1 = (word >>> 15) & 0x1F; // bits 19:15
+        this.rs2 = (word >>> 20) & 0x1F; // bits 24:20
+        this.immediate = immediate;
+        this.aluOp = aluOp;
+        this.regWrite = regWrite;
+        this.memRead = memRead;
+        this.memWrite = memWrite;
+        this.branch = branch;
+        this.jump = jump;
+        this.useImm = useImm;
+        this.writeBackMux = writeBackMux;
+        this.memSize = memSize;
+        this.valid = valid;
+        this.nop = word == 0;
+        this.halt = word == HALT_WORD;
+        this.mightBeBranch = opcode == OP_BRANCH || opcode == OP_JAL || opcode == OP_JALR;
+    }
+
+    // Decode one 32-bit instruction word
+    static DecodedInstruction decode(int word) {
+        int opcode = word & 0x7F; // bits 6:0
+        int funct3 = (word >>> 12) & 0x7; // bits 14:12
+        int funct7 = (word >>> 25) & 0x7F; // bits 31:25
+
+        if (word == 0) {
+            return new DecodedInstruction(word, opcode, 0, AluOp.NOP, false, false, false, false, false, false,
+                    0, MemSize.WORD, true);
+        }
+
+        switch (opcode) {
+            case OP_R_TYPE: // add, sub, slt, xor, or, and, sll, srl, sra, mul, div, rem
+                return new DecodedInstruction(word, opcode, 0, decodeRType(funct3, funct7), true, false, false,
+                        false, false, false, 0, MemSize.WORD, true);
+
+            case OP_I_ARITH: // addi, slti, xori, ori, andi, slli, srli, srai
+                return new DecodedInstruction(word, opcode, immI(word), decodeITypeArith(funct3, funct7), true,
+                        false, false, false, false, true, 0, MemSize.WORD, true);
+
+            case OP_LOAD: { // lb, lh, lw <- Assuming RV32, no ld
+                // LBU, LHU would set size but also need different handling in MEM/WB for zero extension
+                MemSize memSize = decodeMemSize(funct3);
+                return new DecodedInstruction(word, opcode, immI(word), memSize == null ? AluOp.INVALID : AluOp.ADD,
+                        true, true, false, false, false, true, 1, memSize == null ? MemSize.WORD : memSize, true);
+            }
+
+            case OP_JALR: // Write PC+4, special handling in EX
+                return new DecodedInstruction(word, opcode, immI(word), AluOp.JALR, true, false, false, false, true,
+                        true, 2, MemSize.WORD, true);
+
+            case OP_STORE: { // sb, sh, sw
+                MemSize memSize = decodeMemSize(funct3);
+                return new DecodedInstruction(word, opcode, immS(word), memSize == null ? AluOp.INVALID : AluOp.ADD,
+                        false, false, true, false, false, true, 0, memSize == null ? MemSize.WORD : memSize, true);
+            }
+
+            case OP_BRANCH: // beq, bne, blt, bge, bltu, bgeu
+                return new DecodedInstruction(word, opcode, immB(word), decodeBType(funct3), false, false, false,
+                        true, false, false, 0, MemSize.WORD, true);
+
+            case OP_LUI: // imm[31:12] << 12, passed through the ALU
+                return new DecodedInstruction(word, opcode, word & 0xFFFFF000, AluOp.LUI, true, false, false, false,
+                        false, true, 0, MemSize.WORD, true);
+
+            case OP_AUIPC:
+                return new DecodedInstruction(word, opcode, word & 0xFFFFF000, AluOp.AUIPC, true, false, false, false,
+                        false, true, 0, MemSize.WORD, true);
+
+            case OP_JAL: // Write PC+4, special handling in EX
+                return new DecodedInstruction(word, opcode, immJ(word), AluOp.JAL, true, false, false, false, true,
+                        false, 2, MemSize.WORD, true);
+
+            default:
+                return new DecodedInstruction(word, opcode, 0, AluOp.INVALID, false, false, false, false, false, false,
+                        0, MemSize.WORD, false);
+        }
+    }
+
+    // --- Immediate Extraction (arithmetic shifts on the int word do the sign extension) ---
+    private static long immI(int word) {
+        return word >> 20;
+    }
+
+    private static long immS(int word) {
+        return ((word >> 25) << 5) | ((word >>> 7) & 0x1F);
+    }
+
+    private static long immB(int word) {
+        return ((word >> 31) << 12) | (((word >>> 7) & 0x1) << 11) | (((word >>> 25) & 0x3F) << 5)
+                | (((word >>> 8) & 0xF) << 1);
+    }
+
+    private static long immJ(int word) {
+        return ((word >> 31) << 20) | (((word >>> 12) & 0xFF) << 12) | (((word >>> 20) & 0x1) << 11)
+                | (((word >>> 21) & 0x3FF) << 1);
+    }
+
+    // --- Helper Decode Methods ---
+    private static MemSize decodeMemSize(int funct3) {
+        switch (funct3) {
+            case 0b000:
+                return MemSize.BYTE;
+            case 0b001:
+                return MemSize.HALF;
+            case 0b010:
+                return MemSize.WORD;
+            default:
+                return null;
+        }
+    }
+
+    private static AluOp decodeRType(int funct3, int funct7) {
+        switch (funct3) {
+            case 0b000:
+                return (funct7 == 0b0000000) ? AluOp.ADD
+                        : (funct7 == 0b0100000) ? AluOp.SUB : (funct7 == 0b0000001) ? AluOp.MUL : AluOp.INVALID;
+            case 0b001:
+                return (funct7 == 0b0000000) ? AluOp.SLL : (funct7 == 0b0000001) ? AluOp.MULH : AluOp.INVALID; // MULH needs higher
+            // bits
+            case 0b010:
+                return (funct7 == 0b0000000) ? AluOp.SLT : (funct7 == 0b0000001) ? AluOp.MULHSU : AluOp.INVALID;
+            case 0b011:
+                return (funct7 == 0b0000000) ? AluOp.SLTU : (funct7 == 0b0000001) ? AluOp.MULHU : AluOp.INVALID; // SLTU needs
+            // unsigned
+            // comparison
+            case 0b100:
+                return (funct7 == 0b0000000) ? AluOp.XOR : (funct7 == 0b0000001) ? AluOp.DIV : AluOp.INVALID;
+            case 0b101:
+                return (funct7 == 0b0000000) ? AluOp.SRL
+                        : (funct7 == 0b0100000) ? AluOp.SRA : (funct7 == 0b0000001) ? AluOp.DIVU : AluOp.INVALID;
+            case 0b110:
+                return (funct7 == 0b0000000) ? AluOp.OR : (funct7 == 0b0000001) ? AluOp.REM : AluOp.INVALID;
+            case 0b111:
+                return (funct7 == 0b0000000) ? AluOp.AND : (funct7 == 0b0000001) ? AluOp.REMU : AluOp.INVALID;
+            default:
+                return AluOp.INVALID;
+        }
+    }
+
+    private static AluOp decodeITypeArith(int funct3, int funct7) {
+        switch (funct3) {
+            case 0b000:
+                return AluOp.ADDI;
+            case 0b010:
+                return AluOp.SLTI;
+            case 0b011:
+                return AluOp.SLTIU; // Needs unsigned comparison
+            case 0b100:
+                return AluOp.XORI;
+            case 0b110:
+                return AluOp.ORI;
+            case 0b111:
+                return AluOp.ANDI;
+            case 0b001:
+                return AluOp.SLLI; // funct7 is 0 for SLLI
+            case 0b101:
+                return (funct7 == 0b0000000) ? AluOp.SRLI : (funct7 == 0b0100000) ? AluOp.SRAI : AluOp.INVALID; // Need funct7 for
+            // SRLI/SRAI
+            default:
+                return AluOp.INVALID;
+        }
+    }
+
+    private static AluOp decodeBType(int funct3) {
+        switch (funct3) {
+            case 0b000:
+                return AluOp.BEQ;
+            case 0b001:
+                return AluOp.BNE;
+            case 0b100:
+                return AluOp.BLT;
+            case 0b101:
+                return AluOp.BGE;
+            case 0b110:
+                return AluOp.BLTU; // Needs unsigned comparison
+            case 0b111:
+                return AluOp.BGEU; // Needs unsigned comparison
+            default:
+                return AluOp.INVALID;
+        }
+    }
+}
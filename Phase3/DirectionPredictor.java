@@ -0,0 +1,375 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Branch direction predictors with fixed-size, power-of-two tables (--bpu, --bpu-entries,
+// --bpu-history). All state lives in byte arrays plus a global history register, so lookups
+// never allocate or box, and checkpoints and trace dumps can treat every predictor the same way.
+//
+//   onebit     - last outcome per entry (the original predictor, now finite)
+//   bimodal    - 2-bit saturating counters indexed by PC
+//   gshare     - 2-bit counters indexed by PC xor global history
+//   tournament - bimodal and gshare, with a 2-bit chooser per PC picking between them
+//   tage       - bimodal base plus four tagged tables over geometrically longer histories
+abstract class DirectionPredictor {
+
+    static final String[] KINDS = {"onebit", "bimodal", "gshare", "tournament", "tage"};
+    static final int DEFAULT_ENTRIES = 4096;
+
+    final String kind;
+    final int entries; // Per table
+    final int historyBits; // Global history used (0 for PC-indexed predictors)
+    final int indexBits;
+    final int mask;
+    long history; // Resolved outcomes, newest in bit 0
+    long updates; // Branches trained so far
+
+    // Every table in a fixed order, with a display name and the value it starts at
+    final byte[][] tables;
+    private final String[] tableNames;
+    private final byte[] initial;
+
+    DirectionPredictor(String kind, int entries, int historyBits, String[] tableNames, byte[] initial) {
+        this.kind = kind;
+        this.entries = entries;
+        this.historyBits = historyBits;
+        this.indexBits = Integer.numberOfTrailingZeros(entries);
+        this.mask = entries - 1;
+        this.tableNames = tableNames;
+        this.initial = initial;
+        this.tables = new byte[tableNames.length][];
+        for (int t = 0; t < tables.length; t++) {
+            tables[t] = new byte[entries];
+            Arrays.fill(tables[t], initial[t]);
+        }
+    }
+
+    // 'historyBits' <= 0 picks the predictor's default
+    static DirectionPredictor create(String kind, int entries, int historyBits) {
+        if (entries < 16 || Integer.bitCount(entries) != 1) {
+            throw new IllegalArgumentException("Predictor size must be a power of two >= 16: " + entries);
+        }
+        int indexBits = Integer.numberOfTrailingZeros(entries);
+        switch (kind) {
+            case "onebit":
+                return new OneBit(entries);
+            case "bimodal":
+                return new Bimodal(entries);
+            case "gshare":
+                return new Gshare(entries, historyBits > 0 ? Math.min(historyBits, 64) : indexBits);
+            case "tournament":
+                return new Tournament(entries, historyBits > 0 ? Math.min(historyBits, 64) : indexBits);
+            case "tage":
+                return new Tage(entries, historyBits > 0 ? Math.min(historyBits, 64) : 32);
+            default:
+                throw new IllegalArgumentException("Unknown predictor " + kind);
+        }
+    }
+
+    abstract boolean predict(long pc);
+
+    // Train with the resolved outcome (also shifts it into the global history). 'fetchHistory'
+    // is the history predict() saw, so training hits the entry that made the prediction even if
+    // older branches have resolved since.
+    abstract void update(long pc, long fetchHistory, boolean taken);
+
+    // Train against the current history (functional warming, where nothing is in flight)
+    final void update(long pc, boolean taken) {
+        update(pc, history, taken);
+    }
+
+    final int pcIndex(long pc) {
+        return (int) (pc >>> 2) & mask;
+    }
+
+    final void pushHistory(boolean taken) {
+        history = (history << 1) | (taken ? 1 : 0);
+        updates++;
+    }
+
+    // The newest 'length' bits of 'ghr' xor-folded down to 'bits' bits
+    static int foldedHistory(long ghr, int length, int bits) {
+        long h = length >= 64 ? ghr : ghr & ((1L << length) - 1);
+        int folded = 0;
+        while (h != 0) {
+            folded ^= (int) h & ((1 << bits) - 1);
+            h >>>= bits;
+        }
+        return folded;
+    }
+
+    static byte saturate(byte counter, boolean up, int min, int max) {
+        if (up) {
+            return counter < max ? (byte) (counter + 1) : counter;
+        }
+        return counter > min ? (byte) (counter - 1) : counter;
+    }
+
+    String describe() {
+        return String.format(Locale.ROOT, "%s, %d entries%s", kind, entries,
+                historyBits > 0 ? ", " + historyBits + "-bit history" : "");
+    }
+
+    // --- Checkpoints ---
+
+    int stateSize() {
+        return 16 + tables.length * entries;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(history).putLong(updates);
+        for (byte[] table : tables) {
+            out.put(table);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        history = in.getLong();
+        updates = in.getLong();
+        for (byte[] table : tables) {
+            in.get(table);
+        }
+    }
+
+    // --- Trace Dump: entries that have moved off their initial value ---
+
+    void dump(StringBuilder sb) {
+        sb.append(" Direction Predictor: ").append(describe());
+        if (historyBits > 0) {
+            long ghr = historyBits >= 64 ? history : history & ((1L << historyBits) - 1);
+            sb.append(String.format(", GHR=0x%X", ghr));
+        }
+        sb.append('\n');
+        for (int t = 0; t < tables.length; t++) {
+            sb.append(' ').append(tableNames[t]).append(" (index -> value):\n");
+            boolean any = false;
+            for (int i = 0; i < entries; i++) {
+                if (tables[t][i] != initial[t]) {
+                    sb.append(String.format("  0x%03X -> %d\n", i, tables[t][i]));
+                    any = true;
+                }
+            }
+            if (!any) {
+                sb.append("  <Empty>\n");
+            }
+        }
+    }
+
+    // --- Implementations ---
+
+    static final class OneBit extends DirectionPredictor {
+        private final byte[] bits = tables[0];
+
+        OneBit(int entries) {
+            super("onebit", entries, 0, new String[] {"History Table [0=NT,1=T]"}, new byte[] {0});
+        }
+
+        @Override
+        boolean predict(long pc) {
+            return bits[pcIndex(pc)] != 0;
+        }
+
+        @Override
+        void update(long pc, long fetchHistory, boolean taken) {
+            bits[pcIndex(pc)] = (byte) (taken ? 1 : 0);
+            pushHistory(taken);
+        }
+    }
+
+    static final class Bimodal extends DirectionPredictor {
+        private final byte[] counters = tables[0];
+
+        Bimodal(int entries) {
+            super("bimodal", entries, 0, new String[] {"Counters [0-1=NT,2-3=T]"}, new byte[] {1});
+        }
+
+        @Override
+        boolean predict(long pc) {
+            return counters[pcIndex(pc)] >= 2;
+        }
+
+        @Override
+        void update(long pc, long fetchHistory, boolean taken) {
+            int i = pcIndex(pc);
+            counters[i] = saturate(counters[i], taken, 0, 3);
+            pushHistory(taken);
+        }
+    }
+
+    static final class Gshare extends DirectionPredictor {
+        private final byte[] counters = tables[0];
+
+        Gshare(int entries, int historyBits) {
+            super("gshare", entries, historyBits, new String[] {"Counters [0-1=NT,2-3=T]"}, new byte[] {1});
+        }
+
+        private int index(long pc, long ghr) {
+            return (pcIndex(pc) ^ foldedHistory(ghr, historyBits, indexBits)) & mask;
+        }
+
+        @Override
+        boolean predict(long pc) {
+            return counters[index(pc, history)] >= 2;
+        }
+
+        @Override
+        void update(long pc, long fetchHistory, boolean taken) {
+            int i = index(pc, fetchHistory);
+            counters[i] = saturate(counters[i], taken, 0, 3);
+            pushHistory(taken);
+        }
+    }
+
+    static final class Tournament extends DirectionPredictor {
+        private final byte[] local = tables[0];
+        private final byte[] global = tables[1];
+        private final byte[] chooser = tables[2];
+
+        Tournament(int entries, int historyBits) {
+            super("tournament", entries, historyBits,
+                    new String[] {"Bimodal Counters", "Gshare Counters", "Chooser [0-1=bimodal,2-3=gshare]"},
+                    new byte[] {1, 1, 1});
+        }
+
+        private int globalIndex(long pc, long ghr) {
+            return (pcIndex(pc) ^ foldedHistory(ghr, historyBits, indexBits)) & mask;
+        }
+
+        @Override
+        boolean predict(long pc) {
+            int i = pcIndex(pc);
+            return chooser[i] >= 2 ? global[globalIndex(pc, history)] >= 2 : local[i] >= 2;
+        }
+
+        @Override
+        void update(long pc, long fetchHistory, boolean taken) {
+            int i = pcIndex(pc);
+            int g = globalIndex(pc, fetchHistory);
+            boolean localCorrect = (local[i] >= 2) == taken;
+            boolean globalCorrect = (global[g] >= 2) == taken;
+            if (localCorrect != globalCorrect) {
+                chooser[i] = saturate(chooser[i], globalCorrect, 0, 3);
+            }
+            local[i] = saturate(local[i], taken, 0, 3);
+            global[g] = saturate(global[g], taken, 0, 3);
+            pushHistory(taken);
+        }
+    }
+
+    // TAGE-lite: a bimodal base predictor and four tagged tables using the newest
+    // historyBits/8, /4, /2 and all historyBits outcomes. The longest-history table whose tag
+    // matches provides the prediction. A misprediction allocates an entry in a longer table
+    // whose useful counter is zero. Useful counters are halved every USEFUL_RESET branches.
+    static final class Tage extends DirectionPredictor {
+        private static final int TAGGED = 4;
+        private static final int TAG_BITS = 7; // Stored with bit 7 set, so 0 means "never allocated"
+        private static final int USEFUL_RESET = 1 << 18;
+
+        private final byte[] base = tables[0];
+        private final byte[][] counters = new byte[TAGGED][]; // Signed 3-bit: >= 0 predicts taken
+        private final byte[][] tags = new byte[TAGGED][];
+        private final byte[][] useful = new byte[TAGGED][]; // 0..3
+        private final int[] lengths = new int[TAGGED];
+
+        Tage(int entries, int historyBits) {
+            super("tage", entries, historyBits, tableNames(), tableInitials());
+            for (int t = 0; t < TAGGED; t++) {
+                counters[t] = tables[1 + 3 * t];
+                tags[t] = tables[2 + 3 * t];
+                useful[t] = tables[3 + 3 * t];
+                lengths[t] = Math.max(1, historyBits >> (TAGGED - 1 - t));
+            }
+        }
+
+        private static String[] tableNames() {
+            String[] names = new String[1 + 3 * TAGGED];
+            names[0] = "Base Counters";
+            for (int t = 0; t < TAGGED; t++) {
+                names[1 + 3 * t] = "T" + (t + 1) + " Counters";
+                names[2 + 3 * t] = "T" + (t + 1) + " Tags";
+                names[3 + 3 * t] = "T" + (t + 1) + " Useful";
+            }
+            return names;
+        }
+
+        private static byte[] tableInitials() {
+            byte[] initial = new byte[1 + 3 * TAGGED];
+            initial[0] = 1;
+            return initial;
+        }
+
+        private int index(int t, long pc, long ghr) {
+            return (pcIndex(pc) ^ foldedHistory(ghr, lengths[t], indexBits) ^ (t << (indexBits - 2))) & mask;
+        }
+
+        private byte tag(int t, long pc, long ghr) {
+            int hash = (int) (pc >>> 2) ^ foldedHistory(ghr, lengths[t], TAG_BITS)
+                    ^ (foldedHistory(ghr, lengths[t], TAG_BITS - 1) << 1);
+            return (byte) ((hash & ((1 << TAG_BITS) - 1)) | 0x80);
+        }
+
+        // Longest-history table with a matching tag below 'below', or -1
+        private int match(long pc, long ghr, int below) {
+            for (int t = below - 1; t >= 0; t--) {
+                if (tags[t][index(t, pc, ghr)] == tag(t, pc, ghr)) {
+                    return t;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        boolean predict(long pc) {
+            int provider = match(pc, history, TAGGED);
+            return provider >= 0 ? counters[provider][index(provider, pc, history)] >= 0 : base[pcIndex(pc)] >= 2;
+        }
+
+        @Override
+        void update(long pc, long fetchHistory, boolean taken) {
+            int provider = match(pc, fetchHistory, TAGGED);
+            boolean basePrediction = base[pcIndex(pc)] >= 2;
+            boolean prediction;
+            if (provider >= 0) {
+                int i = index(provider, pc, fetchHistory);
+                prediction = counters[provider][i] >= 0;
+                int alt = match(pc, fetchHistory, provider);
+                boolean altPrediction = alt >= 0 ? counters[alt][index(alt, pc, fetchHistory)] >= 0 : basePrediction;
+                if (prediction != altPrediction) {
+                    useful[provider][i] = saturate(useful[provider][i], prediction == taken, 0, 3);
+                }
+                counters[provider][i] = saturate(counters[provider][i], taken, -4, 3);
+            } else {
+                prediction = basePrediction;
+                int i = pcIndex(pc);
+                base[i] = saturate(base[i], taken, 0, 3);
+            }
+
+            if (prediction != taken && provider < TAGGED - 1) {
+                boolean allocated = false;
+                for (int t = provider + 1; t < TAGGED && !allocated; t++) {
+                    int i = index(t, pc, fetchHistory);
+                    if (useful[t][i] == 0) {
+                        tags[t][i] = tag(t, pc, fetchHistory);
+                        counters[t][i] = (byte) (taken ? 0 : -1); // Weakly in the right direction
+                        allocated = true;
+                    }
+                }
+                if (!allocated) {
+                    for (int t = provider + 1; t < TAGGED; t++) {
+                        int i = index(t, pc, fetchHistory);
+                        useful[t][i] = saturate(useful[t][i], false, 0, 3);
+                    }
+                }
+            }
+
+            pushHistory(taken);
+            if ((updates & (USEFUL_RESET - 1)) == 0) {
+                for (byte[] u : useful) {
+                    for (int i = 0; i < u.length; i++) {
+                        u[i] >>= 1;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Main-memory timing behind the caches (--memory=dram, the default; --memory=fixed keeps the
+// flat --mem-latency). All timings are in CPU cycles.
+//
+// Addresses map row : bank : channel : column, so consecutive bytes share a row and the next row
+// over lands on the next channel, then the next bank. Each bank keeps one row open in its row
+// buffer; a read costs
+//   row hit       tCAS
+//   bank closed   tRCD + tCAS               (activate, then read)
+//   row conflict  tRP + tRCD + tCAS         (precharge the open row first)
+// plus any wait for the bank to finish earlier work, then tBurst on the channel's data bus.
+// With --dram-page=closed every access precharges its bank afterwards, so there are no hits
+// and no conflicts.
+//
+// Reads (line fills) get their latency the moment they arrive, since a stage may be waiting on
+// them, so they are served in arrival order. Writes (writebacks, write-through traffic) sit in a
+// write queue that idle banks drain in the background, FR-FCFS: writes to a bank's open row first,
+// then the oldest. A full queue forces the next write out, delaying whatever uses that bank next.
+final class DramController {
+
+    private static final int HISTOGRAM_BUCKETS = 9; // <16, <32, <64, ..., <2048, 2048+ cycles
+
+    final int channels;
+    final int banks; // Per channel
+    final int rowSize; // Bytes
+    final int tRCD;
+    final int tCAS;
+    final int tRP;
+    final int tBurst;
+    final boolean closedPage;
+    final int writeQueueSize;
+
+    // Per bank (channel * banks + bank)
+    private final long[] openRow; // -1 = precharged
+    private final long[] bankReady; // Cycle the bank can take its next command
+    private final long[] busFree; // Per channel: cycle the data bus frees
+
+    // Write queue, oldest first
+    private final long[] queuedAddress;
+    private final long[] queuedCycle;
+    private int queued;
+
+    // Statistics
+    long reads;
+    long writes;
+    long rowHits;
+    long rowEmpty; // Bank precharged: activate only
+    long rowConflicts;
+    long forcedWrites; // Writes drained early because the queue was full
+    long readLatencyTotal;
+    final long[] readLatencies = new long[HISTOGRAM_BUCKETS];
+
+    DramController(int channels, int banks, int rowSize, int tRCD, int tCAS, int tRP, int tBurst, String page,
+            int writeQueueSize) {
+        if (channels < 1 || banks < 1 || Integer.bitCount(rowSize) != 1 || rowSize < 64) {
+            throw new IllegalArgumentException("DRAM needs >= 1 channel and bank and a power-of-two row size >= 64: "
+                    + channels + "/" + banks + "/" + rowSize);
+        }
+        if (tRCD < 0 || tCAS < 1 || tRP < 0 || tBurst < 1) {
+            throw new IllegalArgumentException("DRAM timings must be tRCD, tRP >= 0 and tCAS, tBurst >= 1");
+        }
+        if (!page.equals("open") && !page.equals("closed")) {
+            throw new IllegalArgumentException("--dram-page must be open or closed: " + page);
+        }
+        if (writeQueueSize < 1) {
+            throw new IllegalArgumentException("DRAM write queue needs at least one entry: " + writeQueueSize);
+        }
+        this.channels = channels;
+        this.banks = banks;
+        this.rowSize = rowSize;
+        this.tRCD = tRCD;
+        this.tCAS = tCAS;
+        this.tRP = tRP;
+        this.tBurst = tBurst;
+        this.closedPage = page.equals("closed");
+        this.writeQueueSize = writeQueueSize;
+        this.openRow = new long[channels * banks];
+        this.bankReady = new long[channels * banks];
+        this.busFree = new long[channels];
+        this.queuedAddress = new long[writeQueueSize];
+        this.queuedCycle = new long[writeQueueSize];
+        Arrays.fill(openRow, -1);
+    }
+
+    // --- Address Mapping ---
+
+    private int channel(long address) {
+        return (int) ((address / rowSize) % channels);
+    }
+
+    private int bank(long address) {
+        return channel(address) * banks + (int) ((address / rowSize / channels) % banks);
+    }
+
+    private long row(long address) {
+        return address / rowSize / channels / banks;
+    }
+
+    // --- Requests ---
+
+    // Line fill arriving at 'cycle'; returns the cycles until its data is back
+    int read(long address, long cycle) {
+        address &= 0xFFFFFFFFL;
+        drain(cycle);
+        long done = serve(address, cycle);
+        int latency = (int) (done - cycle);
+        reads++;
+        readLatencyTotal += latency;
+        readLatencies[Math.min(HISTOGRAM_BUCKETS - 1,
+                Math.max(0, 63 - Long.numberOfLeadingZeros(Math.max(1, latency)) - 3))]++;
+        return latency;
+    }
+
+    // Buffered write arriving at 'cycle'; nothing waits for it
+    void write(long address, long cycle) {
+        address &= 0xFFFFFFFFL;
+        drain(cycle);
+        if (queued == writeQueueSize) {
+            forcedWrites++;
+            serve(dequeue(pickWrite()), cycle);
+        }
+        queuedAddress[queued] = address;
+        queuedCycle[queued] = cycle;
+        queued++;
+    }
+
+    // Issue the access at 'address' as soon as its bank allows from 'cycle'; returns when its
+    // burst ends
+    private long serve(long address, long cycle) {
+        int b = bank(address);
+        long row = row(address);
+        long start = Math.max(cycle, bankReady[b]);
+        long columnDone;
+        if (openRow[b] == row) {
+            rowHits++;
+            columnDone = start + tCAS;
+        } else if (openRow[b] == -1) {
+            rowEmpty++;
+            columnDone = start + tRCD + tCAS;
+        } else {
+            rowConflicts++;
+            columnDone = start + tRP + tRCD + tCAS;
+        }
+        int c = channel(address);
+        long done = Math.max(columnDone, busFree[c]) + tBurst;
+        busFree[c] = done;
+        if (closedPage) {
+            openRow[b] = -1; // Auto-precharge
+            bankReady[b] = columnDone + tRP;
+        } else {
+            openRow[b] = row;
+            bankReady[b] = columnDone - tCAS + tBurst; // Column commands to an open row pipeline
+        }
+        return done;
+    }
+
+    // Background write drain: while some queued write's bank is idle before 'cycle', serve the
+    // FR-FCFS pick among those
+    private void drain(long cycle) {
+        while (queued > 0) {
+            int pick = pickWrite(cycle);
+            if (pick < 0) {
+                return;
+            }
+            long arrival = queuedCycle[pick];
+            serve(dequeue(pick), arrival); // Starts once its bank is free
+        }
+    }
+
+    private int pickWrite() {
+        return pickWrite(Long.MAX_VALUE);
+    }
+
+    // First ready write hitting its bank's open row, else the oldest ready write; -1 if none is
+    // ready (bank idle and write arrived) before 'cycle'
+    private int pickWrite(long cycle) {
+        int oldest = -1;
+        for (int i = 0; i < queued; i++) {
+            int b = bank(queuedAddress[i]);
+            if (Math.max(queuedCycle[i], bankReady[b]) >= cycle) {
+                continue;
+            }
+            if (!closedPage && openRow[b] == row(queuedAddress[i])) {
+                return i;
+            }
+            if (oldest < 0) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    private long dequeue(int i) {
+        long address = queuedAddress[i];
+        writes++;
+        System.arraycopy(queuedAddress, i + 1, queuedAddress, i, queued - i - 1);
+        System.arraycopy(queuedCycle, i + 1, queuedCycle, i, queued - i - 1);
+        queued--;
+        return address;
+    }
+
+    // --- Reports ---
+
+    String describe() {
+        return String.format("%d channel(s) x %d banks, %d B rows, tRCD %d, tCAS %d, tRP %d, tBurst %d, %s page,"
+                + " %d-entry write queue", channels, banks, rowSize, tRCD, tCAS, tRP, tBurst,
+                closedPage ? "closed" : "open", writeQueueSize);
+    }
+
+    void print(PrintStream out) {
+        long accesses = rowHits + rowEmpty + rowConflicts;
+        out.println("DRAM: " + describe());
+        out.printf(Locale.ROOT, "DRAM Requests: reads %d, writes %d (%d forced, %d queued), row hits %s,"
+                        + " empty %d, conflicts %d, mean read latency %s\n", reads, writes, forcedWrites, queued,
+                accesses == 0 ? "0" : String.format(Locale.ROOT, "%d (%.2f%%)", rowHits, 100.0 * rowHits / accesses),
+                rowEmpty, rowConflicts, reads == 0 ? "n/a"
+                        : String.format(Locale.ROOT, "%.1f cycles", (double) readLatencyTotal / reads));
+        StringBuilder histogram = new StringBuilder("DRAM Read Latency:");
+        for (int k = 0; k < HISTOGRAM_BUCKETS; k++) {
+            histogram.append(k == 0 ? " " : ", ")
+                    .append(k == HISTOGRAM_BUCKETS - 1 ? (8 << k) + "+" : "<" + (16 << k))
+                    .append(' ').append(readLatencies[k]);
+        }
+        out.println(histogram);
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 60 + HISTOGRAM_BUCKETS * 8 + openRow.length * 16 + channels * 8 + writeQueueSize * 16;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(reads).putLong(writes).putLong(rowHits).putLong(rowEmpty).putLong(rowConflicts)
+                .putLong(forcedWrites).putLong(readLatencyTotal).putInt(queued);
+        for (long count : readLatencies) {
+            out.putLong(count);
+        }
+        for (int b = 0; b < openRow.length; b++) {
+            out.putLong(openRow[b]).putLong(bankReady[b]);
+        }
+        for (long free : busFree) {
+            out.putLong(free);
+        }
+        for (int i = 0; i < writeQueueSize; i++) {
+            out.putLong(queuedAddress[i]).putLong(queuedCycle[i]);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        reads = in.getLong();
+        writes = in.getLong();
+        rowHits = in.getLong();
+        rowEmpty = in.getLong();
+        rowConflicts = in.getLong();
+        forcedWrites = in.getLong();
+        readLatencyTotal = in.getLong();
+        queued = in.getInt();
+        for (int k = 0; k < HISTOGRAM_BUCKETS; k++) {
+            readLatencies[k] = in.getLong();
+        }
+        for (int b = 0; b < openRow.length; b++) {
+            openRow[b] = in.getLong();
+            bankReady[b] = in.getLong();
+        }
+        for (int c = 0; c < channels; c++) {
+            busFree[c] = in.getLong();
+        }
+        for (int i = 0; i < writeQueueSize; i++) {
+            queuedAddress[i] = in.getLong();
+            queuedCycle[i] = in.getLong();
+        }
+    }
+}
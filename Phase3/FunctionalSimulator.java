@@ -0,0 +1,676 @@
+// Fast architectural (instruction-set) simulator.
+// Executes the predecoded text segment with no pipeline registers, hazard logic, predictor or
+// tracing, against the same register file and data memory as the pipeline, so it can
+// fast-forward a run or check a program's final state quickly.
+//
+// The text is flattened once more into parallel int arrays (operation kind, operands, immediate).
+// Straight-line code is discovered lazily into basic blocks: a block is a pre-built, packed
+// sequence of operations ending at a branch/JAL/JALR, run by a tight switch with no per-instruction
+// pc, bounds or halt checks. Blocks link directly to their taken and fall-through successors once
+// those have been seen. Blocks that run often enough are translated to JVM bytecode by
+// BlockCompiler and from then on run natively. A plain switch interpreter over the flat arrays handles the end of the
+// program and partial blocks at the end of an instruction budget.
+//
+// Writes to x0 are redirected to a scratch slot (index 32) instead of being tested for on every
+// instruction.
+final class FunctionalSimulator {
+
+    // --- Operation Kinds (dense, so the dispatch compiles to a table switch) ---
+    static final int K_STOP = 0; // Word 0 / outside the text segment
+    static final int K_HALT = 1; // 0xDEADBEEF end marker
+    static final int K_ILLEGAL = 2;
+    static final int K_ADD = 3, K_SUB = 4, K_SLL = 5, K_SLT = 6, K_SLTU = 7, K_XOR = 8, K_SRL = 9,
+            K_SRA = 10, K_OR = 11, K_AND = 12;
+    static final int K_ADDI = 13, K_SLTI = 14, K_SLTIU = 15, K_XORI = 16, K_ORI = 17, K_ANDI = 18,
+            K_SLLI = 19, K_SRLI = 20, K_SRAI = 21;
+    static final int K_MUL = 22, K_MULH = 23, K_MULHSU = 24, K_MULHU = 25, K_DIV = 26, K_DIVU = 27,
+            K_REM = 28, K_REMU = 29;
+    static final int K_LB = 30, K_LH = 31, K_LW = 32, K_SB = 33, K_SH = 34, K_SW = 35;
+    static final int K_BEQ = 36, K_BNE = 37, K_BLT = 38, K_BGE = 39, K_BLTU = 40, K_BGEU = 41;
+    static final int K_JAL = 42, K_JALR = 43, K_LUI = 44, K_AUIPC = 45;
+
+    static final int SCRATCH_REG = 32; // Destination for writes to x0
+
+    private final PipelinedCPU.RegisterFile registerFile;
+    private final PagedMemory memory;
+    private final DecodedInstruction[] textSegment; // Shared with the pipeline; both re-decode text stores
+    private final int textBase;
+    private final int textBytes;
+
+    // Flattened text segment, indexed by (pc - textBase) >> 2
+    private final int[] kind;
+    private final int[] rd;
+    private final int[] rs1;
+    private final int[] rs2;
+    private final int[] imm;
+
+    // Basic-block cache, indexed by the block's first instruction
+    private final Block[] blocks;
+    private boolean blockCacheEnabled = true;
+    private long blocksBuilt;
+    private long textRewrites; // Stores that changed an instruction (and dropped the blocks over it)
+
+    // Translation of hot blocks to JVM bytecode (see BlockCompiler)
+    private int translationThreshold = 0; // Block executions before translating; 0 = never
+    private long blocksTranslated;
+
+    private BranchListener branchListener; // Set only while warming; forces the interpreter
+    private AccessListener accessListener; // Likewise, when there are caches to warm
+
+    private final int[] x = new int[33]; // Working copy of the registers while running
+    private int pc;
+    private long instructionsExecuted;
+    private boolean halted; // Reached the end marker, word 0 or an illegal instruction
+
+    FunctionalSimulator(DecodedInstruction[] textSegment, long textBase, PipelinedCPU.RegisterFile registerFile,
+                        PagedMemory memory) {
+        this.registerFile = registerFile;
+        this.memory = memory;
+        this.textSegment = textSegment;
+        this.textBase = (int) textBase;
+        this.textBytes = textSegment.length * 4;
+        int n = textSegment.length;
+        kind = new int[n];
+        rd = new int[n];
+        rs1 = new int[n];
+        rs2 = new int[n];
+        imm = new int[n];
+        blocks = new Block[n];
+        for (int i = 0; i < n; i++) {
+            flatten(i, textSegment[i]);
+        }
+        this.pc = this.textBase;
+    }
+
+    private void flatten(int i, DecodedInstruction inst) {
+        kind[i] = kindOf(inst);
+        rd[i] = inst.rd == 0 ? SCRATCH_REG : inst.rd;
+        rs1[i] = inst.rs1;
+        rs2[i] = inst.rs2;
+        imm[i] = (int) inst.immediate;
+    }
+
+    private static int kindOf(DecodedInstruction inst) {
+        if (inst.nop)
+            return K_STOP;
+        if (inst.halt)
+            return K_HALT;
+        if (!inst.valid)
+            return K_ILLEGAL;
+        if (inst.memRead)
+            return inst.memSize == MemSize.BYTE ? K_LB : inst.memSize == MemSize.HALF ? K_LH : K_LW;
+        if (inst.memWrite)
+            return inst.memSize == MemSize.BYTE ? K_SB : inst.memSize == MemSize.HALF ? K_SH : K_SW;
+        switch (inst.aluOp) {
+            case ADD: return K_ADD;
+            case SUB: return K_SUB;
+            case SLL: return K_SLL;
+            case SLT: return K_SLT;
+            case SLTU: return K_SLTU;
+            case XOR: return K_XOR;
+            case SRL: return K_SRL;
+            case SRA: return K_SRA;
+            case OR: return K_OR;
+            case AND: return K_AND;
+            case ADDI: return K_ADDI;
+            case SLTI: return K_SLTI;
+            case SLTIU: return K_SLTIU;
+            case XORI: return K_XORI;
+            case ORI: return K_ORI;
+            case ANDI: return K_ANDI;
+            case SLLI: return K_SLLI;
+            case SRLI: return K_SRLI;
+            case SRAI: return K_SRAI;
+            case MUL: return K_MUL;
+            case MULH: return K_MULH;
+            case MULHSU: return K_MULHSU;
+            case MULHU: return K_MULHU;
+            case DIV: return K_DIV;
+            case DIVU: return K_DIVU;
+            case REM: return K_REM;
+            case REMU: return K_REMU;
+            case BEQ: return K_BEQ;
+            case BNE: return K_BNE;
+            case BLT: return K_BLT;
+            case BGE: return K_BGE;
+            case BLTU: return K_BLTU;
+            case BGEU: return K_BGEU;
+            case JAL: return K_JAL;
+            case JALR: return K_JALR;
+            case LUI: return K_LUI;
+            case AUIPC: return K_AUIPC;
+            default: return K_ILLEGAL;
+        }
+    }
+
+    private static boolean endsBlock(int kind) {
+        return kind >= K_BEQ && kind <= K_JALR;
+    }
+
+    // --- State ---
+
+    long getPc() {
+        return pc & 0xFFFFFFFFL;
+    }
+
+    void setPc(long pc) {
+        this.pc = (int) pc;
+        this.halted = false;
+    }
+
+    long getInstructionsExecuted() {
+        return instructionsExecuted;
+    }
+
+    boolean isHalted() {
+        return halted;
+    }
+
+    void setBlockCacheEnabled(boolean enabled) {
+        this.blockCacheEnabled = enabled;
+    }
+
+    long getBlocksBuilt() {
+        return blocksBuilt;
+    }
+
+    long getTextRewrites() {
+        return textRewrites;
+    }
+
+    void setTranslationThreshold(int executions) {
+        this.translationThreshold = executions;
+    }
+
+    long getBlocksTranslated() {
+        return blocksTranslated;
+    }
+
+    // --- Execution ---
+
+    // Execute up to 'maxInstructions' instructions (or until the program ends).
+    // Returns the number executed; the end marker itself is not counted.
+    long run(long maxInstructions) {
+        for (int r = 0; r < 32; r++) {
+            x[r] = registerFile.read(r);
+        }
+        long executed = 0;
+        if (blockCacheEnabled) {
+            executed = runBlocks(maxInstructions);
+        }
+        if (!halted && executed < maxInstructions) {
+            executed += interpret(maxInstructions - executed);
+        }
+        instructionsExecuted += executed;
+        for (int r = 1; r < 32; r++) {
+            registerFile.write(r, x[r]);
+        }
+        return executed;
+    }
+
+    // Receives every branch/jump outcome while warming, in the pipeline's BranchPredictor.update() terms
+    interface BranchListener {
+        void onBranch(long pc, boolean taken, long target);
+    }
+
+    // Receives every instruction fetch and load/store address while warming (null: no caches)
+    interface AccessListener {
+        void onFetch(long pc);
+
+        void onData(long address, boolean write);
+    }
+
+    // Like run(), but one instruction at a time, reporting each control transfer to 'listener'
+    // and each fetch and data access to 'accesses' (may be null)
+    long runWarming(long maxInstructions, BranchListener listener, AccessListener accesses) {
+        boolean blocks = blockCacheEnabled;
+        blockCacheEnabled = false;
+        branchListener = listener;
+        accessListener = accesses;
+        try {
+            return run(maxInstructions);
+        } finally {
+            branchListener = null;
+            accessListener = null;
+            blockCacheEnabled = blocks;
+        }
+    }
+
+    // Run whole cached blocks while the budget allows; stops at the first pc without a block
+    // (end marker, word 0, illegal instruction, outside the text) and leaves the rest to interpret()
+    private long runBlocks(long maxInstructions) {
+        final int[] x = this.x;
+        final PagedMemory mem = this.memory;
+        int pc = this.pc;
+        long executed = 0;
+        Block block = lookupBlock(pc);
+        blockLoop:
+        while (block != null && maxInstructions - executed >= block.length) {
+            int next;
+            if (block.translated != null) {
+                // Translated block: runs its body and terminator (and self-loops) natively
+                long rewritesBefore = textRewrites;
+                long budget = Math.min(maxInstructions - executed, Integer.MAX_VALUE);
+                long result = block.translated.run(x, mem, this, (int) budget);
+                executed += result >>> 32;
+                next = (int) result;
+                if (textRewrites != rewritesBefore) { // A store rewrote the text: this block may be stale
+                    pc = next;
+                    block = lookupBlock(pc);
+                    continue;
+                }
+                pc = next;
+                block = chain(block, next);
+                continue;
+            }
+            if (translationThreshold > 0 && ++block.executions >= translationThreshold && !block.untranslatable) {
+                translate(block);
+            }
+
+            // Straight-line body: OP_STRIDE ints per operation, no pc, bounds or halt checks
+            final int[] code = block.code;
+            for (int c = 0; c < code.length; c += OP_STRIDE) {
+                final int d = code[c + 1], a = code[c + 2], b = code[c + 3], k = code[c + 4];
+                switch (code[c]) {
+                    case K_ADD: x[d] = x[a] + x[b]; break;
+                    case K_SUB: x[d] = x[a] - x[b]; break;
+                    case K_SLL: x[d] = x[a] << x[b]; break;
+                    case K_SLT: x[d] = x[a] < x[b] ? 1 : 0; break;
+                    case K_SLTU: x[d] = Integer.compareUnsigned(x[a], x[b]) < 0 ? 1 : 0; break;
+                    case K_XOR: x[d] = x[a] ^ x[b]; break;
+                    case K_SRL: x[d] = x[a] >>> x[b]; break;
+                    case K_SRA: x[d] = x[a] >> x[b]; break;
+                    case K_OR: x[d] = x[a] | x[b]; break;
+                    case K_AND: x[d] = x[a] & x[b]; break;
+                    case K_MUL: x[d] = x[a] * x[b]; break;
+                    case K_MULH: x[d] = Alu.mulh(x[a], x[b]); break;
+                    case K_MULHSU: x[d] = Alu.mulhsu(x[a], x[b]); break;
+                    case K_MULHU: x[d] = Alu.mulhu(x[a], x[b]); break;
+                    case K_DIV: x[d] = Alu.div(x[a], x[b]); break;
+                    case K_DIVU: x[d] = Alu.divu(x[a], x[b]); break;
+                    case K_REM: x[d] = Alu.rem(x[a], x[b]); break;
+                    case K_REMU: x[d] = Alu.remu(x[a], x[b]); break;
+                    case K_ADDI: x[d] = x[a] + k; break;
+                    case K_SLTI: x[d] = x[a] < k ? 1 : 0; break;
+                    case K_SLTIU: x[d] = Integer.compareUnsigned(x[a], k) < 0 ? 1 : 0; break;
+                    case K_XORI: x[d] = x[a] ^ k; break;
+                    case K_ORI: x[d] = x[a] | k; break;
+                    case K_ANDI: x[d] = x[a] & k; break;
+                    case K_SLLI: x[d] = x[a] << k; break;
+                    case K_SRLI: x[d] = x[a] >>> k; break;
+                    case K_SRAI: x[d] = x[a] >> k; break;
+                    case K_LUI: x[d] = k; break;
+                    case K_AUIPC: x[d] = k; break; // pc + imm folded in when the block was built
+                    case K_LB: x[d] = mem.loadByte(x[a] + k); break;
+                    case K_LH: x[d] = mem.loadHalf(x[a] + k); break;
+                    case K_LW: x[d] = mem.loadWord(x[a] + k); break;
+                    case K_SB:
+                    case K_SH:
+                    case K_SW: {
+                        int address = x[a] + k;
+                        int width = store(code[c], address, x[b]);
+                        if (checkTextWrite(address, width)) {
+                            // The text changed, maybe this very block: resume after this store
+                            int done = c / OP_STRIDE + 1;
+                            executed += done;
+                            pc = block.startPc + 4 * done;
+                            block = lookupBlock(pc);
+                            continue blockLoop;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unhandled operation kind " + code[c]);
+                }
+            }
+            executed += block.length;
+
+            // Terminator
+            switch (block.exitKind) {
+                case K_BEQ: next = x[block.exitRs1] == x[block.exitRs2] ? block.takenPc : block.fallPc; break;
+                case K_BNE: next = x[block.exitRs1] != x[block.exitRs2] ? block.takenPc : block.fallPc; break;
+                case K_BLT: next = x[block.exitRs1] < x[block.exitRs2] ? block.takenPc : block.fallPc; break;
+                case K_BGE: next = x[block.exitRs1] >= x[block.exitRs2] ? block.takenPc : block.fallPc; break;
+                case K_BLTU:
+                    next = Integer.compareUnsigned(x[block.exitRs1], x[block.exitRs2]) < 0
+                            ? block.takenPc : block.fallPc;
+                    break;
+                case K_BGEU:
+                    next = Integer.compareUnsigned(x[block.exitRs1], x[block.exitRs2]) >= 0
+                            ? block.takenPc : block.fallPc;
+                    break;
+                case K_JAL:
+                    x[block.exitRd] = block.fallPc;
+                    next = block.takenPc;
+                    break;
+                case K_JALR: {
+                    int target = (x[block.exitRs1] + block.exitImm) & ~1; // Read rs1 before rd may overwrite it
+                    x[block.exitRd] = block.fallPc;
+                    next = target;
+                    break;
+                }
+                default: // Block ended before a non-executable word; fall into it
+                    next = block.fallPc;
+                    break;
+            }
+
+            pc = next;
+            block = chain(block, next);
+        }
+        this.pc = pc;
+        return executed;
+    }
+
+    // Chaining: follow the direct successor links, filling them on first use
+    private Block chain(Block block, int next) {
+        if (next == block.takenPc) {
+            Block successor = block.taken;
+            if (successor == null || successor.invalidated) {
+                successor = block.taken = lookupBlock(next);
+            }
+            return successor;
+        }
+        if (next == block.fallPc) {
+            Block successor = block.fall;
+            if (successor == null || successor.invalidated) {
+                successor = block.fall = lookupBlock(next);
+            }
+            return successor;
+        }
+        return lookupBlock(next); // JALR to somewhere new
+    }
+
+    // Replace a hot block's interpretation with generated bytecode; on failure it stays interpreted
+    private void translate(Block block) {
+        block.untranslatable = true; // Only attempt once
+        if (block.length > BlockCompiler.MAX_BLOCK_LENGTH) {
+            return;
+        }
+        try {
+            block.translated = BlockCompiler.compile(block);
+            blocksTranslated++;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            System.err.printf("Could not translate block at 0x%08X (%s); interpreting it%n", block.startPc, e);
+        }
+    }
+
+    // Perform a store; returns its width in bytes
+    private int store(int kind, int address, int value) {
+        switch (kind) {
+            case K_SB:
+                memory.storeByte(address, value);
+                return 1;
+            case K_SH:
+                memory.storeHalf(address, value);
+                return 2;
+            default:
+                memory.storeWord(address, value);
+                return 4;
+        }
+    }
+
+    // One instruction at a time from the flat arrays
+    private long interpret(long maxInstructions) {
+        final int[] x = this.x;
+        final int[] kind = this.kind, rd = this.rd, rs1 = this.rs1, rs2 = this.rs2, imm = this.imm;
+        final PagedMemory mem = this.memory;
+        final int base = textBase;
+        final int limit = textBytes;
+
+        int pc = this.pc;
+        long executed = 0;
+        loop:
+        while (executed < maxInstructions) {
+            int offset = pc - base;
+            if (Integer.compareUnsigned(offset, limit) >= 0 || (offset & 3) != 0) {
+                halted = true; // Ran off the text segment: same as fetching word 0
+                break;
+            }
+            int i = offset >>> 2;
+            int next = pc + 4;
+            if (accessListener != null) { // Before the switch: a load may overwrite its own base register
+                accessListener.onFetch(pc & 0xFFFFFFFFL);
+                if (kind[i] >= K_LB && kind[i] <= K_SW) {
+                    accessListener.onData((x[rs1[i]] + imm[i]) & 0xFFFFFFFFL, kind[i] >= K_SB);
+                }
+            }
+            switch (kind[i]) {
+                case K_STOP:
+                case K_HALT:
+                    halted = true;
+                    break loop;
+                case K_ILLEGAL:
+                    System.err.printf("Illegal instruction at 0x%08X. Halting.%n", pc);
+                    halted = true;
+                    break loop;
+
+                // Register-register
+                case K_ADD: x[rd[i]] = x[rs1[i]] + x[rs2[i]]; break;
+                case K_SUB: x[rd[i]] = x[rs1[i]] - x[rs2[i]]; break;
+                case K_SLL: x[rd[i]] = x[rs1[i]] << x[rs2[i]]; break; // Java masks int shifts to 5 bits
+                case K_SLT: x[rd[i]] = x[rs1[i]] < x[rs2[i]] ? 1 : 0; break;
+                case K_SLTU: x[rd[i]] = Integer.compareUnsigned(x[rs1[i]], x[rs2[i]]) < 0 ? 1 : 0; break;
+                case K_XOR: x[rd[i]] = x[rs1[i]] ^ x[rs2[i]]; break;
+                case K_SRL: x[rd[i]] = x[rs1[i]] >>> x[rs2[i]]; break;
+                case K_SRA: x[rd[i]] = x[rs1[i]] >> x[rs2[i]]; break;
+                case K_OR: x[rd[i]] = x[rs1[i]] | x[rs2[i]]; break;
+                case K_AND: x[rd[i]] = x[rs1[i]] & x[rs2[i]]; break;
+                case K_MUL: x[rd[i]] = x[rs1[i]] * x[rs2[i]]; break;
+                case K_MULH: x[rd[i]] = Alu.mulh(x[rs1[i]], x[rs2[i]]); break;
+                case K_MULHSU: x[rd[i]] = Alu.mulhsu(x[rs1[i]], x[rs2[i]]); break;
+                case K_MULHU: x[rd[i]] = Alu.mulhu(x[rs1[i]], x[rs2[i]]); break;
+                case K_DIV: x[rd[i]] = Alu.div(x[rs1[i]], x[rs2[i]]); break;
+                case K_DIVU: x[rd[i]] = Alu.divu(x[rs1[i]], x[rs2[i]]); break;
+                case K_REM: x[rd[i]] = Alu.rem(x[rs1[i]], x[rs2[i]]); break;
+                case K_REMU: x[rd[i]] = Alu.remu(x[rs1[i]], x[rs2[i]]); break;
+
+                // Register-immediate
+                case K_ADDI: x[rd[i]] = x[rs1[i]] + imm[i]; break;
+                case K_SLTI: x[rd[i]] = x[rs1[i]] < imm[i] ? 1 : 0; break;
+                case K_SLTIU: x[rd[i]] = Integer.compareUnsigned(x[rs1[i]], imm[i]) < 0 ? 1 : 0; break;
+                case K_XORI: x[rd[i]] = x[rs1[i]] ^ imm[i]; break;
+                case K_ORI: x[rd[i]] = x[rs1[i]] | imm[i]; break;
+                case K_ANDI: x[rd[i]] = x[rs1[i]] & imm[i]; break;
+                case K_SLLI: x[rd[i]] = x[rs1[i]] << imm[i]; break;
+                case K_SRLI: x[rd[i]] = x[rs1[i]] >>> imm[i]; break;
+                case K_SRAI: x[rd[i]] = x[rs1[i]] >> imm[i]; break;
+
+                // Loads / Stores
+                case K_LB: x[rd[i]] = mem.loadByte(x[rs1[i]] + imm[i]); break;
+                case K_LH: x[rd[i]] = mem.loadHalf(x[rs1[i]] + imm[i]); break;
+                case K_LW: x[rd[i]] = mem.loadWord(x[rs1[i]] + imm[i]); break;
+                case K_SB: {
+                    int address = x[rs1[i]] + imm[i];
+                    mem.storeByte(address, x[rs2[i]]);
+                    checkTextWrite(address, 1);
+                    break;
+                }
+                case K_SH: {
+                    int address = x[rs1[i]] + imm[i];
+                    mem.storeHalf(address, x[rs2[i]]);
+                    checkTextWrite(address, 2);
+                    break;
+                }
+                case K_SW: {
+                    int address = x[rs1[i]] + imm[i];
+                    mem.storeWord(address, x[rs2[i]]);
+                    checkTextWrite(address, 4);
+                    break;
+                }
+
+                // Branches
+                case K_BEQ: if (x[rs1[i]] == x[rs2[i]]) next = pc + imm[i]; break;
+                case K_BNE: if (x[rs1[i]] != x[rs2[i]]) next = pc + imm[i]; break;
+                case K_BLT: if (x[rs1[i]] < x[rs2[i]]) next = pc + imm[i]; break;
+                case K_BGE: if (x[rs1[i]] >= x[rs2[i]]) next = pc + imm[i]; break;
+                case K_BLTU: if (Integer.compareUnsigned(x[rs1[i]], x[rs2[i]]) < 0) next = pc + imm[i]; break;
+                case K_BGEU: if (Integer.compareUnsigned(x[rs1[i]], x[rs2[i]]) >= 0) next = pc + imm[i]; break;
+
+                // Jumps / Upper immediates
+                case K_JAL:
+                    x[rd[i]] = next;
+                    next = pc + imm[i];
+                    break;
+                case K_JALR: {
+                    int target = (x[rs1[i]] + imm[i]) & ~1; // Read rs1 before rd may overwrite it
+                    x[rd[i]] = next;
+                    next = target;
+                    break;
+                }
+                case K_LUI: x[rd[i]] = imm[i]; break;
+                case K_AUIPC: x[rd[i]] = pc + imm[i]; break;
+                default:
+                    throw new IllegalStateException("Unhandled operation kind " + kind[i]);
+            }
+            if (branchListener != null && kind[i] >= K_BEQ && kind[i] <= K_JALR) {
+                if (kind[i] <= K_BGEU) { // Conditional: the pipeline trains on pc + imm either way
+                    boolean taken = branchTaken(kind[i], x[rs1[i]], x[rs2[i]]);
+                    branchListener.onBranch(pc & 0xFFFFFFFFL, taken, (pc + imm[i]) & 0xFFFFFFFFL);
+                } else {
+                    branchListener.onBranch(pc & 0xFFFFFFFFL, true, next & 0xFFFFFFFFL);
+                }
+            }
+            pc = next;
+            executed++;
+        }
+        this.pc = pc;
+        return executed;
+    }
+
+    private static boolean branchTaken(int kind, int a, int b) {
+        switch (kind) {
+            case K_BEQ: return a == b;
+            case K_BNE: return a != b;
+            case K_BLT: return a < b;
+            case K_BGE: return a >= b;
+            case K_BLTU: return Integer.compareUnsigned(a, b) < 0;
+            default: return Integer.compareUnsigned(a, b) >= 0; // BGEU
+        }
+    }
+
+    // --- Block Cache ---
+
+    // Generated by BlockCompiler: returns (instructions executed << 32) | next pc
+    interface CompiledBlock {
+        long run(int[] x, PagedMemory mem, FunctionalSimulator sim, int budget);
+    }
+
+    // Operations in a block body are packed as {kind, rd, rs1, rs2, imm}
+    static final int OP_STRIDE = 5;
+
+    static final class Block {
+        final int startPc;
+        final int[] code; // Body, excluding the terminator
+        final int length; // Instructions including the terminator
+        final int exitKind; // Branch/JAL/JALR kind, or K_STOP when the block just falls through
+        final int exitRd, exitRs1, exitRs2, exitImm;
+        final int takenPc; // Static target (branches, JAL)
+        final int fallPc; // Address after the block
+        Block taken; // Chained successors, filled on first use
+        Block fall;
+        boolean invalidated; // A store rewrote one of its instructions
+        int executions; // Interpreted runs, counted towards the translation threshold
+        boolean untranslatable; // Translation attempted (or not worth it)
+        CompiledBlock translated; // Generated bytecode, once hot
+
+        Block(int startPc, int[] code, int exitKind, int exitRd, int exitRs1, int exitRs2, int exitImm) {
+            this.startPc = startPc;
+            this.code = code;
+            boolean hasExit = exitKind != K_STOP;
+            this.length = code.length / OP_STRIDE + (hasExit ? 1 : 0);
+            this.exitKind = exitKind;
+            this.exitRd = exitRd;
+            this.exitRs1 = exitRs1;
+            this.exitRs2 = exitRs2;
+            this.exitImm = exitImm;
+            this.fallPc = startPc + 4 * length;
+            int exitPc = fallPc - 4;
+            this.takenPc = hasExit && exitKind != K_JALR ? exitPc + exitImm : fallPc;
+        }
+    }
+
+    // Cached block starting at 'pc', built on first use; null if nothing executable starts there
+    private Block lookupBlock(int pc) {
+        int offset = pc - textBase;
+        if (Integer.compareUnsigned(offset, textBytes) >= 0 || (offset & 3) != 0) {
+            return null;
+        }
+        int start = offset >>> 2;
+        Block block = blocks[start];
+        if (block == null) {
+            block = buildBlock(pc, start);
+            blocks[start] = block;
+        }
+        return block;
+    }
+
+    private Block buildBlock(int pc, int start) {
+        int end = start;
+        while (end < kind.length && kind[end] > K_ILLEGAL && !endsBlock(kind[end])) {
+            end++;
+        }
+        boolean hasExit = end < kind.length && endsBlock(kind[end]);
+        if (end == start && !hasExit) {
+            return null; // End marker, word 0 or illegal: left to the interpreter
+        }
+        int[] code = new int[(end - start) * OP_STRIDE];
+        for (int i = start; i < end; i++) {
+            int c = (i - start) * OP_STRIDE;
+            code[c] = kind[i];
+            code[c + 1] = rd[i];
+            code[c + 2] = rs1[i];
+            code[c + 3] = rs2[i];
+            code[c + 4] = kind[i] == K_AUIPC ? pc + 4 * (i - start) + imm[i] : imm[i];
+        }
+        blocksBuilt++;
+        if (!hasExit) {
+            return new Block(pc, code, K_STOP, 0, 0, 0, 0);
+        }
+        return new Block(pc, code, kind[end], rd[end], rs1[end], rs2[end], imm[end]);
+    }
+
+    // --- Self-Modifying Code ---
+    // parseMachineCodeFromFile mirrors the text into data memory, so a store can overwrite an
+    // instruction. Re-decode the touched words that actually changed and drop the cached blocks
+    // running over them; true if any did. The pipeline sends its own text stores here in sampled
+    // mode, so both engines always execute the same code.
+    boolean checkTextWrite(int address, int width) {
+        long first = (address & 0xFFFFFFFFL) - (textBase & 0xFFFFFFFFL);
+        if (first + width <= 0 || first >= textBytes) {
+            return false;
+        }
+        int from = (int) Math.max(first, 0) >>> 2;
+        int to = (int) Math.min(first + width - 1, textBytes - 1) >>> 2;
+        boolean changed = false;
+        for (int i = from; i <= to; i++) {
+            int word = memory.loadWord(textBase + 4 * i);
+            if (word == textSegment[i].word) {
+                continue; // Same instruction written back: nothing to re-decode
+            }
+            invalidateBlocks(i);
+            DecodedInstruction decoded = DecodedInstruction.decode(word);
+            textSegment[i] = decoded;
+            flatten(i, decoded);
+            changed = true;
+        }
+        if (changed) {
+            textRewrites++;
+        }
+        return changed;
+    }
+
+    // Drop the cached blocks covering word 'i': they start at or before it with no block end in
+    // between. Links other blocks hold to them are dropped when next followed (see chain()).
+    private void invalidateBlocks(int i) {
+        for (int start = i; start >= 0; start--) {
+            if (start < i && (kind[start] <= K_ILLEGAL || endsBlock(kind[start]))) {
+                break;
+            }
+            Block block = blocks[start];
+            if (block != null && start + block.length > i) {
+                block.invalidated = true;
+                blocks[start] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// Multi-cycle execution units for the M extension in the pipelined model: a multiplier for
+// MUL/MULH/MULHSU/MULHU and a divider for DIV/DIVU/REM/REMU (--mul-latency, --mul-pipelined,
+// --div-latency, --div-pipelined). Latency 1 is the plain single-cycle ALU.
+//
+// An op still computes its value in EX and moves on, but its result only counts as ready
+// 'latency' cycles after it entered the unit: a scoreboard holds any reader in ID until then.
+// A pipelined unit (the multiplier by default) takes a new op every cycle; an iterative one
+// (the divider) stays busy for the whole latency, and an op that needs it waits in ID.
+final class FunctionalUnits {
+
+    static final class Unit {
+        final String name;
+        int latency;
+        boolean pipelined;
+        long nextIssue; // First cycle another op may enter
+        long busyUntil; // Cycle the newest op in flight finishes
+
+        // Statistics
+        long ops;
+        long busyCycles; // Cycles with at least one op in flight
+        long structuralStalls; // Cycles an op waited in ID for the unit
+
+        Unit(String name, int latency, boolean pipelined) {
+            this.name = name;
+            this.latency = latency;
+            this.pipelined = pipelined;
+        }
+
+        String describe() {
+            return String.format("latency %d, %s", latency, pipelined ? "pipelined" : "iterative");
+        }
+    }
+
+    final Unit multiplier = new Unit("MUL", 1, true);
+    final Unit divider = new Unit("DIV", 1, false);
+    final long[] resultReady = new long[32]; // Scoreboard: first cycle a reader may leave ID
+
+    Unit unitFor(AluOp op) {
+        switch (op) {
+            case MUL:
+            case MULH:
+            case MULHSU:
+            case MULHU:
+                return multiplier;
+            case DIV:
+            case DIVU:
+            case REM:
+            case REMU:
+                return divider;
+            default:
+                return null;
+        }
+    }
+
+    boolean isMultiCycle() {
+        return multiplier.latency > 1 || divider.latency > 1;
+    }
+
+    // An op writing 'rd' entered 'unit' in EX at 'cycle'
+    void issue(Unit unit, int rd, long cycle) {
+        long done = cycle + unit.latency;
+        unit.ops++;
+        unit.busyCycles += done - Math.max(cycle, unit.busyUntil);
+        unit.busyUntil = Math.max(unit.busyUntil, done);
+        unit.nextIssue = unit.pipelined ? cycle + 1 : done;
+        if (rd != 0) {
+            resultReady[rd] = done - 1; // The reader's EX then starts as the result comes out
+        }
+    }
+
+    // 'register' is still being computed by a unit at 'cycle'
+    boolean isPending(int register, long cycle) {
+        return register != 0 && resultReady[register] > cycle;
+    }
+
+    // --- Reports ---
+
+    void print(PrintStream out, long cycles) {
+        for (Unit unit : new Unit[] {multiplier, divider}) {
+            out.printf(Locale.ROOT, "%s Unit (%s): ops %d, busy %d cycles (%s), structural stalls %d cycles\n",
+                    unit.name, unit.describe(), unit.ops, unit.busyCycles, cycles == 0 ? "n/a"
+                            : String.format(Locale.ROOT, "%.2f%%", 100.0 * unit.busyCycles / cycles),
+                    unit.structuralStalls);
+        }
+    }
+
+    // --- Checkpoint State: each unit's configuration and counters, then the scoreboard ---
+
+    int stateSize() {
+        return 2 * 45 + resultReady.length * 8;
+    }
+
+    void saveState(ByteBuffer out) {
+        for (Unit unit : new Unit[] {multiplier, divider}) {
+            out.putInt(unit.latency).put((byte) (unit.pipelined ? 1 : 0)).putLong(unit.nextIssue)
+                    .putLong(unit.busyUntil).putLong(unit.ops).putLong(unit.busyCycles)
+                    .putLong(unit.structuralStalls);
+        }
+        for (long ready : resultReady) {
+            out.putLong(ready);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        for (Unit unit : new Unit[] {multiplier, divider}) {
+            unit.latency = in.getInt();
+            unit.pipelined = in.get() != 0;
+            unit.nextIssue = in.getLong();
+            unit.busyUntil = in.getLong();
+            unit.ops = in.getLong();
+            unit.busyCycles = in.getLong();
+            unit.structuralStalls = in.getLong();
+        }
+        for (int r = 0; r < resultReady.length; r++) {
+            resultReady[r] = in.getLong();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Target predictor for indirect jumps that aren't returns (--indirect-entries): JALRs through
+// function pointers, jump tables and the like, whose target the BTB's single last-seen entry
+// gets wrong whenever it alternates. Entries are indexed by the jump's PC xor a path history
+// of recent taken targets and tagged with the full PC. Like the direction predictor's global
+// history, the path is updated at resolve; fetch passes its snapshot down the pipeline so EX
+// trains the same entry fetch read.
+final class IndirectTargetPredictor {
+
+    static final int DEFAULT_ENTRIES = 256;
+
+    final int entries;
+    private final int mask;
+    private final long[] tags; // PC of the jump that wrote the entry, -1 if empty
+    private final long[] targets;
+    long pathHistory; // Two bits of each taken target, newest lowest
+
+    // Statistics
+    long lookups;
+    long hits; // Tag matched (the target may still be wrong)
+
+    // The newest two lookups (newest first), so squash() can take wrong-path fetches back out of
+    // the statistics; see ReturnAddressStack for why two
+    private final long[] undoPc = {-1, -1};
+    private final boolean[] undoHit = new boolean[2];
+
+    IndirectTargetPredictor(int entries) {
+        if (entries < 16 || Integer.bitCount(entries) != 1) {
+            throw new IllegalArgumentException("Indirect predictor size must be a power of two >= 16: " + entries);
+        }
+        this.entries = entries;
+        this.mask = entries - 1;
+        this.tags = new long[entries];
+        this.targets = new long[entries];
+        Arrays.fill(tags, -1);
+    }
+
+    private int index(long pc, long path) {
+        return (int) ((pc >>> 2) ^ path) & mask;
+    }
+
+    // Predicted target for the jump at 'pc', or -1 on a miss
+    long predict(long pc, long path) {
+        lookups++;
+        int i = index(pc, path);
+        undoPc[1] = undoPc[0];
+        undoHit[1] = undoHit[0];
+        undoPc[0] = pc;
+        undoHit[0] = tags[i] == pc;
+        if (!undoHit[0]) {
+            return -1;
+        }
+        hits++;
+        return targets[i];
+    }
+
+    // The wrong-path jump at 'pc' was squashed: don't count its lookup (squash younger jumps first)
+    void squash(long pc) {
+        if (pc == undoPc[0]) {
+            lookups--;
+            if (undoHit[0]) {
+                hits--;
+            }
+            undoPc[0] = undoPc[1];
+            undoHit[0] = undoHit[1];
+            undoPc[1] = -1;
+        }
+    }
+
+    // Train with the resolved target, at the slot 'path' (the fetch-time snapshot) selects
+    void update(long pc, long path, long target) {
+        int i = index(pc, path);
+        tags[i] = pc;
+        targets[i] = target;
+    }
+
+    // Every taken branch and jump, in resolve order
+    void recordTaken(long target) {
+        pathHistory = ((pathHistory << 2) ^ (target >>> 2)) & mask;
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 42 + entries * 16;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(pathHistory).putLong(lookups).putLong(hits);
+        for (int u = 0; u < 2; u++) {
+            out.putLong(undoPc[u]).put((byte) (undoHit[u] ? 1 : 0));
+        }
+        for (int i = 0; i < entries; i++) {
+            out.putLong(tags[i]).putLong(targets[i]);
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        pathHistory = in.getLong();
+        lookups = in.getLong();
+        hits = in.getLong();
+        for (int u = 0; u < 2; u++) {
+            undoPc[u] = in.getLong();
+            undoHit[u] = in.get() != 0;
+        }
+        for (int i = 0; i < entries; i++) {
+            tags[i] = in.getLong();
+            targets[i] = in.getLong();
+        }
+    }
+
+    // --- Trace Dump: filled entries ---
+
+    void dump(StringBuilder sb) {
+        sb.append(String.format(" Indirect Target Predictor (%d entries): lookups=%d, hits=%d, path=0x%X\n",
+                entries, lookups, hits, pathHistory));
+        boolean any = false;
+        for (int i = 0; i < entries; i++) {
+            if (tags[i] != -1) {
+                sb.append(String.format("  0x%03X: 0x%08X -> 0x%08X\n", i, tags[i], targets[i]));
+                any = true;
+            }
+        }
+        if (!any) {
+            sb.append("  <Empty>\n");
+        }
+    }
+}
@@ -0,0 +1,10 @@
+// Width of a load/store access.
+enum MemSize {
+    BYTE(1), HALF(2), WORD(4);
+
+    final int bytes;
+
+    MemSize(int bytes) {
+        this.bytes = bytes;
+    }
+}
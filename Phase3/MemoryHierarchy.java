@@ -0,0 +1,574 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Optional caches in front of the flat memory, for the pipelined model: split L1 instruction and
+// data caches and a unified L2, each off unless given a size (--l1i-size, --l1d-size, --l2-size).
+// The stages ask how many extra cycles an access costs:
+//   L1 hit                      0 (the access fits in the stage's own cycle)
+//   L1 miss, L2 hit             --l2-latency
+//   L1 miss, L2 miss (or no L2) --l2-latency (if there is an L2) + main memory
+// Main memory is a DramController (--memory=dram, the default) or a flat --mem-latency
+// (--memory=fixed).
+// Writebacks and write-through traffic go through a write buffer: they update the next level
+// (and its statistics) but never stall. An optional Prefetcher (--prefetch) watches the L1D's
+// demand accesses; its fills are looked up in the L2 like any miss but nothing waits for them.
+//
+// With --mshrs=N the L1D is non-blocking: each outstanding line fill holds one of N miss-status
+// holding registers, and the missing load/store moves on at once. A scoreboard records when
+// each pending load's rd arrives so decode holds back only the instructions that read (or
+// rewrite) it. Another miss to a line in flight merges into its MSHR; a miss with all MSHRs busy
+// blocks MEM until one frees.
+//
+// Sampled mode warms the caches functionally (SMARTS-style): during --sample-warmup the functional
+// simulator reports its fetches and data accesses, which update the tags and replacement state
+// only, with no timing, DRAM, prefetcher or MSHR side effects.
+final class MemoryHierarchy implements FunctionalSimulator.AccessListener {
+
+    private static final String[] LEVELS = {"l1i", "l1d", "l2"};
+
+    // --- Configuration (per level: size 0 = off) ---
+    private final Map<String, String> settings = new HashMap<>();
+    int l2Latency = 10; // --l2-latency
+    int memoryLatency = 100; // --mem-latency (--memory=fixed)
+
+    Cache l1i;
+    Cache l1d;
+    Cache l2;
+    Prefetcher prefetcher; // Null unless --prefetch names one
+    DramController dram; // Null with --memory=fixed
+
+    // --- Non-blocking L1D (null/0 unless --mshrs) ---
+    private long[] mshrReady; // Cycle each MSHR's line arrives (free once passed)
+    private long[] mshrLine;
+    final long[] registerReady = new long[32]; // Scoreboard: first cycle ID may read each register
+    long primaryMisses; // Misses that took an MSHR
+    long mergedMisses; // Misses to a line already in flight
+    long mshrFullCycles; // Cycles MEM blocked with every MSHR busy
+    private long[] occupancy; // Cycles with k MSHRs busy
+    private long peakOccupancy;
+
+    // --- Outstanding misses (the waiting stage checks these every cycle) ---
+    long fetchMissPc = -1; // PC whose L1I miss fetch waits for, -1 if none
+    long fetchReadyCycle;
+    long dataReadyCycle; // Cycle the blocked MEM stage's line arrives, 0 if none
+
+    MemoryHierarchy() {
+        for (String level : LEVELS) {
+            settings.put(level + "-size", "0");
+            settings.put(level + "-line", "64");
+            settings.put(level + "-ways", level.equals("l2") ? "8" : "4");
+            settings.put(level + "-replacement", "lru");
+            settings.put(level + "-write", "back");
+            settings.put(level + "-allocate", "true");
+        }
+        settings.put("prefetch", "none");
+        settings.put("prefetch-degree", "0"); // 0 = the prefetcher's default
+        settings.put("prefetch-entries", "0");
+        settings.put("mshrs", "0"); // 0 = blocking L1D
+        settings.put("memory", "dram"); // Or fixed
+        settings.put("dram-channels", "1");
+        settings.put("dram-banks", "8");
+        settings.put("dram-row-size", "2048");
+        settings.put("dram-trcd", "40"); // CPU cycles
+        settings.put("dram-tcas", "40");
+        settings.put("dram-trp", "40");
+        settings.put("dram-tburst", "8");
+        settings.put("dram-page", "open");
+        settings.put("dram-write-queue", "16");
+    }
+
+    // Takes a --l1i-*, --l1d-*, --l2-*, --prefetch*, --mshrs, --memory, --dram-* or latency option;
+    // false if 'key' isn't one
+    boolean setOption(String key, String value) {
+        switch (key) {
+            case "l2-latency":
+                l2Latency = Integer.parseInt(value);
+                return true;
+            case "mem-latency":
+                memoryLatency = Integer.parseInt(value);
+                return true;
+            default:
+                if (!settings.containsKey(key)) {
+                    return false;
+                }
+                settings.put(key, value);
+                return true;
+        }
+    }
+
+    // Create the configured caches (throws IllegalArgumentException on a bad geometry)
+    void build() {
+        Cache instruction = create("l1i");
+        Cache data = create("l1d");
+        Cache unified = create("l2");
+        Prefetcher dataPrefetcher = null;
+        String kind = settings.get("prefetch");
+        if (!kind.equals("none")) {
+            if (data == null) {
+                throw new IllegalArgumentException("--prefetch needs an L1D (--l1d-size)");
+            }
+            dataPrefetcher = Prefetcher.create(kind, Integer.parseInt(settings.get("prefetch-degree")),
+                    Integer.parseInt(settings.get("prefetch-entries")), data.lineSize);
+        }
+        int mshrs = Integer.parseInt(settings.get("mshrs"));
+        if (mshrs < 0 || mshrs > 64 || (mshrs > 0 && data == null)) {
+            throw new IllegalArgumentException("--mshrs must be 0 to 64 and needs an L1D (--l1d-size): " + mshrs);
+        }
+        String memory = settings.get("memory");
+        if (!memory.equals("dram") && !memory.equals("fixed")) {
+            throw new IllegalArgumentException("--memory must be dram or fixed: " + memory);
+        }
+        DramController mainMemory = memory.equals("fixed") ? null : new DramController(dramSetting("channels"),
+                dramSetting("banks"), dramSetting("row-size"), dramSetting("trcd"), dramSetting("tcas"),
+                dramSetting("trp"), dramSetting("tburst"), settings.get("dram-page"), dramSetting("write-queue"));
+        l1i = instruction;
+        l1d = data;
+        l2 = unified;
+        prefetcher = dataPrefetcher;
+        dram = mainMemory;
+        createMshrs(mshrs);
+    }
+
+    private int dramSetting(String name) {
+        return Integer.parseInt(settings.get("dram-" + name));
+    }
+
+    private void createMshrs(int count) {
+        mshrReady = count == 0 ? null : new long[count];
+        mshrLine = count == 0 ? null : new long[count];
+        occupancy = count == 0 ? null : new long[count + 1];
+    }
+
+    private Cache create(String level) {
+        int size = Integer.parseInt(settings.get(level + "-size"));
+        if (size == 0) {
+            return null;
+        }
+        String write = settings.get(level + "-write");
+        if (!write.equals("back") && !write.equals("through")) {
+            throw new IllegalArgumentException("--" + level + "-write must be back or through: " + write);
+        }
+        return new Cache(level.toUpperCase(Locale.ROOT), size, Integer.parseInt(settings.get(level + "-line")),
+                Integer.parseInt(settings.get(level + "-ways")), settings.get(level + "-replacement"),
+                write.equals("back"), Boolean.parseBoolean(settings.get(level + "-allocate")));
+    }
+
+    boolean isEnabled() {
+        return l1i != null || l1d != null || l2 != null;
+    }
+
+    // --- Accesses: extra cycles the stage waits ---
+
+    int fetch(long address, long cycle) {
+        return access(l1i, address, false, cycle);
+    }
+
+    // Loads and stores from MEM: 'pc' trains the prefetcher, 'cycle' times its fills
+    int load(long address, long pc, long cycle) {
+        return dataAccess(address, false, pc, cycle);
+    }
+
+    int store(long address, long pc, long cycle) {
+        return dataAccess(address, true, pc, cycle);
+    }
+
+    private int access(Cache l1, long address, boolean write, long cycle) {
+        if (l1 == null) {
+            return 0; // Not modelled: the flat memory answers within the stage
+        }
+        boolean hit = l1.access(address, write);
+        long victim = l1.takeWriteback();
+        if (victim != -1) {
+            writeToL2(l1.lineToAddress(victim), cycle);
+        }
+        if (write && (!l1.writeBack || (!hit && !l1.writeAllocate))) {
+            writeToL2(address, cycle); // Write-through, or a write miss going around the L1
+            if (hit || !l1.writeAllocate) {
+                return 0;
+            }
+        }
+        return hit ? 0 : fill(address, cycle);
+    }
+
+    private int dataAccess(long address, boolean write, long pc, long cycle) {
+        if (l1d == null) {
+            return 0;
+        }
+        boolean miss = !l1d.contains(address);
+        int latency;
+        if (prefetcher == null) {
+            latency = access(l1d, address, write, cycle);
+            if (!miss) {
+                latency = remaining(l1d.hitReadyCycle, cycle); // Non-blocking: the line may be in flight
+            }
+        } else {
+            latency = prefetchedAccess(address, write, pc, cycle, miss);
+        }
+        if (mshrReady != null && latency > 0) {
+            if (miss) {
+                allocateMshr(address, cycle + latency, cycle);
+            } else if (!l1d.hitPrefetch) {
+                mergedMisses++;
+            }
+        }
+        return latency;
+    }
+
+    private static int remaining(long readyCycle, long cycle) {
+        return readyCycle > cycle ? (int) (readyCycle - cycle) : 0;
+    }
+
+    private int prefetchedAccess(long address, boolean write, long pc, long cycle, boolean miss) {
+        // Stream buffers answer L1D misses themselves, so look there before filling from below
+        long line = l1d.lineAddress(address);
+        long buffered = miss ? prefetcher.takeBuffered(line) : -1;
+        int latency;
+        if (buffered >= 0) {
+            l1d.prefetch(address, 0); // Moves into the L1D
+            drainL1d(cycle);
+            l1d.access(address, write); // Now a hit (counted as a miss below, like the L1D saw it)
+            if (write) {
+                l1d.writeMisses++;
+            } else {
+                l1d.readMisses++;
+            }
+            latency = used(buffered, cycle);
+        } else {
+            latency = access(l1d, address, write, cycle);
+            if (l1d.takeUnusedEviction()) {
+                prefetcher.unused++;
+            }
+            if (l1d.hitPrefetch) {
+                latency = used(l1d.hitReadyCycle, cycle);
+            } else if (miss) {
+                prefetcher.uncovered++;
+            } else {
+                latency = remaining(l1d.hitReadyCycle, cycle);
+            }
+        }
+        prefetcher.requestCount = 0;
+        prefetcher.train(pc, address, miss);
+        for (int r = 0; r < prefetcher.requestCount; r++) {
+            issuePrefetch(prefetcher.requests[r], cycle);
+        }
+        return latency;
+    }
+
+    // A demand access used a prefetched line arriving at 'readyCycle'; returns the wait left
+    private int used(long readyCycle, long cycle) {
+        prefetcher.useful++;
+        int wait = remaining(readyCycle, cycle);
+        if (wait > 0) {
+            prefetcher.late++;
+            prefetcher.lateCycles += wait;
+        }
+        return wait;
+    }
+
+    // --- Functional Warming ---
+
+    @Override
+    public void onFetch(long pc) {
+        warm(l1i, pc, false);
+    }
+
+    @Override
+    public void onData(long address, boolean write) {
+        warm(l1d, address, write);
+    }
+
+    // The tag updates access() would make, ignoring what they cost
+    private void warm(Cache l1, long address, boolean write) {
+        if (l1 == null) {
+            return;
+        }
+        boolean hit = l1.access(address, write);
+        l1.takeUnusedEviction();
+        long victim = l1.takeWriteback();
+        if (victim != -1) {
+            warmL2(l1.lineToAddress(victim), true);
+        }
+        if (write && (!l1.writeBack || (!hit && !l1.writeAllocate))) {
+            warmL2(address, true);
+            if (hit || !l1.writeAllocate) {
+                return;
+            }
+        }
+        if (!hit) {
+            warmL2(address, false);
+        }
+    }
+
+    private void warmL2(long address, boolean write) {
+        if (l2 != null) {
+            l2.access(address, write);
+            l2.takeWriteback(); // Memory has no state to warm
+        }
+    }
+
+    // --- MSHRs ---
+
+    boolean isNonBlocking() {
+        return mshrReady != null;
+    }
+
+    // Whether a load/store to 'address' can go ahead: a hit (or a line in flight), or a free MSHR
+    boolean canAccept(long address, long cycle) {
+        if (l1d == null || l1d.contains(address)) {
+            return true;
+        }
+        for (long ready : mshrReady) {
+            if (ready <= cycle) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void allocateMshr(long address, long readyCycle, long cycle) {
+        int slot = 0;
+        for (int i = 1; i < mshrReady.length; i++) {
+            if (mshrReady[i] < mshrReady[slot]) {
+                slot = i; // Free ones (in the past) come first
+            }
+        }
+        mshrReady[slot] = readyCycle;
+        mshrLine[slot] = l1d.lineAddress(address);
+        l1d.arriveAt(address, readyCycle); // Later hits on the line wait for the fill
+        primaryMisses++;
+    }
+
+    // Once per cycle: how many MSHRs are busy
+    void sampleMshrs(long cycle) {
+        int busy = 0;
+        for (long ready : mshrReady) {
+            if (ready > cycle) {
+                busy++;
+            }
+        }
+        occupancy[busy]++;
+        peakOccupancy = Math.max(peakOccupancy, busy);
+    }
+
+    // Scoreboard: 'register' is still waiting for a load miss at 'cycle'
+    boolean isPending(int register, long cycle) {
+        return register != 0 && registerReady[register] > cycle;
+    }
+
+    private void issuePrefetch(long address, long cycle) {
+        address &= 0xFFFFFFFFL;
+        if (l1d.contains(address)) {
+            return; // Already there (or on its way)
+        }
+        prefetcher.issued++;
+        long readyCycle = cycle + fill(address, cycle);
+        if (prefetcher.buffers()) {
+            prefetcher.buffered(l1d.lineAddress(address), readyCycle);
+            return;
+        }
+        l1d.prefetch(address, readyCycle);
+        drainL1d(cycle);
+    }
+
+    // Pass on what an L1D fill displaced
+    private void drainL1d(long cycle) {
+        long victim = l1d.takeWriteback();
+        if (victim != -1) {
+            writeToL2(l1d.lineToAddress(victim), cycle);
+        }
+        if (l1d.takeUnusedEviction()) {
+            prefetcher.unused++;
+        }
+    }
+
+    // Cycles to bring a line into an L1 from below
+    private int fill(long address, long cycle) {
+        if (l2 == null) {
+            return readMemory(address, cycle);
+        }
+        boolean hit = l2.access(address, false);
+        long victim = l2.takeWriteback();
+        if (victim != -1) {
+            writeMemory(l2.lineToAddress(victim), cycle);
+        }
+        return hit ? l2Latency : l2Latency + readMemory(address, cycle + l2Latency);
+    }
+
+    // Buffered write into the L2 (or memory); no stall
+    private void writeToL2(long address, long cycle) {
+        if (l2 == null) {
+            writeMemory(address, cycle);
+            return;
+        }
+        boolean hit = l2.access(address, true);
+        long victim = l2.takeWriteback();
+        if (victim != -1) {
+            writeMemory(l2.lineToAddress(victim), cycle);
+        }
+        if (!l2.writeBack || (!hit && !l2.writeAllocate)) {
+            writeMemory(address, cycle);
+        }
+    }
+
+    private int readMemory(long address, long cycle) {
+        return dram == null ? memoryLatency : dram.read(address, cycle);
+    }
+
+    private void writeMemory(long address, long cycle) {
+        if (dram != null) {
+            dram.write(address, cycle);
+        }
+    }
+
+    // --- Reports ---
+
+    void print(PrintStream out) {
+        for (Cache cache : new Cache[] {l1i, l1d, l2}) {
+            if (cache != null) {
+                out.println(cache.summary() + " [" + cache.describe() + "]");
+            }
+        }
+        if (prefetcher != null) {
+            out.println(prefetcher.summary());
+        }
+        if (mshrReady != null) {
+            long cycles = 0;
+            long busy = 0;
+            StringBuilder histogram = new StringBuilder();
+            for (int k = 0; k < occupancy.length; k++) {
+                cycles += occupancy[k];
+                busy += k * occupancy[k];
+            }
+            for (int k = 0; k < occupancy.length; k++) {
+                histogram.append(k == 0 ? "" : ", ").append(k).append(": ").append(cycles == 0 ? "n/a"
+                        : String.format(Locale.ROOT, "%.1f%%", 100.0 * occupancy[k] / cycles));
+            }
+            out.printf(Locale.ROOT, "MSHRs: %d, primary misses %d, merged %d, full for %d cycles, occupancy"
+                            + " mean %.2f, peak %d (%s)\n", mshrReady.length, primaryMisses, mergedMisses,
+                    mshrFullCycles, cycles == 0 ? 0.0 : (double) busy / cycles, peakOccupancy, histogram);
+        }
+        if (dram != null) {
+            out.printf("Miss latency: L2 %d cycles, memory from DRAM\n", l2Latency);
+            dram.print(out);
+        } else {
+            out.printf("Miss latency: L2 %d cycles, memory %d cycles\n", l2Latency, memoryLatency);
+        }
+    }
+
+    // --- Checkpoint State: the geometry of each level (size 0 = off) and its tags, then the
+    // prefetcher (kind index + 1, 0 = none) ---
+
+    int stateSize() {
+        int size = 44 + (prefetcher == null ? 0 : prefetcher.stateSize());
+        size += 4 + 32 * 8 + 32 + (mshrReady == null ? 0 : mshrReady.length * 24 + 8);
+        size += 36 + (dram == null ? 0 : dram.stateSize());
+        for (Cache cache : new Cache[] {l1i, l1d, l2}) {
+            size += 16 + (cache == null ? 0 : cache.stateSize());
+        }
+        return size;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putInt(l2Latency).putInt(memoryLatency).putLong(fetchMissPc).putLong(fetchReadyCycle)
+                .putLong(dataReadyCycle);
+        for (Cache cache : new Cache[] {l1i, l1d, l2}) {
+            if (cache == null) {
+                out.putInt(0).putInt(0).putInt(0).putInt(0);
+                continue;
+            }
+            int flags = Arrays.asList(Cache.POLICIES).indexOf(cache.policy) | (cache.writeBack ? 4 : 0)
+                    | (cache.writeAllocate ? 8 : 0);
+            out.putInt(cache.size).putInt(cache.lineSize).putInt(cache.ways).putInt(flags);
+            cache.saveState(out);
+        }
+        out.putInt(prefetcher == null ? 0 : Arrays.asList(Prefetcher.KINDS).indexOf(prefetcher.kind) + 1);
+        if (prefetcher != null) {
+            out.putInt(prefetcher.degree).putInt(prefetcher.entries);
+            prefetcher.saveState(out);
+        } else {
+            out.putInt(0).putInt(0);
+        }
+        // Non-blocking L1D: MSHR count (0 = blocking), scoreboard, statistics, then the MSHRs
+        out.putInt(mshrReady == null ? 0 : mshrReady.length);
+        for (long ready : registerReady) {
+            out.putLong(ready);
+        }
+        out.putLong(primaryMisses).putLong(mergedMisses).putLong(mshrFullCycles).putLong(peakOccupancy);
+        if (mshrReady != null) {
+            for (int i = 0; i < mshrReady.length; i++) {
+                out.putLong(mshrReady[i]).putLong(mshrLine[i]);
+            }
+            for (long cycles : occupancy) {
+                out.putLong(cycles);
+            }
+        }
+        // Main memory: DRAM geometry and timings (0 channels = fixed latency), then its state
+        if (dram == null) {
+            out.put(new byte[36]);
+            return;
+        }
+        out.putInt(dram.channels).putInt(dram.banks).putInt(dram.rowSize).putInt(dram.tRCD).putInt(dram.tCAS)
+                .putInt(dram.tRP).putInt(dram.tBurst).putInt(dram.closedPage ? 1 : 0).putInt(dram.writeQueueSize);
+        dram.saveState(out);
+    }
+
+    void restoreState(ByteBuffer in) {
+        l2Latency = in.getInt();
+        memoryLatency = in.getInt();
+        fetchMissPc = in.getLong();
+        fetchReadyCycle = in.getLong();
+        dataReadyCycle = in.getLong();
+        Cache[] levels = new Cache[3];
+        for (int l = 0; l < levels.length; l++) {
+            int size = in.getInt();
+            int lineSize = in.getInt();
+            int ways = in.getInt();
+            int flags = in.getInt();
+            if (size != 0) {
+                levels[l] = new Cache(LEVELS[l].toUpperCase(Locale.ROOT), size, lineSize, ways,
+                        Cache.POLICIES[flags & 3], (flags & 4) != 0, (flags & 8) != 0);
+                levels[l].restoreState(in);
+            }
+        }
+        l1i = levels[0];
+        l1d = levels[1];
+        l2 = levels[2];
+        int kind = in.getInt();
+        int degree = in.getInt();
+        int entries = in.getInt();
+        prefetcher = kind == 0 ? null : Prefetcher.create(Prefetcher.KINDS[kind - 1], degree, entries, l1d.lineSize);
+        if (prefetcher != null) {
+            prefetcher.restoreState(in);
+        }
+        createMshrs(in.getInt());
+        for (int r = 0; r < registerReady.length; r++) {
+            registerReady[r] = in.getLong();
+        }
+        primaryMisses = in.getLong();
+        mergedMisses = in.getLong();
+        mshrFullCycles = in.getLong();
+        peakOccupancy = in.getLong();
+        if (mshrReady != null) {
+            for (int i = 0; i < mshrReady.length; i++) {
+                mshrReady[i] = in.getLong();
+                mshrLine[i] = in.getLong();
+            }
+            for (int k = 0; k < occupancy.length; k++) {
+                occupancy[k] = in.getLong();
+            }
+        }
+        int[] geometry = new int[9];
+        for (int i = 0; i < geometry.length; i++) {
+            geometry[i] = in.getInt();
+        }
+        dram = geometry[0] == 0 ? null : new DramController(geometry[0], geometry[1], geometry[2], geometry[3],
+                geometry[4], geometry[5], geometry[6], geometry[7] == 1 ? "closed" : "open", geometry[8]);
+        if (dram != null) {
+            dram.restoreState(in);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Sparse little-endian guest memory covering the full 32-bit address space.
+// Addresses are split 10/10/12: a directory entry, a page within that directory slot,
+// and the byte offset within a 4 KiB page. Pages are only allocated when written,
+// so untouched regions (everything between .data and the stack) cost nothing.
+class PagedMemory {
+
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS; // 4 KiB
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    // Little-endian views over the page byte arrays (plain access allows unaligned offsets)
+    private static final VarHandle WORD =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle HALF =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[][][] directory = new byte[1 << TABLE_BITS][][];
+    private int allocatedPages;
+
+    // --- Page Table ---
+
+    // Returns the page holding 'address', or null if it has never been written
+    private byte[] findPage(int address) {
+        byte[][] table = directory[address >>> (PAGE_BITS + TABLE_BITS)];
+        return table == null ? null : table[(address >>> PAGE_BITS) & TABLE_MASK];
+    }
+
+    // Returns the page holding 'address', allocating a zeroed page on first touch
+    private byte[] touchPage(int address) {
+        int dirIndex = address >>> (PAGE_BITS + TABLE_BITS);
+        byte[][] table = directory[dirIndex];
+        if (table == null) {
+            table = new byte[1 << TABLE_BITS][];
+            directory[dirIndex] = table;
+        }
+        int pageIndex = (address >>> PAGE_BITS) & TABLE_MASK;
+        byte[] page = table[pageIndex];
+        if (page == null) {
+            page = new byte[PAGE_SIZE];
+            table[pageIndex] = page;
+            allocatedPages++;
+        }
+        return page;
+    }
+
+    // --- Loads (sign-extended to int, as RV32 LB/LH/LW) ---
+
+    public int loadByte(long address) {
+        int addr = (int) address;
+        byte[] page = findPage(addr);
+        return page == null ? 0 : page[addr & PAGE_MASK];
+    }
+
+    public int loadHalf(long address) {
+        int addr = (int) address;
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) {
+            byte[] page = findPage(addr);
+            return page == null ? 0 : (short) HALF.get(page, offset);
+        }
+        // Access straddles a page boundary
+        return (short) ((loadByte(addr) & 0xFF) | (loadByte(addr + 1) << 8));
+    }
+
+    public int loadWord(long address) {
+        int addr = (int) address;
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) {
+            byte[] page = findPage(addr);
+            return page == null ? 0 : (int) WORD.get(page, offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (loadByte(addr + i) & 0xFF) << (i * 8);
+        }
+        return value;
+    }
+
+    // --- Stores ---
+
+    public void storeByte(long address, int value) {
+        int addr = (int) address;
+        touchPage(addr)[addr & PAGE_MASK] = (byte) value;
+    }
+
+    public void storeHalf(long address, int value) {
+        int addr = (int) address;
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) {
+            HALF.set(touchPage(addr), offset, (short) value);
+        } else {
+            storeByte(addr, value);
+            storeByte(addr + 1, value >> 8);
+        }
+    }
+
+    public void storeWord(long address, int value) {
+        int addr = (int) address;
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) {
+            WORD.set(touchPage(addr), offset, value);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                storeByte(addr + i, value >> (i * 8));
+            }
+        }
+    }
+
+    // --- Housekeeping ---
+
+    public void clear() {
+        Arrays.fill(directory, null);
+        allocatedPages = 0;
+    }
+
+    // Install a whole page from 'source' (restoring a checkpoint)
+    public void restorePage(long base, ByteBuffer source) {
+        source.get(touchPage((int) base));
+    }
+
+    public int getAllocatedPages() {
+        return allocatedPages;
+    }
+
+    // Visit every allocated page in ascending address order
+    public void forEachPage(PageVisitor visitor) {
+        for (int d = 0; d < directory.length; d++) {
+            byte[][] table = directory[d];
+            if (table == null)
+                continue;
+            for (int p = 0; p < table.length; p++) {
+                if (table[p] != null) {
+                    long base = (((long) d << TABLE_BITS) | p) << PAGE_BITS;
+                    visitor.visit(base, table[p]);
+                }
+            }
+        }
+    }
+
+    interface PageVisitor {
+        void visit(long baseAddress, byte[] page);
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+// Hardware-style event counters for the pipelined model.
+// Plain long fields bumped at fixed points: WB classifies each retired instruction, ID counts
+// the cycles it holds an instruction back (by cause), IF and MEM count cache-miss waits, the
+// flush logic counts squashed slots, and EX counts branch verifications. Cycles and the
+// retired total live in PipelinedCPU and are passed in when reporting.
+final class PerfCounters {
+
+    // --- Retired instructions by class (WB) ---
+    long retiredAlu; // Integer arithmetic, LUI, AUIPC
+    long retiredMulDiv; // M extension
+    long retiredLoads;
+    long retiredStores;
+    long retiredBranches; // Conditional branches
+    long retiredJumps; // JAL, JALR
+
+    // --- Lost cycles (ID and flush) ---
+    long loadUseStallCycles; // hazardStall: the consumer waits one cycle behind a load
+    long forwardingStallCycles; // dataForwardingStall: RAW waits with forwarding disabled
+    long branchStallCycles; // branchStall: a branch resolving in ID waits for an operand
+    long iCacheStallCycles; // Bubbles fetch sends while an L1I miss is outstanding
+    long dCacheStallCycles; // Whole-pipeline holds while MEM waits for an L1D miss
+    long missStallCycles; // missStall: ID waits for a register an outstanding load miss will write
+    long unitStallCycles; // unitStall: ID waits for a MUL/DIV result or a busy divider
+    long flushes; // branchMispredictFlush events
+    long flushCycles; // Wrong-path slots squashed by those flushes
+
+    // --- Branch prediction (verified in EX) ---
+    long branches;
+    long branchesTaken;
+    long directionMispredicts;
+    long targetMispredicts; // Predicted taken with the right direction but a stale target
+    long jumps;
+    long jumpMispredicts;
+    long returns; // JALR through x1/x5 (popped off the return address stack)
+    long returnMispredicts;
+    long indirectJumps; // Other JALRs
+    long indirectMispredicts;
+
+    // Names and values in one fixed order (JSON report and checkpoints)
+    static final String[] NAMES = {
+            "retiredAlu", "retiredMulDiv", "retiredLoads", "retiredStores", "retiredBranches", "retiredJumps",
+            "loadUseStallCycles", "forwardingStallCycles", "flushes", "flushCycles",
+            "branches", "branchesTaken", "directionMispredicts", "targetMispredicts", "jumps", "jumpMispredicts",
+            "returns", "returnMispredicts", "indirectJumps", "indirectMispredicts", "branchStallCycles",
+            "iCacheStallCycles", "dCacheStallCycles", "missStallCycles", "unitStallCycles"
+    };
+
+    long[] values() {
+        return new long[] {
+                retiredAlu, retiredMulDiv, retiredLoads, retiredStores, retiredBranches, retiredJumps,
+                loadUseStallCycles, forwardingStallCycles, flushes, flushCycles,
+                branches, branchesTaken, directionMispredicts, targetMispredicts, jumps, jumpMispredicts,
+                returns, returnMispredicts, indirectJumps, indirectMispredicts, branchStallCycles,
+                iCacheStallCycles, dCacheStallCycles, missStallCycles, unitStallCycles
+        };
+    }
+
+    void setValues(long[] v) {
+        retiredAlu = v[0];
+        retiredMulDiv = v[1];
+        retiredLoads = v[2];
+        retiredStores = v[3];
+        retiredBranches = v[4];
+        retiredJumps = v[5];
+        loadUseStallCycles = v[6];
+        forwardingStallCycles = v[7];
+        flushes = v[8];
+        flushCycles = v[9];
+        branches = v[10];
+        branchesTaken = v[11];
+        directionMispredicts = v[12];
+        targetMispredicts = v[13];
+        jumps = v[14];
+        jumpMispredicts = v[15];
+        returns = v[16];
+        returnMispredicts = v[17];
+        indirectJumps = v[18];
+        indirectMispredicts = v[19];
+        branchStallCycles = v[20];
+        iCacheStallCycles = v[21];
+        dCacheStallCycles = v[22];
+        missStallCycles = v[23];
+        unitStallCycles = v[24];
+    }
+
+    // --- Events ---
+
+    void retire(DecodedInstruction instruction) {
+        if (instruction.memRead) {
+            retiredLoads++;
+        } else if (instruction.memWrite) {
+            retiredStores++;
+        } else if (instruction.branch) {
+            retiredBranches++;
+        } else if (instruction.jump) {
+            retiredJumps++;
+        } else if (isMulDiv(instruction.aluOp)) {
+            retiredMulDiv++;
+        } else {
+            retiredAlu++;
+        }
+    }
+
+    private static boolean isMulDiv(AluOp op) {
+        switch (op) {
+            case MUL:
+            case MULH:
+            case MULHSU:
+            case MULHU:
+            case DIV:
+            case DIVU:
+            case REM:
+            case REMU:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    long branchMispredicts() {
+        return directionMispredicts + targetMispredicts;
+    }
+
+    // --- Reports ---
+
+    // 'predictor' describes the direction predictor the branch numbers belong to, 'btb' the target
+    // buffer with its hit statistics
+    void print(PrintStream out, long cycles, long retired, boolean pipelined, String predictor, String btb) {
+        out.println("--- Performance Counters ---");
+        out.printf("Cycles: %d, Instructions Retired: %d, CPI: %s\n", cycles, retired,
+                retired == 0 ? "n/a" : String.format(Locale.ROOT, "%.4f", (double) cycles / retired));
+        out.printf("Instruction Mix: ALU %s, Mul/Div %s, Loads %s, Stores %s, Branches %s, Jumps %s\n",
+                share(retiredAlu, retired), share(retiredMulDiv, retired), share(retiredLoads, retired),
+                share(retiredStores, retired), share(retiredBranches, retired), share(retiredJumps, retired));
+        if (!pipelined) {
+            return; // One instruction per cycle: no stalls, flushes or predictions to report
+        }
+        out.printf("Stall Cycles: load-use %s, no-forwarding %s, branch-in-ID %s, I-cache %s, D-cache %s,"
+                        + " miss-use %s, mul/div %s\n", share(loadUseStallCycles, cycles),
+                share(forwardingStallCycles, cycles), share(branchStallCycles, cycles),
+                share(iCacheStallCycles, cycles), share(dCacheStallCycles, cycles), share(missStallCycles, cycles),
+                share(unitStallCycles, cycles));
+        out.printf("Flush Cycles: %s from %d flushes\n", share(flushCycles, cycles), flushes);
+        out.println("Branch Predictor: " + predictor);
+        out.println("BTB: " + btb);
+        out.printf("Branches: %d (%d taken), mispredicted %d (direction %d, target %d), accuracy %s\n",
+                branches, branchesTaken, branchMispredicts(), directionMispredicts, targetMispredicts,
+                branches == 0 ? "n/a" : percent(branches - branchMispredicts(), branches));
+        out.printf("Jumps: %d, target mispredicted %d (returns %d of %d, indirect %d of %d)\n", jumps, jumpMispredicts,
+                returnMispredicts, returns, indirectMispredicts, indirectJumps);
+        if (retired > 0) {
+            // Everything not attributed to a stall or flush is pipeline fill/drain
+            double loadUse = (double) loadUseStallCycles / retired;
+            double forwarding = (double) forwardingStallCycles / retired;
+            double branch = (double) branchStallCycles / retired;
+            double iCache = (double) iCacheStallCycles / retired;
+            double dCache = (double) dCacheStallCycles / retired;
+            double missUse = (double) missStallCycles / retired;
+            double mulDiv = (double) unitStallCycles / retired;
+            double flush = (double) flushCycles / retired;
+            double other = (double) cycles / retired - 1 - loadUse - forwarding - branch - iCache - dCache - missUse
+                    - mulDiv - flush;
+            out.printf(Locale.ROOT, "CPI Stack: base 1.0000 + load-use %.4f + no-forwarding %.4f + branch-in-ID %.4f"
+                    + " + I-cache %.4f + D-cache %.4f + miss-use %.4f + mul/div %.4f + flush %.4f + other %.4f\n",
+                    loadUse, forwarding, branch, iCache, dCache, missUse, mulDiv, flush, other);
+        }
+    }
+
+    void writeJson(String path, long cycles, long retired) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path)))) {
+            out.println("{");
+            out.printf("  \"cycles\": %d,\n", cycles);
+            out.printf("  \"instructionsRetired\": %d,\n", retired);
+            out.printf(Locale.ROOT, "  \"cpi\": %s,\n",
+                    retired == 0 ? "null" : String.format(Locale.ROOT, "%.6f", (double) cycles / retired));
+            long[] values = values();
+            for (int i = 0; i < NAMES.length; i++) {
+                out.printf("  \"%s\": %d%s\n", NAMES[i], values[i], i + 1 < NAMES.length ? "," : "");
+            }
+            out.println("}");
+        }
+    }
+
+    private static String share(long count, long total) {
+        return total == 0 ? String.valueOf(count) : count + " (" + percent(count, total) + ")";
+    }
+
+    private static String percent(long count, long total) {
+        return String.format(Locale.ROOT, "%.2f%%", 100.0 * count / total);
+    }
+}
@@ -1,7 +1,13 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
@@ -15,42 +21,81 @@ public class PipelinedCPU {
     private boolean printPipelineRegsEnabled = true; // Knob 4: Print pipeline registers each cycle
     private int traceInstructionNum = -1; // Knob 5: Trace specific instruction number (-1 to disable)
     private boolean printBPUEnabled = false; // Knob 6: Print BPU details each cycle
+    private boolean functionalMode = false; // --mode=functional: architectural simulation only, no timing
+    private boolean blockCacheEnabled = true; // --block-cache: run functional mode from cached basic blocks
+    private int translationThreshold = 1000; // --jit-threshold: block runs before translating it to bytecode (0 = off)
+    private boolean sampledMode = false; // --mode=sampled: functional fast-forward with detailed sample windows
+    private long samplePeriod = 1_000_000; // --sample-period: instructions per sampling unit
+    private long sampleWarmup = 50_000; // --sample-warmup: functionally warm the BPU over this many instructions
+    private long sampleDetailWarmup = 2_000; // --sample-detail-warmup: unmeasured detailed instructions (pipeline fill)
+    private long sampleWindow = 1_000; // --sample-window: measured detailed instructions per sample
+    private EnumSet<Tracer.Category> traceCategories = null; // --trace: overrides Knobs 3, 4 and 6 when set
+    private int traceLevel = Tracer.LEVEL_DETAIL; // --trace-level
+    private String traceFile = null; // --trace-file: write the trace there instead of stdout
+    private String binaryTraceFile = null; // --trace-binary: compact per-cycle pipeline register trace
+    private long checkpointAt = -1; // --checkpoint-at: save and stop after this cycle (instruction in functional mode)
+    private String checkpointFile = "checkpoint.bin"; // --checkpoint-file
+    private long maxCycles = 0; // --max-cycles: give up after this cycle (instruction when not timed), 0 = no limit
+    private String restoreFile = null; // --restore: start from a checkpoint instead of a .mc file
+    private String statsFile = null; // --stats-file: also write the performance counters as JSON
+    private String predictorKind = "onebit"; // --bpu: onebit, bimodal, gshare, tournament or tage
+    private int predictorEntries = DirectionPredictor.DEFAULT_ENTRIES; // --bpu-entries (power of two)
+    private int predictorHistory = 0; // --bpu-history: global history bits (0 = predictor default)
+    private int rasDepth = ReturnAddressStack.DEFAULT_DEPTH; // --ras-depth (0 = off)
+    private int indirectEntries = IndirectTargetPredictor.DEFAULT_ENTRIES; // --indirect-entries (0 = off)
+    private int btbEntries = BranchTargetBuffer.DEFAULT_ENTRIES; // --btb-entries (power of two)
+    private int btbWays = BranchTargetBuffer.DEFAULT_WAYS; // --btb-ways
+    private int btbTagBits = 0; // --btb-tag-bits (0 = full tags)
+    private String btbReplacement = "lru"; // --btb-replacement: lru, plru or random
+    private boolean earlyBranchResolution = false; // --branch-resolve=id: compare branches in ID
 
     // --- Core Components ---
-    private final Map<String, String> registerFile; // Register file (x0-x31)
-    private final Map<String, String> textSegment; // Instruction Memory
-    private final Map<String, String> dataMemory; // Data Memory
+    private final RegisterFile registerFile; // Register file (x0-x31)
+    private DecodedInstruction[] textSegment; // Instruction Memory, predecoded and indexed by (pc - textBase) >> 2
+    private long textBase;
+    private final PagedMemory dataMemory; // Data Memory
     private final BranchPredictor bpu;
+    private final MemoryHierarchy caches = new MemoryHierarchy(); // --l1i-*, --l1d-*, --l2-*: timing only
+    private final FunctionalUnits units = new FunctionalUnits(); // --mul-*, --div-*: M-extension latencies
+    private PrintStream console = System.out; // Status and final report (the batch runner gives each job its own)
+    private Tracer trace = Tracer.disabled(); // Created per run from the knobs
+    private BinaryTrace.Writer binaryTrace; // Null unless --trace-binary is given
+    private FunctionalSimulator functional; // Sampled mode: shares the text, so text stores go through it
 
     private long pc; // Program Counter (using long for unsigned 32-bit)
     private long clockCycle;
+    private long instructionsRetired; // Counted in WB (or by the functional simulator)
+    private double sampledCpi = Double.NaN; // Sampled mode's CPI estimate
+    private final PerfCounters perf = new PerfCounters();
+    private boolean fetchStopped; // Sampling: let the pipeline drain without fetching
+    private boolean truncated; // Stopped by a cycle limit before the program ended
     private long instructionCount; // To track instruction number for Knob 5
     private boolean hazardStall; // Flag to indicate if pipeline is stalled
     private boolean dataForwardingStall;
+    private boolean branchStall; // --branch-resolve=id: a branch in ID waits for an operand
+    private boolean missStall; // --mshrs: ID waits for a register an outstanding load miss will write
+    private boolean unitStall; // ID waits for a multi-cycle MUL/DIV result or a busy unit
     private boolean branchMispredictFlush; // Flag to signal flush due to misprediction
 
     // --- Pipeline Registers ---
-    private IFIDRegister if_id_reg;
-    private IDEXRegister id_ex_reg;
-    private EXMEMRegister ex_mem_reg;
-    private MEMWBRegister mem_wb_reg;
-    private EXMEMRegister ex_debug;
+    // Each latch is double-buffered: stages read the current half (*_reg) and write the next half
+    // (*_next); clockEdge() swaps the halves, so no latch objects are created while running.
+    private IFIDRegister if_id_reg, if_id_next;
+    private IDEXRegister id_ex_reg, id_ex_next;
+    private EXMEMRegister ex_mem_reg, ex_mem_next;
+    private MEMWBRegister mem_wb_reg, mem_wb_next;
 
     // --- Helper Constants ---
-    private static final String NOP_INSTRUCTION = "0x00000000"; // NOP instruction representation
     private static final String ZERO_REG = "x0";
     private static final long INITIAL_SP = 0x7FFFFFDC; // Default stack pointer address
 
     // --- Constructor ---
     public PipelinedCPU() {
-        registerFile = new HashMap<>();
-        for (int i = 0; i < 32; i++) {
-            registerFile.put("x" + i, formatHex(0));
-        }
-        registerFile.put("x2", formatHex(INITIAL_SP)); // Initialize Stack Pointer (sp)
+        registerFile = new RegisterFile();
+        registerFile.write(2, (int) INITIAL_SP); // Initialize Stack Pointer (sp)
 
-        textSegment = new HashMap<>();
-        dataMemory = new HashMap<>(); // Use this for data loads/stores
+        textSegment = new DecodedInstruction[0];
+        dataMemory = new PagedMemory(); // Use this for data loads/stores
         bpu = new BranchPredictor();
 
         pc = 0x0; // Default starting PC
@@ -61,41 +106,61 @@ public class PipelinedCPU {
 
         // Initialize pipeline registers with NOPs or safe defaults
         if_id_reg = new IFIDRegister();
+        if_id_next = new IFIDRegister();
         id_ex_reg = new IDEXRegister();
+        id_ex_next = new IDEXRegister();
         ex_mem_reg = new EXMEMRegister();
+        ex_mem_next = new EXMEMRegister();
         mem_wb_reg = new MEMWBRegister();
+        mem_wb_next = new MEMWBRegister();
     }
 
     // --- Pipeline Register Classes ---
     // (Contain data passed between stages)
     static class IFIDRegister {
         long instructionPC = 0;
-        String instruction = NOP_INSTRUCTION;
+        DecodedInstruction instruction = DecodedInstruction.NOP;
         long nextPC = 0; // PC + 4
         //        long instructionNumber = 0; // For Knob 5
         boolean valid = false; // To handle stalls/flushes
         boolean predictedTaken = false; // For branch prediction
         long predictedTarget = 0; // Store the predicted target address
+        long pathHistory = 0; // Indirect predictor path at fetch, so EX trains the entry fetch read
+        long branchHistory = 0; // Direction predictor's global history at fetch, for the same reason
 
         @Override
         public String toString() {
             return String.format(
                     "IF/ID [Valid:%b]: PC=0x%08X, IR=%s, NextPC=0x%08X, PredTaken:%b, PredTarget=0x%08X",
-                    valid, instructionPC, instruction, nextPC, predictedTaken, predictedTarget);
+                    valid, instructionPC, instruction.hex, nextPC, predictedTaken, predictedTarget);
         }
 
         public void clear() {
-            instruction = NOP_INSTRUCTION;
+            instruction = DecodedInstruction.NOP;
             valid = false;
 //            instructionNumber = 0;
             predictedTaken = false;
             predictedTarget = 0;
+            pathHistory = 0;
+            branchHistory = 0;
+        }
+
+        // Hold the latch contents across a stall
+        public void copyFrom(IFIDRegister other) {
+            this.instructionPC = other.instructionPC;
+            this.instruction = other.instruction;
+            this.nextPC = other.nextPC;
+            this.valid = other.valid;
+            this.predictedTaken = other.predictedTaken;
+            this.predictedTarget = other.predictedTarget;
+            this.pathHistory = other.pathHistory;
+            this.branchHistory = other.branchHistory;
         }
     }
 
     static class IDEXRegister {
         // Control Signals
-        String aluOp = "NOP"; // Represents the operation
+        AluOp aluOp = AluOp.NOP; // Represents the operation
         boolean regWrite = false;
         boolean memRead = false;
         boolean memWrite = false;
@@ -103,7 +168,7 @@ public class PipelinedCPU {
         boolean jump = false; // Is it JAL or JALR?
         boolean useImm = false; // Does ALU use immediate?
         int writeBackMux = 0; // 0: ALU result, 1: Mem data, 2: PC+4
-        String memSize = "WORD"; // BYTE, HALF, WORD
+        MemSize memSize = MemSize.WORD; // BYTE, HALF, WORD
 
         // Data
         long instructionPC = 0;
@@ -114,7 +179,11 @@ public class PipelinedCPU {
         int rs1 = 0; // Register numbers (needed for forwarding checks)
         int rs2 = 0;
         int rd = 0; // Destination register number
-        String debugInstruction = NOP_INSTRUCTION; // Store instruction string for debugging
+        boolean predictedTaken = false; // Fetch-time prediction, carried along for EX to verify
+        long predictedTarget = 0; // The PC fetch continued at
+        long pathHistory = 0;
+        long branchHistory = 0;
+        DecodedInstruction instruction = DecodedInstruction.NOP; // Store instruction for debugging
         //        long instructionNumber = 0; // For Knob 5
         boolean valid = false;
 
@@ -126,20 +195,24 @@ public class PipelinedCPU {
                             "RVal1=0x%X, RVal2=0x%X, Imm=0x%X, rs1=x%d, rs2=x%d, rd=x%d, IR=%s",
                     valid, instructionPC, aluOp, regWrite, memRead, memWrite, branch, jump, useImm,
                     writeBackMux, memSize,
-                    readData1, readData2, immediate, rs1, rs2, rd, debugInstruction.substring(2));
+                    readData1, readData2, immediate, rs1, rs2, rd, instruction.hex.substring(2));
         }
 
         public void clear() {
-            aluOp = "NOP";
+            aluOp = AluOp.NOP;
             regWrite = false;
             memRead = false;
             memWrite = false;
             branch = false;
             jump = false;
             useImm = false;
+            predictedTaken = false;
+            predictedTarget = 0;
+            pathHistory = 0;
+            branchHistory = 0;
             valid = false;
 //            instructionNumber = 0;
-            debugInstruction = NOP_INSTRUCTION;
+            instruction = DecodedInstruction.NOP;
         }
     }
 
@@ -149,9 +222,9 @@ public class PipelinedCPU {
         boolean memRead = false;
         boolean memWrite = false;
         boolean branchTaken = false; // Actual outcome of branch
-        String debugInstruction = NOP_INSTRUCTION; // Store instruction string for debugging
+        DecodedInstruction instruction = DecodedInstruction.NOP; // Store instruction for debugging
         int writeBackMux = 0;
-        String memSize = "WORD";
+        MemSize memSize = MemSize.WORD;
 
         // Data
         long instructionPC = 0; // Needed for BPU update
@@ -170,33 +243,14 @@ public class PipelinedCPU {
                     aluResult, writeData, branchTarget, rd);
         }
 
-        public EXMEMRegister() {
-
-        }
-
-        public EXMEMRegister(EXMEMRegister other) {
-            this.regWrite = other.regWrite;
-            this.memRead = other.memRead;
-            this.memWrite = other.memWrite;
-            this.branchTaken = other.branchTaken;
-            this.debugInstruction = other.debugInstruction;
-            this.writeBackMux = other.writeBackMux;
-            this.memSize = other.memSize;
-
-            this.instructionPC = other.instructionPC;
-            this.aluResult = other.aluResult;
-            this.writeData = other.writeData;
-            this.branchTarget = other.branchTarget;
-            this.rd = other.rd;
-            this.valid = other.valid;
-//            this.instructionNumber = other.instructionNumber;
-        }
-
         public void clear() {
             regWrite = false;
             memRead = false;
             memWrite = false;
+            branchTaken = false;
+            branchTarget = 0;
             valid = false;
+            instruction = DecodedInstruction.NOP;
 //            instructionNumber = 0;
         }
     }
@@ -211,7 +265,7 @@ public class PipelinedCPU {
         long aluResult = 0; // Forwarded from EX/MEM
         long readData = 0; // Data read from memory
         int rd = 0; // Destination register number
-        String debugInstruction = NOP_INSTRUCTION; // Store instruction string for debugging
+        DecodedInstruction instruction = DecodedInstruction.NOP; // Store instruction for debugging
         boolean valid = false;
 //        long instructionNumber = 0;
 
@@ -226,92 +280,184 @@ public class PipelinedCPU {
         public void clear() {
             regWrite = false;
             valid = false;
+            instruction = DecodedInstruction.NOP;
 //            instructionNumber = 0;
         }
     }
 
+    // --- Register File ---
+    // Architectural registers held as raw 32-bit values; formatting is left to the printers
+    static class RegisterFile {
+        private final int[] regs = new int[32];
+
+        // Read register xN (x0 always reads as zero)
+        public int read(int reg) {
+            return regs[reg];
+        }
+
+        // Write register xN (writes to x0 are discarded)
+        public void write(int reg, int value) {
+            if (reg != 0) {
+                regs[reg] = value;
+            }
+        }
+    }
+
     // --- Branch Predictor ---
     static class BranchPredictor {
-        // 1-bit predictor: 0 = Not Taken, 1 = Taken
-        private final Map<Long, Integer> historyTable;
-        // Branch Target Buffer (Maps PC -> Predicted Target)
-        private final Map<Long, Long> targetBuffer;
-
-        // Statistics
+        // Direction predictor (--bpu; 1-bit by default: 0 = Not Taken, 1 = Taken)
+        private DirectionPredictor direction;
+        // Branch Target Buffer (--btb-*; set-associative, PC -> Predicted Target)
+        private BranchTargetBuffer targetBuffer;
+        // Jump target predictors (--ras-depth, --indirect-entries; null when disabled)
+        private ReturnAddressStack returnStack;
+        private IndirectTargetPredictor indirect;
+
+        // Statistics, counted when EX verifies fetch's prediction (wrong-path fetches never count)
         long predictions = 0;
-        long mispredictions = 0;
-//        long btbHits = 0;
-//        long btbMisses = 0;
+        long mispredictions = 0; // Fetch continued at the wrong PC
 
         BranchPredictor() {
-            historyTable = new HashMap<>();
-            targetBuffer = new HashMap<>();
+            direction = DirectionPredictor.create("onebit", DirectionPredictor.DEFAULT_ENTRIES, 0);
+            targetBuffer = new BranchTargetBuffer(BranchTargetBuffer.DEFAULT_ENTRIES, BranchTargetBuffer.DEFAULT_WAYS, 0,
+                    "lru");
+            returnStack = new ReturnAddressStack(ReturnAddressStack.DEFAULT_DEPTH);
+            indirect = new IndirectTargetPredictor(IndirectTargetPredictor.DEFAULT_ENTRIES);
         }
 
         // Predict based on PC
         public boolean predictTaken(long pc) {
-            predictions++;
-            return historyTable.getOrDefault(pc, 0) == 1; // Default to Not Taken
+            return direction.predict(pc); // Untrained entries predict Not Taken
         }
 
-        // Check if the PC is in the BTB
-        public boolean isInBTB(long pc) {
-            return targetBuffer.containsKey(pc);
+        // Get predicted target from BTB (-1 if not in BTB)
+        public long getPredictedTarget(long pc) {
+            return targetBuffer.lookup(pc);
         }
 
-        // Get predicted target from BTB
-        public long getPredictedTarget(long pc) {
-            if (targetBuffer.containsKey(pc)) {
-//                btbHits++;
-                return targetBuffer.get(pc);
-            } else {
-//                btbMisses++;
-                return pc + 4; // Default to PC+4 if not in BTB
+        // Fetch-time target of a jump from the return address stack or the indirect predictor, -1 if
+        // neither has one (the BTB is the fallback). Also does the jump's push/pop, so call it
+        // exactly once per fetched instruction.
+        public long predictJumpTarget(long pc, DecodedInstruction instruction) {
+            if (!instruction.jump) {
+                return -1;
             }
+            long target = returnStack == null ? -1 : returnStack.onFetch(pc, instruction);
+            if (target == -1 && usesIndirect(instruction.aluOp, instruction.rd, instruction.rs1)) {
+                target = indirect.predict(pc, indirect.pathHistory);
+            }
+            return target;
         }
 
-        // Update predictor based on actual outcome
-        public void update(long pc, boolean actuallyTaken, long actualTarget) {
-            int currentState = historyTable.getOrDefault(pc, 0);
-            boolean predictedTaken = (currentState == 1);
+        // JALRs the indirect predictor handles: all of them but returns, unless the RAS is off
+        public boolean usesIndirect(AluOp op, int rd, int rs1) {
+            return indirect != null && op == AluOp.JALR
+                    && (returnStack == null || !ReturnAddressStack.isReturn(op, rd, rs1));
+        }
+
+        public long pathHistory() {
+            return indirect == null ? 0 : indirect.pathHistory;
+        }
+
+        public long globalHistory() {
+            return direction.history;
+        }
 
-            if (predictedTaken != actuallyTaken) {
+        // Train the indirect predictor at the slot fetch looked up (call before update())
+        public void updateIndirect(long pc, long path, long actualTarget) {
+            indirect.update(pc, path, actualTarget);
+        }
+
+        // The wrong-path instruction at 'pc' was squashed: undo its return address stack push/pop
+        // and its indirect predictor lookup
+        public void squash(long pc) {
+            if (returnStack != null) {
+                returnStack.squash(pc);
+            }
+            if (indirect != null) {
+                indirect.squash(pc);
+            }
+        }
+
+        // Update predictor based on actual outcome
+        // ('mispredicted' is EX's verdict on the prediction fetch made, not a fresh lookup, and
+        // 'history' is globalHistory() as fetch saw it)
+        public void update(long pc, long history, boolean mispredicted, boolean actuallyTaken, long actualTarget) {
+            predictions++;
+            if (mispredicted) {
                 mispredictions++;
             }
+            train(pc, history, actuallyTaken, actualTarget);
+        }
 
-            // Update state (simple 1-bit saturation)
-            historyTable.put(pc, actuallyTaken ? 1 : 0);
+        // Functional warming: train on an executed branch/jump and do its return address stack
+        // push/pop. Nothing is in flight, so the current history is the fetch-time one.
+        public void warm(long pc, DecodedInstruction instruction, boolean actuallyTaken, long actualTarget) {
+            if (returnStack != null && instruction.jump) {
+                returnStack.onWarm(pc, instruction);
+            }
+            train(pc, direction.history, actuallyTaken, actualTarget);
+        }
+
+        // Update the tables without touching the statistics
+        public void train(long pc, long history, boolean actuallyTaken, long actualTarget) {
+            direction.update(pc, history, actuallyTaken);
 
             // Update BTB with actual target if branch was taken
             if (actuallyTaken) {
-                targetBuffer.put(pc, actualTarget);
+                targetBuffer.update(pc, actualTarget);
+                if (indirect != null) {
+                    indirect.recordTaken(actualTarget);
+                }
             }
         }
 
+        DirectionPredictor getDirectionPredictor() {
+            return direction;
+        }
+
+        void setDirectionPredictor(DirectionPredictor direction) {
+            this.direction = direction;
+        }
+
+        ReturnAddressStack getReturnStack() {
+            return returnStack;
+        }
+
+        void setReturnStack(ReturnAddressStack returnStack) {
+            this.returnStack = returnStack;
+        }
+
+        IndirectTargetPredictor getIndirectPredictor() {
+            return indirect;
+        }
+
+        void setIndirectPredictor(IndirectTargetPredictor indirect) {
+            this.indirect = indirect;
+        }
+
+        BranchTargetBuffer getTargetBuffer() {
+            return targetBuffer;
+        }
+
+        void setTargetBuffer(BranchTargetBuffer targetBuffer) {
+            this.targetBuffer = targetBuffer;
+        }
+
         @Override
         public String toString() {
-            TreeMap<Long, Integer> sortedHistory = new TreeMap<>(historyTable);
             StringBuilder sb = new StringBuilder("BPU State: Predictions=" + predictions +
                     ", Mispredictions=" + mispredictions + "\n");
-            sb.append(" History Table (PC -> State[0=NT,1=T]):\n");
-            if (sortedHistory.isEmpty()) {
-                sb.append("  <Empty>\n");
-            } else {
-                for (Map.Entry<Long, Integer> entry : sortedHistory.entrySet()) {
-                    sb.append(String.format("  0x%08X -> %d\n", entry.getKey(), entry.getValue()));
-                }
+            direction.dump(sb);
+            if (returnStack != null) {
+                returnStack.dump(sb);
+            }
+            if (indirect != null) {
+                indirect.dump(sb);
             }
 
             // Add BTB printing
-            TreeMap<Long, Long> sortedBTB = new TreeMap<>(targetBuffer);
-            sb.append(" Branch Target Buffer (PC -> Target):\n");
-            if (sortedBTB.isEmpty()) {
-                sb.append("  <Empty>\n");
-            } else {
-                for (Map.Entry<Long, Long> entry : sortedBTB.entrySet()) {
-                    sb.append(String.format("  0x%08X -> 0x%08X\n", entry.getKey(), entry.getValue()));
-                }
-            }
+            targetBuffer.dump(sb);
             return sb.toString();
         }
     }
@@ -321,70 +467,58 @@ public class PipelinedCPU {
         return String.format("0x%08X", value);
     }
 
-    private long parseHex(String hex) {
-        if (hex == null || !hex.startsWith("0x")) {
-            // Handle error or return default
-            System.err.println("Warning: Invalid hex string format: " + hex);
-            return 0;
+    // Predecoded instruction at 'address'; NOP outside the loaded text segment
+    private DecodedInstruction instructionAt(long address) {
+        long offset = address - textBase;
+        if (offset < 0 || (offset & 3) != 0 || (offset >> 2) >= textSegment.length) {
+            return DecodedInstruction.NOP;
         }
-        // Use parseUnsignedLong to handle addresses/values > 0x7FFFFFFF
-        return Long.parseUnsignedLong(hex.substring(2), 16);
+        return textSegment[(int) (offset >> 2)];
     }
 
-    private long signExtend(String binary, int bitWidth) {
-        long value = Long.parseLong(binary, 2);
-        long mask = 1L << (bitWidth - 1);
-        if ((value & mask) != 0) { // Check if sign bit is 1
-            // Sign extend: fill higher bits with 1s
-            long signBits = -1L << bitWidth; // Creates mask like 0xFFFFF000 for 12 bits
-            value |= signBits;
-        }
-        return value;
+    // Knob 5: is this the instruction stored at the traced address?
+    private boolean isTraced(DecodedInstruction instruction) {
+        return traceInstructionNum != -1 && instruction.word == instructionAt(traceInstructionNum).word;
     }
 
     // Little-Endian Memory Read/Write Helpers
-    private long readMemory(long address, String size) {
-        long value = 0;
-        int bytes = size.equals("BYTE") ? 1 : size.equals("HALF") ? 2 : 4; // Assuming WORD is 4 bytes for RV32
-
-        for (int i = 0; i < bytes; i++) {
-            String byteAddressHex = formatHex(address + i);
-            String byteStr = dataMemory.getOrDefault(byteAddressHex, "00"); // Default to 00 if not found
-            long byteValue = Long.parseLong(byteStr, 16);
-            value |= (byteValue << (i * 8)); // Assemble bytes in little-endian order
-        }
-
-        // Handle sign extension for byte/half loads
-        if (size.equals("BYTE")) {
-            if ((value & 0x80) != 0)
-                value |= 0xFFFFFFFFFFFFFF00L; // Sign extend 8 bits
-        } else if (size.equals("HALF")) {
-            if ((value & 0x8000) != 0)
-                value |= 0xFFFFFFFFFFFF0000L; // Sign extend 16 bits
-        }
-        // Word loads (LW) in RV32 are sign-extended from 32 bits, which Long already
-        // handles if needed.
+    private long readMemory(long address, MemSize size) {
+        // Byte/half loads are sign-extended by PagedMemory; word loads are sign-extended from 32 bits.
         // LBU, LHU would require zero-extension logic here if implemented.
-
-        return value;
+        switch (size) {
+            case BYTE:
+                return dataMemory.loadByte(address);
+            case HALF:
+                return dataMemory.loadHalf(address);
+            default:
+                return dataMemory.loadWord(address); // WORD is 4 bytes for RV32
+        }
     }
 
-    private void writeMemory(long address, long data, String size) {
-        int bytes = size.equals("BYTE") ? 1 : size.equals("HALF") ? 2 : 4; // Assuming WORD is 4 bytes
-
-        for (int i = 0; i < bytes; i++) {
-            String byteAddressHex = formatHex(address + i);
-            long byteValue = (data >> (i * 8)) & 0xFF; // Extract byte
-            String byteStr = String.format("%02X", byteValue);
-            dataMemory.put(byteAddressHex, byteStr);
+    private void writeMemory(long address, long data, MemSize size) {
+        switch (size) {
+            case BYTE:
+                dataMemory.storeByte(address, (int) data);
+                break;
+            case HALF:
+                dataMemory.storeHalf(address, (int) data);
+                break;
+            default:
+                dataMemory.storeWord(address, (int) data); // WORD is 4 bytes
+                break;
         }
     }
 
     // --- Pipeline Stage Implementations ---
 
     private void instructionFetch() {
-        if (hazardStall || dataForwardingStall) {
-            // If stalled, do not fetch a new instruction
+        if (hazardStall || dataForwardingStall || branchStall || missStall || unitStall) {
+            // If stalled, do not fetch a new instruction; IF/ID holds its contents
+            if_id_next.copyFrom(if_id_reg);
+            return;
+        }
+        if (fetchStopped) {
+            if_id_next.clear(); // Draining: only bubbles enter the pipeline
             return;
         }
 
@@ -394,43 +528,66 @@ public class PipelinedCPU {
             branchMispredictFlush = false;
         }
 
-        String instructionHex = textSegment.getOrDefault(formatHex(pc), NOP_INSTRUCTION);
+        // I-cache: a miss sends bubbles down until the line arrives. A redirect meanwhile abandons
+        // the wait (the line is still filled).
+        if (pc != caches.fetchMissPc) {
+            caches.fetchMissPc = -1;
+            int latency = caches.fetch(pc, clockCycle);
+            if (latency > 0) {
+                caches.fetchMissPc = pc;
+                caches.fetchReadyCycle = clockCycle + latency;
+            }
+        }
+        if (pc == caches.fetchMissPc) {
+            if (clockCycle < caches.fetchReadyCycle) {
+                if_id_next.clear();
+                perf.iCacheStallCycles++;
+                return;
+            }
+            caches.fetchMissPc = -1;
+        }
+
+        DecodedInstruction instruction = instructionAt(pc);
         long currentPC = pc;
         long pcPlus4 = pc + 4;
 
 //        boolean isRealInstruction = !instructionHex.equals(NOP_INSTRUCTION) && !instructionHex.equals("0xDEADBEEF");
 //        long currentInstructionNumber = isRealInstruction ? instructionCount++ : -1;
 
-        // Check if this might be a branch/jump based on opcode
-        boolean mightBeBranch = false;
-        long instructionVal = parseHex(instructionHex);
-        int opcode = (int) (instructionVal & 0x7F); // bits 6:0
-
-        // Check if it's a branch or jump instruction
-        if (opcode == 0b1100011 || // B-Type (branches)
-                opcode == 0b1101111 || // J-Type (JAL)
-                opcode == 0b1100111) { // I-Type (JALR)
-            mightBeBranch = true;
-        }
+        // Check if this might be a branch/jump based on opcode (B-Type, JAL, JALR)
+        boolean mightBeBranch = instruction.mightBeBranch;
 
         // Branch Prediction
         long predictedNextPC = pcPlus4; // Default: predict not taken
         boolean predictedTaken = false;
-
-        // Check if the PC is in the BTB first
-        if (bpu.isInBTB(currentPC)) {
+        long pathHistory = bpu.pathHistory(); // Before this jump's own lookup
+        long branchHistory = bpu.globalHistory();
+
+        // Returns and other indirect jumps first, then the BTB. Only predecoded control flow looks
+        // the BTB up, so a partial-tag alias can't redirect an instruction EX never verifies.
+        long jumpTarget = bpu.predictJumpTarget(currentPC, instruction);
+        long btbTarget = mightBeBranch && jumpTarget == -1 ? bpu.getPredictedTarget(currentPC) : -1;
+        if (jumpTarget != -1) {
+            predictedTaken = true;
+            predictedNextPC = jumpTarget;
+            if (trace.bpuDetail) {
+                trace.printf("BPU: Predicting jump at 0x%08X to 0x%08X (%s)", currentPC, predictedNextPC,
+                        bpu.usesIndirect(instruction.aluOp, instruction.rd, instruction.rs1)
+                                ? "indirect predictor" : "return address stack");
+            }
+        } else if (btbTarget != -1) {
             // This PC is in the BTB, so it's likely a branch/jump
             // Use branch predictor to decide if branch is taken
             predictedTaken = bpu.predictTaken(currentPC);
             if (predictedTaken) {
                 // Get predicted target from BTB
-                predictedNextPC = bpu.getPredictedTarget(currentPC);
-                if (printBPUEnabled) {
-                    System.out.printf("BPU: Predicting branch at 0x%08X as TAKEN to 0x%08X (BTB hit)\n",
+                predictedNextPC = btbTarget;
+                if (trace.bpuDetail) {
+                    trace.printf("BPU: Predicting branch at 0x%08X as TAKEN to 0x%08X (BTB hit)",
                             currentPC, predictedNextPC);
                 }
-            } else if (printBPUEnabled) {
-                System.out.printf("BPU: Predicting branch at 0x%08X as NOT TAKEN (BTB hit but not taken)\n", currentPC);
+            } else if (trace.bpuDetail) {
+                trace.printf("BPU: Predicting branch at 0x%08X as NOT TAKEN (BTB hit but not taken)", currentPC);
             }
         } else if (mightBeBranch) {
             // This looks like a branch but not in BTB
@@ -439,199 +596,88 @@ public class PipelinedCPU {
             if (predictedTaken) {
                 // We predict taken but don't know the target yet
                 // We'll have to wait for the execute stage
-                if (printBPUEnabled) {
-                    System.out.printf("BPU: Predicting branch at 0x%08X as TAKEN but target unknown (BTB miss)\n",
+                if (trace.bpuDetail) {
+                    trace.printf("BPU: Predicting branch at 0x%08X as TAKEN but target unknown (BTB miss)",
                             currentPC);
                 }
-                // Since we don't know the target, we'll default to PC+4 and fix it later
+                // Since we don't know the target, fetch falls through to PC+4; EX only flushes
+                // if the branch really is taken
                 predictedNextPC = pcPlus4;
-                // This will likely cause a mispredict, but that's expected for the first
-                // encounter
-            } else if (printBPUEnabled) {
-                System.out.printf("BPU: Predicting branch at 0x%08X as NOT TAKEN\n", currentPC);
+            } else if (trace.bpuDetail) {
+                trace.printf("BPU: Predicting branch at 0x%08X as NOT TAKEN", currentPC);
             }
         }
 
         // Prepare for next cycle
-        if_id_reg.instructionPC = currentPC;
-        if_id_reg.instruction = instructionHex;
-        if_id_reg.nextPC = pcPlus4;
-        if_id_reg.valid = true;
-//        if_id_reg.instructionNumber = currentInstructionNumber;
-        if_id_reg.predictedTaken = predictedTaken;
-        if_id_reg.predictedTarget = predictedNextPC;
-
-        // Update PC based on prediction
-        pc = predictedTaken ? predictedNextPC : pcPlus4;
+        if_id_next.instructionPC = currentPC;
+        if_id_next.instruction = instruction;
+        if_id_next.nextPC = pcPlus4;
+        if_id_next.valid = true;
+//        if_id_next.instructionNumber = currentInstructionNumber;
+        if_id_next.predictedTaken = predictedTaken;
+        if_id_next.predictedTarget = predictedNextPC;
+        if_id_next.pathHistory = pathHistory;
+        if_id_next.branchHistory = branchHistory;
+
+        // Continue down the predicted path (PC+4 unless a target was predicted)
+        pc = predictedNextPC;
     }
 
     private void instructionDecode() {
         if (!if_id_reg.valid) {
-            id_ex_reg.clear(); // Pass NOP downstream
+            id_ex_next.clear(); // Pass NOP downstream
+            hazardStall = false; // Nothing to stall
+            dataForwardingStall = false;
+            branchStall = false;
+            missStall = false;
+            unitStall = false;
             return;
         }
 
         // Take values from IF/ID Register
-        String instruction = if_id_reg.instruction;
+        DecodedInstruction instruction = if_id_reg.instruction;
         long instructionPC = if_id_reg.instructionPC;
         long nextPC = if_id_reg.nextPC;
 
         // Clear fields for the new instruction
-        id_ex_reg.clear();
-        id_ex_reg.instructionPC = instructionPC;
-        id_ex_reg.nextPC = nextPC;
-        id_ex_reg.debugInstruction = instruction; // For debugging
-//        id_ex_reg.instructionNumber = if_id_reg.instructionNumber;
-        id_ex_reg.valid = true;
-
-        if (instruction.equals(NOP_INSTRUCTION)) {
-            id_ex_reg.aluOp = "NOP";
-            id_ex_reg.valid = true; // NOP is valid but does nothing
+        id_ex_next.clear();
+        id_ex_next.instructionPC = instructionPC;
+        id_ex_next.nextPC = nextPC;
+        id_ex_next.instruction = instruction; // For debugging
+//        id_ex_next.instructionNumber = if_id_reg.instructionNumber;
+        id_ex_next.predictedTaken = if_id_reg.predictedTaken;
+        id_ex_next.predictedTarget = if_id_reg.predictedTarget;
+        id_ex_next.pathHistory = if_id_reg.pathHistory;
+        id_ex_next.branchHistory = if_id_reg.branchHistory;
+        id_ex_next.valid = true;
+
+        if (instruction.nop) {
+            id_ex_next.aluOp = AluOp.NOP;
+            id_ex_next.valid = true; // NOP is valid but does nothing
             return; // Don't decode NOP
         }
 
-        // --- Decode Instruction ---
-        long instructionVal = parseHex(instruction);
-        int opcode = (int) (instructionVal & 0x7F); // bits 6:0
-        id_ex_reg.rd = (int) ((instructionVal >> 7) & 0x1F); // bits 11:7
-        int funct3 = (int) ((instructionVal >> 12) & 0x7); // bits 14:12
-        id_ex_reg.rs1 = (int) ((instructionVal >> 15) & 0x1F); // bits 19:15
-        id_ex_reg.rs2 = (int) ((instructionVal >> 20) & 0x1F); // bits 24:20
-        int funct7 = (int) ((instructionVal >> 25) & 0x7F); // bits 31:25
+        // --- Register Numbers and Immediate (decoded at load time) ---
+        id_ex_next.rd = instruction.rd;
+        id_ex_next.rs1 = instruction.rs1;
+        id_ex_next.rs2 = instruction.rs2;
+        id_ex_next.immediate = instruction.immediate;
 
         // --- Read Registers ---
-        String rs1Name = "x" + id_ex_reg.rs1;
-        String rs2Name = "x" + id_ex_reg.rs2;
-        id_ex_reg.readData1 = parseHex(registerFile.getOrDefault(rs1Name, formatHex(0)));
-        id_ex_reg.readData2 = parseHex(registerFile.getOrDefault(rs2Name, formatHex(0)));
-
-        // --- Generate Control Signals and Immediate ---
-        id_ex_reg.regWrite = false; // Default off
-        id_ex_reg.memRead = false;
-        id_ex_reg.memWrite = false;
-        id_ex_reg.branch = false;
-        id_ex_reg.jump = false;
-        id_ex_reg.useImm = false;
-        id_ex_reg.writeBackMux = 0; // Default ALU result
-        id_ex_reg.memSize = "WORD"; // Default
-
-        switch (opcode) {
-            case 0b0110011: // R-Type (add, sub, slt, xor, or, and, sll, srl, sra, mul, div, rem)
-                id_ex_reg.aluOp = decodeRType(funct3, funct7);
-                id_ex_reg.regWrite = true;
-                break;
-
-            case 0b0010011: // I-Type (addi, slti, xori, ori, andi, slli, srli, srai)
-                id_ex_reg.immediate = signExtend(Long.toBinaryString((instructionVal >> 20)), 12);
-                id_ex_reg.aluOp = decodeITypeArith(funct3, funct7); // funct7 needed for srai/srli
-                id_ex_reg.useImm = true;
-                id_ex_reg.regWrite = true;
-                break;
-
-            case 0b0000011: // I-Type Load (lb, lh, lw) <- Assuming RV32, no ld
-                id_ex_reg.immediate = signExtend(Long.toBinaryString((instructionVal >> 20)), 12);
-                id_ex_reg.aluOp = "ADD"; // For address calculation
-                id_ex_reg.memRead = true;
-                id_ex_reg.useImm = true;
-                id_ex_reg.regWrite = true;
-                id_ex_reg.writeBackMux = 1; // Write data from memory
-                switch (funct3) {
-                    case 0b000:
-                        id_ex_reg.memSize = "BYTE";
-                        break;
-                    case 0b001:
-                        id_ex_reg.memSize = "HALF";
-                        break;
-                    case 0b010:
-                        id_ex_reg.memSize = "WORD";
-                        break;
-                    // LBU, LHU would set size but also need different handling in MEM/WB for zero
-                    // extension
-                    default:
-                        id_ex_reg.aluOp = "INVALID";
-                        break;
-                }
-                break;
-
-            case 0b1100111: // I-Type JALR
-                id_ex_reg.immediate = signExtend(Long.toBinaryString((instructionVal >> 20)), 12);
-                id_ex_reg.aluOp = "JALR"; // Special handling in EX
-                id_ex_reg.regWrite = true;
-                id_ex_reg.useImm = true;
-                id_ex_reg.jump = true;
-                id_ex_reg.writeBackMux = 2; // Write PC+4
-                break;
-
-            case 0b0100011: // S-Type (sb, sh, sw)
-                long imm_4_0 = (instructionVal >> 7) & 0x1F;
-                long imm_11_5 = (instructionVal >> 25) & 0x7F;
-                long immSVal = (imm_11_5 << 5) | imm_4_0;
-                id_ex_reg.immediate = signExtend(Long.toBinaryString(immSVal), 12);
-                id_ex_reg.aluOp = "ADD"; // For address calculation
-                id_ex_reg.memWrite = true;
-                id_ex_reg.useImm = true;
-                switch (funct3) {
-                    case 0b000:
-                        id_ex_reg.memSize = "BYTE";
-                        break;
-                    case 0b001:
-                        id_ex_reg.memSize = "HALF";
-                        break;
-                    case 0b010:
-                        id_ex_reg.memSize = "WORD";
-                        break;
-                    default:
-                        id_ex_reg.aluOp = "INVALID";
-                        break;
-                }
-                break;
-
-            case 0b1100011: // B-Type (beq, bne, blt, bge, bltu, bgeu)
-                long imm_11 = (instructionVal >> 7) & 0x1;
-                long imm_4_1 = (instructionVal >> 8) & 0xF;
-                long imm_10_5 = (instructionVal >> 25) & 0x3F;
-                long imm_12 = (instructionVal >> 31) & 0x1;
-                long immBVal = (imm_12 << 12) | (imm_11 << 11) | (imm_10_5 << 5) | (imm_4_1 << 1);
-                id_ex_reg.immediate = signExtend(Long.toBinaryString(immBVal), 13); // 13-bit immediate for branches
-                id_ex_reg.aluOp = decodeBType(funct3);
-                id_ex_reg.branch = true;
-                break;
-
-            case 0b0110111: // U-Type (LUI)
-                id_ex_reg.immediate = signExtend(Long.toBinaryString((instructionVal & 0xFFFFF000L)), 32); // imm[31:12]
-                // << 12
-                id_ex_reg.aluOp = "LUI"; // Special handling in EX
-                id_ex_reg.regWrite = true;
-                id_ex_reg.useImm = true; // Pass immediate through
-                break;
-
-            case 0b0010111: // U-Type (AUIPC)
-                id_ex_reg.immediate = signExtend(Long.toBinaryString((instructionVal & 0xFFFFF000L)), 32);
-                id_ex_reg.aluOp = "AUIPC"; // Special handling in EX
-                id_ex_reg.regWrite = true;
-                id_ex_reg.useImm = true; // Pass immediate through
-                break;
-
-            case 0b1101111: // J-Type (JAL)
-                long imm_20 = (instructionVal >> 31) & 0x1;
-                long imm_10_1 = (instructionVal >> 21) & 0x3FF;
-                imm_11 = (instructionVal >> 20) & 0x1;
-                long imm_19_12 = (instructionVal >> 12) & 0xFF;
-                long immJVal = (imm_20 << 20) | (imm_19_12 << 12) | (imm_11 << 11) | (imm_10_1 << 1);
-                id_ex_reg.immediate = signExtend(Long.toBinaryString(immJVal), 21); // 21-bit immediate for JAL
-                id_ex_reg.aluOp = "JAL"; // Special handling in EX
-                id_ex_reg.regWrite = true;
-                id_ex_reg.jump = true;
-                id_ex_reg.writeBackMux = 2; // Write PC+4
-                break;
-
-            default:
-                System.err.println("Error: Unsupported opcode " + Integer.toBinaryString(opcode) + " at PC "
-                        + formatHex(instructionPC));
-                id_ex_reg.aluOp = "INVALID";
-                id_ex_reg.valid = false; // Mark as invalid
-                break;
-        }
+        id_ex_next.readData1 = registerFile.read(id_ex_next.rs1);
+        id_ex_next.readData2 = registerFile.read(id_ex_next.rs2);
+
+        // --- Control Signals ---
+        id_ex_next.aluOp = instruction.aluOp;
+        id_ex_next.regWrite = instruction.regWrite;
+        id_ex_next.memRead = instruction.memRead;
+        id_ex_next.memWrite = instruction.memWrite;
+        id_ex_next.branch = instruction.branch;
+        id_ex_next.jump = instruction.jump;
+        id_ex_next.useImm = instruction.useImm;
+        id_ex_next.writeBackMux = instruction.writeBackMux;
+        id_ex_next.memSize = instruction.memSize;
+        id_ex_next.valid = instruction.valid; // Unsupported opcodes were reported when the program was loaded
 
         // --- Hazard Detection and Handling ---
         if (pipeliningEnabled) {
@@ -641,131 +687,96 @@ public class PipelinedCPU {
         // --- Data Forwarding Hazard Detection (when forwarding is disabled) ---
         dataForwardingStall = false; // Reset every cycle
 
-        if (!dataForwardingEnabled && id_ex_reg.aluOp != null && !id_ex_reg.aluOp.equals("NOP")) {
-            int rs1 = id_ex_reg.rs1;
-            int rs2 = id_ex_reg.rs2;
+        if (!dataForwardingEnabled && id_ex_next.aluOp != AluOp.NOP) {
+            int rs1 = id_ex_next.rs1;
+            int rs2 = id_ex_next.rs2;
 
             boolean rs1Needed = true; // Usually needed
-            boolean rs2Needed = !id_ex_reg.useImm; // Needed unless using immediate
-            boolean storeDataNeedsRs2 = id_ex_reg.memWrite; // Store uses rs2 as data
+            boolean rs2Needed = !id_ex_next.useImm; // Needed unless using immediate
+            boolean storeDataNeedsRs2 = id_ex_next.memWrite; // Store uses rs2 as data
 
-            // EX/MEM forwarding hazard
-            if (ex_mem_reg.valid && ex_mem_reg.regWrite && ex_mem_reg.rd != 0) {
-                if ((rs1Needed && ex_mem_reg.rd == rs1) ||
-                        ((rs2Needed || storeDataNeedsRs2) && ex_mem_reg.rd == rs2)) {
+            // EX/MEM forwarding hazard (instruction that just executed)
+            if (ex_mem_next.valid && ex_mem_next.regWrite && ex_mem_next.rd != 0) {
+                if ((rs1Needed && ex_mem_next.rd == rs1) ||
+                        ((rs2Needed || storeDataNeedsRs2) && ex_mem_next.rd == rs2)) {
                     dataForwardingStall = true;
                 }
             }
 
             // MEM/WB forwarding hazard (only if EX/MEM isn’t already forwarding that reg)
-            if (mem_wb_reg.valid && mem_wb_reg.regWrite && mem_wb_reg.rd != 0) {
-                if ((rs1Needed && mem_wb_reg.rd == rs1 &&
-                        !(ex_mem_reg.valid && ex_mem_reg.regWrite && ex_mem_reg.rd == rs1)) ||
-                        ((rs2Needed || storeDataNeedsRs2) && mem_wb_reg.rd == rs2 &&
-                                !(ex_mem_reg.valid && ex_mem_reg.regWrite && ex_mem_reg.rd == rs2))) {
+            if (mem_wb_next.valid && mem_wb_next.regWrite && mem_wb_next.rd != 0) {
+                if ((rs1Needed && mem_wb_next.rd == rs1 &&
+                        !(ex_mem_next.valid && ex_mem_next.regWrite && ex_mem_next.rd == rs1)) ||
+                        ((rs2Needed || storeDataNeedsRs2) && mem_wb_next.rd == rs2 &&
+                                !(ex_mem_next.valid && ex_mem_next.regWrite && ex_mem_next.rd == rs2))) {
                     dataForwardingStall = true;
                 }
             }
         }
 
+        // --- Scoreboard: registers an outstanding load miss hasn't delivered yet ---
+        missStall = caches.isNonBlocking() && waitsForLoadMiss();
+
+        // --- Early branch resolution (needs the operands, so only once nothing else stalls) ---
+        branchStall = false;
+        if (id_ex_next.branch && resolvesBranchesInDecode() && !hazardStall && !dataForwardingStall
+                && !missStall && !unitStall) {
+            resolveBranchInDecode(); // May set branchStall flag
+        }
+
         // If stalled, convert the instruction entering EX stage into a NOP
-        if (hazardStall || dataForwardingStall) {
-            id_ex_reg.clear(); // Turn into NOP
-            id_ex_reg.valid = true; // Still valid stage, just NOP
-            // Keep IF/ID register stalled (don't clear IF stage's output)
-        } else {
-            // Only clear IF/ID if not stalled
-            if_id_reg.valid = false; // Consume instruction from IF/ID
-        }
-    }
-
-    // --- Helper Decode Methods ---
-    private String decodeRType(int funct3, int funct7) {
-        switch (funct3) {
-            case 0b000:
-                return (funct7 == 0b0000000) ? "ADD"
-                        : (funct7 == 0b0100000) ? "SUB" : (funct7 == 0b0000001) ? "MUL" : "INVALID";
-            case 0b001:
-                return (funct7 == 0b0000000) ? "SLL" : (funct7 == 0b0000001) ? "MULH" : "INVALID"; // MULH needs higher
-            // bits
-            case 0b010:
-                return (funct7 == 0b0000000) ? "SLT" : (funct7 == 0b0000001) ? "MULHSU" : "INVALID";
-            case 0b011:
-                return (funct7 == 0b0000000) ? "SLTU" : (funct7 == 0b0000001) ? "MULHU" : "INVALID"; // SLTU needs
-            // unsigned
-            // comparison
-            case 0b100:
-                return (funct7 == 0b0000000) ? "XOR" : (funct7 == 0b0000001) ? "DIV" : "INVALID";
-            case 0b101:
-                return (funct7 == 0b0000000) ? "SRL"
-                        : (funct7 == 0b0100000) ? "SRA" : (funct7 == 0b0000001) ? "DIVU" : "INVALID";
-            case 0b110:
-                return (funct7 == 0b0000000) ? "OR" : (funct7 == 0b0000001) ? "REM" : "INVALID";
-            case 0b111:
-                return (funct7 == 0b0000000) ? "AND" : (funct7 == 0b0000001) ? "REMU" : "INVALID";
-            default:
-                return "INVALID";
-        }
-    }
-
-    private String decodeITypeArith(int funct3, int funct7) {
-        switch (funct3) {
-            case 0b000:
-                return "ADDI";
-            case 0b010:
-                return "SLTI";
-            case 0b011:
-                return "SLTIU"; // Needs unsigned comparison
-            case 0b100:
-                return "XORI";
-            case 0b110:
-                return "ORI";
-            case 0b111:
-                return "ANDI";
-            case 0b001:
-                return "SLLI"; // funct7 is 0 for SLLI
-            case 0b101:
-                return (funct7 == 0b0000000) ? "SRLI" : (funct7 == 0b0100000) ? "SRAI" : "INVALID"; // Need funct7 for
-            // SRLI/SRAI
-            default:
-                return "INVALID";
-        }
-    }
-
-    private String decodeBType(int funct3) {
-        switch (funct3) {
-            case 0b000:
-                return "BEQ";
-            case 0b001:
-                return "BNE";
-            case 0b100:
-                return "BLT";
-            case 0b101:
-                return "BGE";
-            case 0b110:
-                return "BLTU"; // Needs unsigned comparison
-            case 0b111:
-                return "BGEU"; // Needs unsigned comparison
-            default:
-                return "INVALID";
+        // (IF/ID is held by the fetch stage)
+        if (hazardStall || dataForwardingStall || branchStall || missStall || unitStall) {
+            id_ex_next.clear(); // Turn into NOP
+            id_ex_next.valid = true; // Still valid stage, just NOP
+        } else if (id_ex_next.regWrite) {
+            units.resultReady[id_ex_next.rd] = 0; // Newer value: readers no longer wait on an older MUL/DIV
+        }
+    }
+
+    // True if the instruction in ID reads a register a pending load miss will write, or writes one
+    // (so the late fill can't overwrite the newer value)
+    private boolean waitsForLoadMiss() {
+        AluOp op = id_ex_next.aluOp;
+        if (op == AluOp.NOP) {
+            return false;
+        }
+        boolean usesRs1 = op != AluOp.LUI && op != AluOp.AUIPC && op != AluOp.JAL;
+        boolean usesRs2 = id_ex_next.memWrite || (!id_ex_next.useImm && !id_ex_next.jump && usesRs1);
+        int waitingFor = -1;
+        if (usesRs1 && caches.isPending(id_ex_next.rs1, clockCycle)) {
+            waitingFor = id_ex_next.rs1;
+        } else if (usesRs2 && caches.isPending(id_ex_next.rs2, clockCycle)) {
+            waitingFor = id_ex_next.rs2;
+        } else if (id_ex_next.regWrite && caches.isPending(id_ex_next.rd, clockCycle)) {
+            waitingFor = id_ex_next.rd;
+        }
+        if (waitingFor < 0) {
+            return false;
+        }
+        if (trace.hazard || traceInstructionNum != -1) {
+            trace.printf(">>> 0x%08X waits for x%d from a load miss (until cycle %d). Stalling pipeline. <<<",
+                    id_ex_next.instructionPC, waitingFor, caches.registerReady[waitingFor]);
         }
+        return true;
     }
 
     private void execute() {
-        ex_debug = new EXMEMRegister(ex_mem_reg);
         if (!id_ex_reg.valid) {
-            ex_mem_reg.clear();
+            ex_mem_next.clear();
             return;
         }
-        if (id_ex_reg.debugInstruction.equals("0xDEADBEEF")) {
-            ex_mem_reg.valid = true;
-            ex_mem_reg.debugInstruction = "0xDEADBEEF";
+        if (id_ex_reg.instruction.halt) {
+            ex_mem_next.clear();
+            ex_mem_next.valid = true;
+            ex_mem_next.instruction = id_ex_reg.instruction;
             return;
         }
 
         // --- Forwarding Logic ---
         long operand1 = id_ex_reg.readData1;
         long operand2 = id_ex_reg.useImm ? id_ex_reg.immediate : id_ex_reg.readData2;
+        long storeData = id_ex_reg.readData2; // rs2 value for stores, possibly forwarded
         int sourceReg1 = id_ex_reg.rs1;
         int sourceReg2 = id_ex_reg.rs2;
 
@@ -783,7 +794,7 @@ public class PipelinedCPU {
                 }
                 // Forwarding for the data to be stored (rs2 for S-type)
                 if (id_ex_reg.memWrite && ex_mem_reg.rd == sourceReg2) {
-                    id_ex_reg.readData2 = ex_mem_reg.aluResult; // Update the value to be stored
+                    storeData = ex_mem_reg.aluResult; // Update the value to be stored
                     // System.out.println("Forward EX->EX store data (rs2)");
                 }
             }
@@ -807,15 +818,21 @@ public class PipelinedCPU {
                 // Forwarding for the data to be stored (rs2 for S-type)
                 if (id_ex_reg.memWrite && mem_wb_reg.rd == sourceReg2
                         && !(ex_mem_reg.valid && ex_mem_reg.regWrite && ex_mem_reg.rd == sourceReg2)) {
-                    id_ex_reg.readData2 = wbData; // Update the value to be stored
+                    storeData = wbData; // Update the value to be stored
                     // System.out.println("Forward MEM->EX store data (rs2)");
                 }
             }
         }
-        ex_mem_reg.clear();
-        ex_mem_reg.valid = true;
-//        ex_mem_reg.instructionNumber = id_ex_reg.instructionNumber;
-        ex_mem_reg.instructionPC = id_ex_reg.instructionPC; // Pass PC for BPU update
+        ex_mem_next.clear();
+        ex_mem_next.valid = true;
+//        ex_mem_next.instructionNumber = id_ex_reg.instructionNumber;
+        ex_mem_next.instructionPC = id_ex_reg.instructionPC; // Pass PC for BPU update
+
+        // --- Multi-cycle units take the op here; its value is computed now but only ready later ---
+        FunctionalUnits.Unit unit = pipeliningEnabled ? units.unitFor(id_ex_reg.aluOp) : null;
+        if (unit != null) {
+            units.issue(unit, id_ex_reg.regWrite ? id_ex_reg.rd : 0, clockCycle);
+        }
 
         // --- ALU Execution ---
         long aluResult = 0;
@@ -824,107 +841,68 @@ public class PipelinedCPU {
         long linkAddress = id_ex_reg.nextPC; // PC+4
 
         switch (id_ex_reg.aluOp) {
-            // Arithmetic
-            case "ADDI":
-                aluResult = operand1 + operand2;
-                break;
-            case "SUB":
-                aluResult = operand1 - operand2;
-                break;
-            case "MUL":
-                aluResult = operand1 * operand2;
-                break; // Simple multiplication
-            // case "DIV": ... handle division by zero ...
-            // case "REM": ... handle division by zero ...
-            // Logical
-            case "XOR":
-            case "XORI":
-                aluResult = operand1 ^ operand2;
-                break;
-            case "OR":
-            case "ORI":
-                aluResult = operand1 | operand2;
-                break;
-            case "AND":
-            case "ANDI":
-                aluResult = operand1 & operand2;
-                break;
-            // Shifts (Mask shift amount to 5 bits for RV32)
-            case "SLL":
-            case "SLLI":
-                aluResult = operand1 << (operand2 & 0x1F);
-                break;
-            case "SRL":
-            case "SRLI":
-                aluResult = operand1 >>> (operand2 & 0x1F);
-                break; // Logical right shift
-            case "SRA":
-            case "SRAI":
-                aluResult = operand1 >> (operand2 & 0x1F);
-                break; // Arithmetic right shift
-            // Comparisons
-            case "SLT":
-            case "SLTI":
-                aluResult = (operand1 < operand2) ? 1 : 0;
-                break;
-            case "SLTU":
-            case "SLTIU":
-                aluResult = (Long.compareUnsigned(operand1, operand2) < 0) ? 1 : 0;
-                break;
-            // Load/Store Address Calculation
-            case "LOAD_ADDR":
-            case "STORE_ADDR": // If we separated address calc
-                aluResult = operand1 + operand2;
+            // Arithmetic, logical, shifts, comparisons and the M extension: 32-bit results, computed
+            // the same way the functional simulator does (ADD also forms load/store addresses)
+            case ADD:
+            case ADDI:
+            case SUB:
+            case SLL:
+            case SLLI:
+            case SLT:
+            case SLTI:
+            case SLTU:
+            case SLTIU:
+            case XOR:
+            case XORI:
+            case SRL:
+            case SRLI:
+            case SRA:
+            case SRAI:
+            case OR:
+            case ORI:
+            case AND:
+            case ANDI:
+            case MUL:
+            case MULH:
+            case MULHSU:
+            case MULHU:
+            case DIV:
+            case DIVU:
+            case REM:
+            case REMU:
+                aluResult = Alu.compute(id_ex_reg.aluOp, (int) operand1, (int) operand2);
                 break;
             // Branches
-            case "BEQ":
-                branchConditionMet = (operand1 == operand2);
-                break;
-            case "BNE":
-                branchConditionMet = (operand1 != operand2);
-                break;
-            case "BLT":
-                branchConditionMet = (operand1 < operand2);
-                break;
-            case "BGE":
-                branchConditionMet = (operand1 >= operand2);
-                break;
-            case "BLTU":
-                branchConditionMet = (Long.compareUnsigned(operand1, operand2) < 0);
-                break;
-            case "BGEU":
-                branchConditionMet = (Long.compareUnsigned(operand1, operand2) >= 0);
+            case BEQ:
+            case BNE:
+            case BLT:
+            case BGE:
+            case BLTU:
+            case BGEU:
+                branchConditionMet = branchCondition(id_ex_reg.aluOp, operand1, operand2);
                 break;
             // Jumps
-            case "JAL":
+            case JAL:
                 aluResult = linkAddress; // Store PC+4 in rd
                 branchTarget = id_ex_reg.instructionPC + id_ex_reg.immediate;
                 branchConditionMet = true; // JAL always 'taken'
                 break;
-            case "JALR":
+            case JALR:
                 aluResult = linkAddress; // Store PC+4 in rd
                 // Target address is (rs1 + imm) & ~1 (lowest bit cleared)
                 branchTarget = (operand1 + id_ex_reg.immediate) & ~1L;
                 branchConditionMet = true; // JALR always 'taken'
                 break;
             // U-Types
-            case "LUI":
-                aluResult = id_ex_reg.immediate;
+            case LUI:
+                aluResult = (int) id_ex_reg.immediate;
                 break; // Result is just the immediate
-            case "AUIPC":
-                aluResult = id_ex_reg.instructionPC + id_ex_reg.immediate;
+            case AUIPC:
+                aluResult = (int) (id_ex_reg.instructionPC + id_ex_reg.immediate);
                 break; // PC + imm
-            // Address calculation for Load/Store (if using generic ADD)
-            case "ADD": // Can be ADDI, ADD (R), or address calc for Load/Store
-                if (id_ex_reg.memRead || id_ex_reg.memWrite) {
-                    aluResult = operand1 + operand2; // Address calculation
-                } else {
-                    aluResult = operand1 + operand2; // Regular ADD/ADDI
-                }
-                break;
-            case "NOP": // Do nothing
+            case NOP: // Do nothing
                 break;
-            case "INVALID": // Handle invalid op
+            case INVALID: // Handle invalid op
                 System.err.println("Executing INVALID operation!");
                 break;
             default: // Should not happen if decode is correct
@@ -935,111 +913,143 @@ public class PipelinedCPU {
         if (id_ex_reg.branch || id_ex_reg.jump) {
             if (id_ex_reg.branch) { // B-Type
                 branchTarget = id_ex_reg.instructionPC + id_ex_reg.immediate;
-                ex_mem_reg.branchTaken = branchConditionMet;
+                ex_mem_next.branchTaken = branchConditionMet;
 
-                // Get the prediction that was made during fetch
-                // boolean predictedTaken = if_id_reg.predictedTaken;
-                boolean predictedTaken = (pipeliningEnabled) ? bpu.predictTaken(id_ex_reg.instructionPC)
-                        : if_id_reg.predictedTaken;
-                long predictedTarget = (pipeliningEnabled) ? bpu.getPredictedTarget(id_ex_reg.instructionPC)
-                        : if_id_reg.predictedTarget;
-                // System.out.println("Important !!!!: " + predictedTarget + " wanted : "
-                // + bpu.getPredictedTarget(id_ex_reg.instructionPC));
-                // long predictedTarget = bpu.getPredictedTarget(id_ex_reg.instructionPC);
-                // Update branch predictor with actual outcome
-                bpu.update(id_ex_reg.instructionPC, branchConditionMet, branchTarget);
-
-                // Check if prediction was correct
-                boolean targetMismatch = branchConditionMet && (predictedTarget != branchTarget);
-                if (predictedTaken != branchConditionMet || targetMismatch) {
-                    // Misprediction! Need to flush and correct PC
+                // Already verified in ID with --branch-resolve=id
+                if (!resolvesBranchesInDecode()
+                        && verifyBranch(id_ex_reg.instructionPC, id_ex_reg.predictedTaken, id_ex_reg.predictedTarget,
+                                id_ex_reg.branchHistory, branchConditionMet, branchTarget, id_ex_reg.nextPC)) {
+                    // Misprediction! Need to flush (verifyBranch corrected the PC)
                     branchMispredictFlush = true;
-
-                    // Set correct PC for next fetch
-                    pc = branchConditionMet ? branchTarget : id_ex_reg.nextPC;
-
-                    if (printBPUEnabled || printPipelineRegsEnabled) {
-                        if (targetMismatch) {
-                            System.out.printf(
-                                    "BRANCH TARGET MISPREDICT at 0x%08X: Predicted 0x%08X, Actual 0x%08X. Correcting PC.\n",
-                                    id_ex_reg.instructionPC, predictedTarget, branchTarget);
-                        } else {
-                            System.out.printf(
-                                    "BRANCH DIRECTION MISPREDICT at 0x%08X: Predicted %s, Actual %s. Correcting PC to 0x%08X\n",
-                                    id_ex_reg.instructionPC,
-                                    predictedTaken ? "TAKEN" : "NOT TAKEN",
-                                    branchConditionMet ? "TAKEN" : "NOT TAKEN",
-                                    pc);
-                        }
-                    }
                 }
             } else { // JAL or JALR (jump = true)
-                if (id_ex_reg.aluOp.equals("JAL")) {
+                if (id_ex_reg.aluOp == AluOp.JAL) {
                     branchTarget = id_ex_reg.instructionPC + id_ex_reg.immediate;
                 } else { // JALR
                     // Target address is (rs1 + imm) & ~1 (lowest bit cleared)
                     branchTarget = (operand1 + id_ex_reg.immediate) & ~1L;
                 }
 
-                ex_mem_reg.branchTaken = true; // Jumps are always 'taken'
+                ex_mem_next.branchTaken = true; // Jumps are always 'taken'
 
                 // Get the prediction that was made during fetch
-                long predictedTarget = (pipeliningEnabled) ? bpu.getPredictedTarget(id_ex_reg.instructionPC)
-                        : if_id_reg.predictedTarget;
-                // long predictedTarget = bpu.getPredictedTarget(id_ex_reg.instructionPC);
+                long predictedTarget = id_ex_reg.predictedTarget;
 
-                // Update BTB for this jump
-                bpu.update(id_ex_reg.instructionPC, true, branchTarget);
+                // Update the indirect predictor and the BTB for this jump
+                boolean isReturn = ReturnAddressStack.isReturn(id_ex_reg.aluOp, id_ex_reg.rd, id_ex_reg.rs1);
+                boolean isIndirect = id_ex_reg.aluOp == AluOp.JALR && !isReturn;
+                if (bpu.usesIndirect(id_ex_reg.aluOp, id_ex_reg.rd, id_ex_reg.rs1)) {
+                    bpu.updateIndirect(id_ex_reg.instructionPC, id_ex_reg.pathHistory, branchTarget);
+                }
+                bpu.update(id_ex_reg.instructionPC, id_ex_reg.branchHistory, predictedTarget != branchTarget, true,
+                        branchTarget);
 
                 // Check if we predicted this jump correctly
+                perf.jumps++;
+                if (isReturn) {
+                    perf.returns++;
+                } else if (isIndirect) {
+                    perf.indirectJumps++;
+                }
                 if (predictedTarget != branchTarget) {
                     // Jump target misprediction
                     branchMispredictFlush = true;
+                    perf.jumpMispredicts++;
+                    if (isReturn) {
+                        perf.returnMispredicts++;
+                    } else if (isIndirect) {
+                        perf.indirectMispredicts++;
+                    }
                     pc = branchTarget;
 
-                    if (printBPUEnabled || printPipelineRegsEnabled) {
-                        System.out.printf(
-                                "JUMP TARGET MISPREDICT at 0x%08X: Predicted 0x%08X, Actual 0x%08X. Correcting PC.\n",
+                    if (trace.bpu || trace.hazard) {
+                        trace.printf(
+                                "JUMP TARGET MISPREDICT at 0x%08X: Predicted 0x%08X, Actual 0x%08X. Correcting PC.",
                                 id_ex_reg.instructionPC, predictedTarget, branchTarget);
                     }
                 }
             }
 
             // Store branch/jump target for debugging
-            ex_mem_reg.branchTarget = branchTarget;
+            ex_mem_next.branchTarget = branchTarget;
         }
 
         // --- Prepare EX/MEM Register ---
-        ex_mem_reg.aluResult = aluResult;
-        ex_mem_reg.writeData = id_ex_reg.useImm ? 0 : operand2; // Get potentially forwarded rs2 value for Stores
+        ex_mem_next.aluResult = aluResult;
+        ex_mem_next.writeData = id_ex_reg.useImm ? 0 : operand2; // Get potentially forwarded rs2 value for Stores
         if (id_ex_reg.memWrite) {
-            ex_mem_reg.writeData = id_ex_reg.readData2; // Use the potentially forwarded value
+            ex_mem_next.writeData = storeData; // Use the potentially forwarded value
         }
-        ex_mem_reg.rd = id_ex_reg.rd;
-        ex_mem_reg.branchTarget = branchTarget; // Pass target along (debug/unused now)
+        ex_mem_next.rd = id_ex_reg.rd;
+        ex_mem_next.branchTarget = branchTarget; // Pass target along (debug/unused now)
 
         // Pass control signals
-        ex_mem_reg.regWrite = id_ex_reg.regWrite;
-        ex_mem_reg.memRead = id_ex_reg.memRead;
-        ex_mem_reg.memWrite = id_ex_reg.memWrite;
-        ex_mem_reg.debugInstruction = id_ex_reg.debugInstruction;
-        ex_mem_reg.writeBackMux = id_ex_reg.writeBackMux;
-        ex_mem_reg.memSize = id_ex_reg.memSize;
+        ex_mem_next.regWrite = id_ex_reg.regWrite;
+        ex_mem_next.memRead = id_ex_reg.memRead;
+        ex_mem_next.memWrite = id_ex_reg.memWrite;
+        ex_mem_next.instruction = id_ex_reg.instruction;
+        ex_mem_next.writeBackMux = id_ex_reg.writeBackMux;
+        ex_mem_next.memSize = id_ex_reg.memSize;
+    }
 
-        // Consume instruction from ID/EX
-        id_ex_reg.valid = false;
+    // D-cache: true while the load/store in MEM waits for its line. The first cycle it sits in MEM
+    // looks the cache up and decides how long; the functional access happens once the wait ends.
+    // Non-blocking (--mshrs), a miss only waits here when every MSHR is busy; otherwise it moves
+    // on and the scoreboard holds back readers of the load's rd.
+    private boolean waitsForDataCache() {
+        if (!ex_mem_reg.valid || !(ex_mem_reg.memRead || ex_mem_reg.memWrite)) {
+            return false;
+        }
+        if (caches.dataReadyCycle == 0) {
+            long address = ex_mem_reg.aluResult;
+            if (caches.isNonBlocking() && !caches.canAccept(address, clockCycle)) {
+                caches.mshrFullCycles++;
+                if (trace.hazard || isTraced(ex_mem_reg.instruction)) {
+                    trace.printf(">>> All MSHRs busy: MEM holds the access to 0x%X. Stalling pipeline. <<<",
+                            address);
+                }
+                return true;
+            }
+            long instructionPC = ex_mem_reg.instructionPC;
+            int latency = ex_mem_reg.memWrite ? caches.store(address, instructionPC, clockCycle)
+                    : caches.load(address, instructionPC, clockCycle);
+            if (latency == 0) {
+                return false;
+            }
+            if (caches.isNonBlocking()) {
+                if (ex_mem_reg.memRead && ex_mem_reg.rd != 0) {
+                    // Readable in ID once the fill lands (write-back has long since written it)
+                    caches.registerReady[ex_mem_reg.rd] = clockCycle + latency;
+                }
+                if (trace.hazard || isTraced(ex_mem_reg.instruction)) {
+                    trace.printf(">>> D-cache miss at 0x%X under an MSHR: %d cycles, MEM carries on. <<<",
+                            address, latency);
+                }
+                return false;
+            }
+            caches.dataReadyCycle = clockCycle + latency;
+            if (trace.hazard || isTraced(ex_mem_reg.instruction)) {
+                trace.printf(">>> D-cache miss at 0x%X: MEM waits %d cycles. Stalling pipeline. <<<",
+                        address, latency);
+            }
+        }
+        if (clockCycle < caches.dataReadyCycle) {
+            return true;
+        }
+        caches.dataReadyCycle = 0;
+        return false;
     }
 
     private void memoryAccess() {
         if (!ex_mem_reg.valid) {
-            mem_wb_reg.clear();
+            mem_wb_next.clear();
             return;
         }
-        mem_wb_reg.clear();
-        mem_wb_reg.valid = true;
-        mem_wb_reg.debugInstruction = ex_mem_reg.debugInstruction;
-//        mem_wb_reg.instructionNumber = ex_mem_reg.instructionNumber;
-        mem_wb_reg.instructionPC = ex_mem_reg.instructionPC; // Pass PC for debug
+        mem_wb_next.clear();
+        mem_wb_next.valid = true;
+        mem_wb_next.instruction = ex_mem_reg.instruction;
+//        mem_wb_next.instructionNumber = ex_mem_reg.instructionNumber;
+        mem_wb_next.instructionPC = ex_mem_reg.instructionPC; // Pass PC for debug
 
         long addr = ex_mem_reg.aluResult; // Address comes from ALU result
         long writeData = ex_mem_reg.writeData; // Data to write for stores
@@ -1048,36 +1058,75 @@ public class PipelinedCPU {
         long readDataResult = 0;
         if (ex_mem_reg.memRead) {
             readDataResult = readMemory(addr, ex_mem_reg.memSize);
-            if (printPipelineRegsEnabled
-                    || (traceInstructionNum != -1 && mem_wb_reg.debugInstruction.equals(textSegment.getOrDefault(formatHex(traceInstructionNum), NOP_INSTRUCTION)))) {
-                System.out.printf("      MEM: Read %s from 0x%X, Value=0x%X\n", ex_mem_reg.memSize, addr,
+            if (trace.memory || isTraced(mem_wb_next.instruction)) {
+                trace.printf("      MEM: Read %s from 0x%X, Value=0x%X", ex_mem_reg.memSize, addr,
                         readDataResult);
             }
         } else if (ex_mem_reg.memWrite) {
             writeMemory(addr, writeData, ex_mem_reg.memSize);
-            if (printPipelineRegsEnabled
-                    || (traceInstructionNum != -1 && mem_wb_reg.debugInstruction.equals(textSegment.getOrDefault(formatHex(traceInstructionNum), NOP_INSTRUCTION)))) {
-                System.out.printf("      MEM: Wrote %s to 0x%X, Value=0x%X\n", ex_mem_reg.memSize, addr, writeData);
+            if (trace.memory || isTraced(mem_wb_next.instruction)) {
+                trace.printf("      MEM: Wrote %s to 0x%X, Value=0x%X", ex_mem_reg.memSize, addr, writeData);
+            }
+            if (rewritesText(addr, ex_mem_reg.memSize.bytes) && pipeliningEnabled) {
+                flushAfterTextWrite();
             }
         }
 
         // --- Prepare MEM/WB Register ---
-        mem_wb_reg.aluResult = ex_mem_reg.aluResult; // Pass ALU result through
-        mem_wb_reg.readData = readDataResult; // Pass data read from memory
-        mem_wb_reg.rd = ex_mem_reg.rd;
+        mem_wb_next.aluResult = ex_mem_reg.aluResult; // Pass ALU result through
+        mem_wb_next.readData = readDataResult; // Pass data read from memory
+        mem_wb_next.rd = ex_mem_reg.rd;
 
         // Pass control signals
-        mem_wb_reg.regWrite = ex_mem_reg.regWrite;
-        mem_wb_reg.writeBackMux = ex_mem_reg.writeBackMux;
+        mem_wb_next.regWrite = ex_mem_reg.regWrite;
+        mem_wb_next.writeBackMux = ex_mem_reg.writeBackMux;
+    }
+
+    // Self-modifying code: a store into the text re-decodes the words it changed, exactly as the
+    // functional engine does, so every mode runs the same program; true if any word changed
+    private boolean rewritesText(long address, int width) {
+        if (functional != null) {
+            return functional.checkTextWrite((int) address, width); // Keeps its flattened copy in step too
+        }
+        long first = (address & 0xFFFFFFFFL) - textBase;
+        long textBytes = 4L * textSegment.length;
+        if (first + width <= 0 || first >= textBytes) {
+            return false;
+        }
+        boolean changed = false;
+        for (long i = Math.max(first, 0) >> 2; i <= Math.min(first + width - 1, textBytes - 1) >> 2; i++) {
+            int word = dataMemory.loadWord(textBase + 4 * i);
+            if (word != textSegment[(int) i].word) {
+                textSegment[(int) i] = DecodedInstruction.decode(word);
+                changed = true;
+            }
+        }
+        return changed;
+    }
 
-        // Consume instruction from EX/MEM
-        // ex_mem_reg.valid = false;
+    // Everything fetched after a store that rewrote the text may hold the old instructions: squash
+    // IF/ID and ID/EX (EX hasn't run yet this cycle) and fetch again right after the store
+    private void flushAfterTextWrite() {
+        if (trace.hazard || isTraced(ex_mem_reg.instruction)) {
+            trace.printf(">>> Store at 0x%08X rewrote the text. Flushing pipeline. <<<", ex_mem_reg.instructionPC);
+        }
+        if (if_id_reg.valid) { // Youngest first, so each squash finds its own undo record
+            bpu.squash(if_id_reg.instructionPC);
+        }
+        if (id_ex_reg.valid) {
+            bpu.squash(id_ex_reg.instructionPC);
+        }
+        if_id_reg.clear();
+        id_ex_reg.clear();
+        pc = ex_mem_reg.instructionPC + 4;
     }
 
     private void writeBack() {
+        if (mem_wb_reg.valid && !mem_wb_reg.instruction.nop && !mem_wb_reg.instruction.halt) {
+            instructionsRetired++;
+            perf.retire(mem_wb_reg.instruction);
+        }
         if (!mem_wb_reg.valid || !mem_wb_reg.regWrite || mem_wb_reg.rd == 0) {
-            // Consume instruction from MEM/WB even if not writing
-            mem_wb_reg.valid = false;
             return; // Skip write if RegWrite is false, rd is x0, or stage is invalid
         }
 
@@ -1100,16 +1149,11 @@ public class PipelinedCPU {
         }
 
         // --- Write to Register File ---
-        String rdName = "x" + mem_wb_reg.rd;
-        registerFile.put(rdName, formatHex(writeData));
+        registerFile.write(mem_wb_reg.rd, (int) writeData);
 
-        if (printPipelineRegsEnabled || printRegistersEnabled
-                || (traceInstructionNum != -1 && mem_wb_reg.debugInstruction.equals(textSegment.getOrDefault(formatHex(traceInstructionNum), NOP_INSTRUCTION)))) {
-            System.out.printf("      WB: Write 0x%X to %s \n", writeData, rdName);
+        if (trace.stage || trace.regs || isTraced(mem_wb_reg.instruction)) {
+            trace.printf("      WB: Write 0x%X to x%d ", writeData, mem_wb_reg.rd);
         }
-
-        // Consume instruction from MEM/WB
-        // mem_wb_reg.valid = false;
     }
 
     // --- Hazard Detection and Stalling/Forwarding ---
@@ -1117,111 +1161,395 @@ public class PipelinedCPU {
         hazardStall = false; // Reset stall flag for this cycle detection
 
         // --- Load-Use Hazard Detection (Stall) ---
-        // Check if instruction in ID needs a result from a Load instruction in EX
-        if (id_ex_reg.valid && ex_mem_reg.valid && ex_mem_reg.memRead && ex_mem_reg.regWrite && ex_mem_reg.rd != 0) {
-            boolean rs1Match = id_ex_reg.rs1 == ex_mem_reg.rd;
+        // Check if instruction in ID needs a result from the Load that just left EX
+        if (id_ex_next.valid && ex_mem_next.valid && ex_mem_next.memRead && ex_mem_next.regWrite && ex_mem_next.rd != 0) {
+            boolean rs1Match = id_ex_next.rs1 == ex_mem_next.rd;
             // rs2Match is tricky: need to know if ID stage *uses* rs2 (R-type, S-type,
             // B-type)
-            boolean idUsesRs2 = (id_ex_reg.aluOp.equals("ADD") && id_ex_reg.memWrite) // Store Address
-                    || (!id_ex_reg.useImm && !id_ex_reg.jump && !id_ex_reg.aluOp.equals("LUI")
-                    && !id_ex_reg.aluOp.equals("AUIPC")); // R-type, B-type use rs2
-            boolean rs2Match = idUsesRs2 && (id_ex_reg.rs2 == ex_mem_reg.rd);
+            boolean idUsesRs2 = (id_ex_next.aluOp == AluOp.ADD && id_ex_next.memWrite) // Store Address
+                    || (!id_ex_next.useImm && !id_ex_next.jump && id_ex_next.aluOp != AluOp.LUI
+                    && id_ex_next.aluOp != AluOp.AUIPC); // R-type, B-type use rs2
+            boolean rs2Match = idUsesRs2 && (id_ex_next.rs2 == ex_mem_next.rd);
 
             if (rs1Match || rs2Match) {
                 // Load-Use Hazard Detected!
                 hazardStall = true;
-                if (printPipelineRegsEnabled || traceInstructionNum != -1) { // Print only if tracing is on
-                    System.out.println(">>> Load-Use Hazard Detected! Stalling pipeline. <<<");
-                    System.out.printf("    ID wants r%d/r%d, EX is LW to r%d\n", id_ex_reg.rs1, id_ex_reg.rs2,
-                            ex_mem_reg.rd);
+                if (trace.hazard || traceInstructionNum != -1) { // Print only if tracing is on
+                    trace.println(">>> Load-Use Hazard Detected! Stalling pipeline. <<<");
+                    trace.printf("    ID wants r%d/r%d, EX is LW to r%d", id_ex_next.rs1, id_ex_next.rs2,
+                            ex_mem_next.rd);
+                }
+            }
+        }
+
+        // --- Multi-cycle MUL/DIV: a source still being computed, or a busy unit (structural) ---
+        unitStall = false;
+        if (!hazardStall && id_ex_next.valid && units.isMultiCycle()) {
+            AluOp op = id_ex_next.aluOp;
+            boolean usesRs1 = op != AluOp.NOP && op != AluOp.LUI && op != AluOp.AUIPC && op != AluOp.JAL;
+            boolean usesRs2 = id_ex_next.memWrite || (!id_ex_next.useImm && !id_ex_next.jump && usesRs1);
+            FunctionalUnits.Unit unit = units.unitFor(op);
+            if ((usesRs1 && units.isPending(id_ex_next.rs1, clockCycle))
+                    || (usesRs2 && units.isPending(id_ex_next.rs2, clockCycle))) {
+                unitStall = true;
+                if (trace.hazard || traceInstructionNum != -1) {
+                    trace.printf(">>> 0x%08X waits for a MUL/DIV result (x%d/x%d). Stalling pipeline. <<<",
+                            id_ex_next.instructionPC, id_ex_next.rs1, id_ex_next.rs2);
+                }
+            } else if (unit != null && unit.nextIssue > clockCycle + 1) {
+                // It would reach EX before the unit can take another op
+                unitStall = true;
+                unit.structuralStalls++;
+                if (trace.hazard || traceInstructionNum != -1) {
+                    trace.printf(">>> %s unit busy until cycle %d. Stalling pipeline. <<<", unit.name,
+                            unit.nextIssue);
                 }
             }
         }
 
         // --- Data Forwarding is handled within the EX stage ---
         // The logic here primarily focuses on conditions requiring a stall.
-        // More complex stall conditions (e.g., structural hazards if memory/ALU were
-        // not fully pipelined) could be added here.
+    }
+
+    // Check a conditional branch against the prediction fetch made (asking the predictor again
+    // here could disagree with the path fetch actually took once history has moved on), train the
+    // predictor and, on a mispredict, correct the PC. Only the PC fetch continued at decides: a
+    // taken prediction that missed in the BTB still fell through to PC+4, which is right if the
+    // branch isn't taken. Returns true if fetch went the wrong way.
+    private boolean verifyBranch(long branchPC, boolean predictedTaken, long predictedTarget, long history,
+            boolean taken, long target, long nextPC) {
+        long actualNextPC = taken ? target : nextPC;
+        boolean mispredicted = predictedTarget != actualNextPC;
+        // Update branch predictor with actual outcome
+        bpu.update(branchPC, history, mispredicted, taken, target);
+
+        boolean targetMismatch = predictedTaken == taken;
+        perf.branches++;
+        if (taken) {
+            perf.branchesTaken++;
+        }
+        if (!mispredicted) {
+            return false;
+        }
+        if (targetMismatch) {
+            perf.targetMispredicts++; // Includes taken branches that missed in the BTB
+        } else {
+            perf.directionMispredicts++;
+        }
+
+        // Set correct PC for next fetch
+        pc = actualNextPC;
+
+        if (trace.bpu || trace.hazard) {
+            if (targetMismatch) {
+                trace.printf("BRANCH TARGET MISPREDICT at 0x%08X: Predicted 0x%08X, Actual 0x%08X. Correcting PC.",
+                        branchPC, predictedTarget, target);
+            } else {
+                trace.printf(
+                        "BRANCH DIRECTION MISPREDICT at 0x%08X: Predicted %s, Actual %s. Correcting PC to 0x%08X",
+                        branchPC, predictedTaken ? "TAKEN" : "NOT TAKEN", taken ? "TAKEN" : "NOT TAKEN", pc);
+            }
+        }
+        return true;
+    }
+
+    static boolean branchCondition(AluOp op, long operand1, long operand2) {
+        switch (op) {
+            case BEQ:
+                return operand1 == operand2;
+            case BNE:
+                return operand1 != operand2;
+            case BLT:
+                return operand1 < operand2;
+            case BGE:
+                return operand1 >= operand2;
+            case BLTU:
+                return Long.compareUnsigned(operand1, operand2) < 0;
+            case BGEU:
+                return Long.compareUnsigned(operand1, operand2) >= 0;
+            default:
+                return false;
+        }
+    }
+
+    // --- Early Branch Resolution (--branch-resolve=id) ---
+    // Conditional branches compare in ID. Like a redirect from EX, one from ID steers the fetch of
+    // the same cycle, so a misprediction squashes nothing instead of the IF/ID slot. The comparator
+    // sits a stage before the ALU, though: an operand from the instruction now in EX, or from a
+    // load now in MEM, isn't ready and the branch stalls for it (once or twice). ALU results in
+    // EX/MEM are forwarded into ID; anything older was written back before decode read the
+    // register file. Without forwarding, dataForwardingStall already waits for write-back.
+
+    private boolean resolvesBranchesInDecode() {
+        return earlyBranchResolution && pipeliningEnabled;
+    }
+
+    private static boolean writes(EXMEMRegister r, int register) {
+        return r.valid && r.regWrite && r.rd != 0 && r.rd == register;
+    }
+
+    private void resolveBranchInDecode() {
+        int rs1 = id_ex_next.rs1;
+        int rs2 = id_ex_next.rs2;
+        if (writes(ex_mem_next, rs1) || writes(ex_mem_next, rs2)
+                || (ex_mem_reg.memRead && (writes(ex_mem_reg, rs1) || writes(ex_mem_reg, rs2)))) {
+            branchStall = true;
+            if (trace.hazard || traceInstructionNum != -1) {
+                trace.printf(">>> Branch at 0x%08X waits for x%d/x%d in ID. Stalling pipeline. <<<",
+                        id_ex_next.instructionPC, rs1, rs2);
+            }
+            return;
+        }
+        long operand1 = id_ex_next.readData1;
+        long operand2 = id_ex_next.readData2;
+        if (dataForwardingEnabled) { // Forward EX/MEM -> ID
+            if (writes(ex_mem_reg, rs1)) {
+                operand1 = (int) ex_mem_reg.aluResult;
+            }
+            if (writes(ex_mem_reg, rs2)) {
+                operand2 = (int) ex_mem_reg.aluResult;
+            }
+        }
+        boolean taken = branchCondition(id_ex_next.aluOp, operand1, operand2);
+        long target = id_ex_next.instructionPC + id_ex_next.immediate;
+        if (verifyBranch(id_ex_next.instructionPC, id_ex_next.predictedTaken, id_ex_next.predictedTarget,
+                id_ex_next.branchHistory, taken, target, id_ex_next.nextPC) && (trace.bpu || trace.hazard)) {
+            trace.printf("Branch at 0x%08X resolved in ID: fetch continues at 0x%08X", id_ex_next.instructionPC, pc);
+        }
     }
 
     // --- Pipeline Flushing on Mispredict ---
     private void handleFlush() {
         if (branchMispredictFlush) {
-            if (printPipelineRegsEnabled) {
-                System.out.println(">>> Branch/Jump Misprediction! Flushing pipeline. <<<");
+            if (trace.hazard) {
+                trace.println(">>> Branch/Jump Misprediction! Flushing pipeline. <<<");
             }
 
-            // Clear the IF/ID and ID/EX stages to insert NOPs
+            // Squash the wrong-path instruction waiting in IF/ID; decode then inserts a NOP into ID/EX
+            perf.flushes++;
+            if (if_id_reg.valid) {
+                perf.flushCycles++;
+                bpu.squash(if_id_reg.instructionPC);
+            }
             if_id_reg.clear();
-            id_ex_reg.clear();
 
             // The PC has already been corrected by the EX stage logic
             branchMispredictFlush = false; // Reset the flag
             hazardStall = false; // Flushing overrides stalling
+            branchStall = false;
+            missStall = false;
+            unitStall = false;
+        }
+    }
+
+    // --- Clock Edge: next halves of the pipeline registers become current ---
+    private void clockEdge() {
+        latchIFID();
+        latchIDEX();
+        latchEXMEM();
+        latchMEMWB();
+    }
+
+    private void latchIFID() {
+        IFIDRegister t = if_id_reg;
+        if_id_reg = if_id_next;
+        if_id_next = t;
+    }
+
+    private void latchIDEX() {
+        IDEXRegister t = id_ex_reg;
+        id_ex_reg = id_ex_next;
+        id_ex_next = t;
+    }
+
+    private void latchEXMEM() {
+        EXMEMRegister t = ex_mem_reg;
+        ex_mem_reg = ex_mem_next;
+        ex_mem_next = t;
+    }
+
+    private void latchMEMWB() {
+        MEMWBRegister t = mem_wb_reg;
+        mem_wb_reg = mem_wb_next;
+        mem_wb_next = t;
+    }
+
+    // --- Results ---
+
+    void setConsole(PrintStream console) {
+        this.console = console;
+    }
+
+    long getClockCycle() {
+        return clockCycle;
+    }
+
+    long getInstructionsRetired() {
+        return instructionsRetired;
+    }
+
+    // Measured CPI, or the sampled estimate in sampled mode (NaN when there is nothing to report)
+    double getCpi() {
+        if (sampledMode) {
+            return sampledCpi;
         }
+        return functionalMode || instructionsRetired == 0 ? Double.NaN : (double) clockCycle / instructionsRetired;
+    }
+
+    // The run hit --max-cycles (or the single-cycle safety limit) before the program ended
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    long getBranchPredictions() {
+        return bpu.predictions;
+    }
+
+    long getBranchMispredictions() {
+        return bpu.mispredictions;
     }
 
     // --- Simulation Execution ---
 
     public void run() {
-        if (pipeliningEnabled) {
-            runPipeline();
-        } else {
-            runSingleCycle();
+        if (functionalMode) {
+            runFunctional();
+            printFinalState();
+            return;
+        }
+        if (sampledMode) {
+            runSampled();
+            printFinalState();
+            return;
+        }
+        trace = createTracer();
+        if (binaryTraceFile != null && pipeliningEnabled) {
+            binaryTrace = new BinaryTrace.Writer(binaryTraceFile);
+        }
+        try {
+            if (pipeliningEnabled) {
+                runPipeline();
+            } else {
+                runSingleCycle();
+            }
+        } finally {
+            trace.close(); // Drain queued trace output before the final report
+            if (binaryTrace != null) {
+                binaryTrace.close();
+                binaryTrace = null;
+            }
         }
         printFinalState();
     }
 
+    private Tracer createTracer() {
+        EnumSet<Tracer.Category> categories = traceCategories;
+        if (categories == null) {
+            // No explicit --trace list: derive the categories from Knobs 3, 4 and 6
+            categories = EnumSet.noneOf(Tracer.Category.class);
+            if (printPipelineRegsEnabled) {
+                categories.add(Tracer.Category.STAGE);
+                categories.add(Tracer.Category.HAZARD);
+                categories.add(Tracer.Category.MEMORY);
+            }
+            if (printBPUEnabled) {
+                categories.add(Tracer.Category.BPU);
+            }
+            if (printRegistersEnabled) {
+                categories.add(Tracer.Category.REGS);
+            }
+        }
+        return new Tracer(categories, traceLevel, traceFile, console);
+    }
+
     private void runPipeline() {
-        System.out.println("--- Starting Pipelined Simulation ---");
-        System.out.printf("Knobs: Forwarding=%b, RegPrint=%b, PipePrint=%b, BPPrint=%b, TraceInst#=%d\n",
+        console.println("--- Starting Pipelined Simulation ---");
+        console.printf("Knobs: Forwarding=%b, RegPrint=%b, PipePrint=%b, BPPrint=%b, TraceInst#=%d\n",
                 dataForwardingEnabled, printRegistersEnabled, printPipelineRegsEnabled, printBPUEnabled,
                 traceInstructionNum);
 
-        // long maxCycles = instructionCount * 5 + 100; // Estimate max cycles
-        // if (textSegment.isEmpty()) {
-        // maxCycles = 10; // Or some small number if no instructions loaded
-        // }
+        while (!mem_wb_reg.instruction.halt) {
+            if (pipelineCycle()) {
+                break;
+            }
+            if (clockCycle == checkpointAt) {
+                saveCheckpoint(checkpointFile);
+                break;
+            }
+            if (maxCycles > 0 && clockCycle >= maxCycles) {
+                truncate("cycles");
+                break;
+            }
+        }
+    }
 
-        while (!mem_wb_reg.debugInstruction.equals("0xDEADBEEF")) {
-            clockCycle++;
-            System.out.println("\n--- Cycle: " + clockCycle + " ---");
-            // Execute stages in reverse order for correct data flow within a cycle
-            execute(); // May set branchMispredictFlush flag
-            EXMEMRegister temp = new EXMEMRegister(ex_mem_reg);
-            ex_mem_reg = ex_debug;
-            writeBack();
-            memoryAccess();
-            ex_mem_reg = temp;
+    // One clock of the pipelined model; returns true once the pipeline has run dry
+    private boolean pipelineCycle() {
+        clockCycle++;
+        if (trace.cycles || traceInstructionNum != -1) {
+            trace.println("\n--- Cycle: " + clockCycle + " ---");
+        }
+        if (caches.isNonBlocking()) {
+            caches.sampleMshrs(clockCycle);
+        }
+        if (waitsForDataCache()) {
+            // The whole pipeline holds, write-back included, until the line arrives
+            perf.dCacheStallCycles++;
+            if (binaryTrace != null) {
+                binaryTrace.writeCycle(clockCycle, if_id_reg, id_ex_reg, ex_mem_reg, mem_wb_reg);
+            }
+            return false;
+        }
+        // Stages read the current latches and write the next ones, running back to front so
+        // WB writes the register file before ID reads it and EX redirects the PC before IF
+        writeBack();
+        memoryAccess();
+        execute(); // May set branchMispredictFlush flag
+
+        // Handle flush AFTER execute but BEFORE decode and fetch
+        handleFlush();
+
+        instructionDecode(); // May set hazardStall flag
+        if (hazardStall) {
+            perf.loadUseStallCycles++;
+        } else if (dataForwardingStall) {
+            perf.forwardingStallCycles++;
+        } else if (branchStall) {
+            perf.branchStallCycles++;
+        } else if (missStall) {
+            perf.missStallCycles++;
+        } else if (unitStall) {
+            perf.unitStallCycles++;
+        }
+        instructionFetch(); // Uses PC (potentially updated by EX)
 
-            // Handle flush AFTER execute but BEFORE decode and fetch
-            handleFlush();
+        clockEdge();
 
-            instructionDecode(); // May set hazardStall flag
-            instructionFetch(); // Uses PC (potentially updated by EX)
+        if (binaryTrace != null) {
+            binaryTrace.writeCycle(clockCycle, if_id_reg, id_ex_reg, ex_mem_reg, mem_wb_reg);
+        }
 
-            // --- Printing based on Knobs ---
-            String tracePc = textSegment.getOrDefault(formatHex(traceInstructionNum), NOP_INSTRUCTION);
-            if (printPipelineRegsEnabled) {
-                if (traceInstructionNum == -1) {
-                    System.out.println(if_id_reg.toString());
-                    System.out.println(id_ex_reg.toString());
-                    System.out.println(ex_mem_reg.toString());
-                    System.out.println(mem_wb_reg.toString());
-                }
-                else if (tracePc.equals(if_id_reg.instruction)) {
-                    System.out.println(if_id_reg.toString());
-                }
-                else if (tracePc.equals(id_ex_reg.debugInstruction)) {
-                    System.out.println(id_ex_reg.toString());
-                }
-                else if (tracePc.equals(ex_mem_reg.debugInstruction)) {
-                    System.out.println(ex_mem_reg.toString());
-                }
-                else if (tracePc.equals(mem_wb_reg.debugInstruction)) {
-                    System.out.println(mem_wb_reg.toString());
-                }
+        // --- Printing based on Knobs ---
+        if (trace.stageDetail) {
+            if (traceInstructionNum == -1) {
+                trace.println(if_id_reg.toString());
+                trace.println(id_ex_reg.toString());
+                trace.println(ex_mem_reg.toString());
+                trace.println(mem_wb_reg.toString());
+            }
+            else if (isTraced(if_id_reg.instruction)) {
+                trace.println(if_id_reg.toString());
+            }
+            else if (isTraced(id_ex_reg.instruction)) {
+                trace.println(id_ex_reg.toString());
+            }
+            else if (isTraced(ex_mem_reg.instruction)) {
+                trace.println(ex_mem_reg.toString());
             }
+            else if (isTraced(mem_wb_reg.instruction)) {
+                trace.println(mem_wb_reg.toString());
+            }
+        }
 //            else if (traceInstructionNum != -1) {
 //                // Print specific instruction trace
 //                if (if_id_reg.valid && if_id_reg.instructionNumber == traceInstructionNum)
@@ -1234,73 +1562,242 @@ public class PipelinedCPU {
 //                    System.out.println(mem_wb_reg.toString());
 //            }
 
-            if (printRegistersEnabled) {
-                printRegisterFileState();
+        if (trace.regs) {
+            trace.print(formatRegisterFileState());
+        }
+        if (trace.bpuDetail) {
+            trace.println(bpu.toString());
+        }
+
+        // --- Termination Check ---
+        // Check if pipeline is empty (all stages hold invalid or NOP) and no more
+        // instructions fetched
+        boolean pipelineEmpty = !if_id_reg.valid && !id_ex_reg.valid && !ex_mem_reg.valid && !mem_wb_reg.valid;
+        boolean noMoreInstructions = instructionAt(pc).nop;
+
+        // Crude termination: Stop if PC points to NOP and pipeline is empty
+        if (pipelineEmpty && noMoreInstructions) {
+            trace.message("\n--- Pipeline Empty and PC points to NOP. Simulation finished. ---");
+            return true;
+        }
+        return false;
+    }
+
+    private void clearPipelineRegisters() {
+        if_id_reg.clear();
+        if_id_next.clear();
+        id_ex_reg.clear();
+        id_ex_next.clear();
+        ex_mem_reg.clear();
+        ex_mem_next.clear();
+        mem_wb_reg.clear();
+        mem_wb_next.clear();
+    }
+
+    // Architectural execution only: no pipeline registers, hazards, predictor or tracing
+    private void runFunctional() {
+        console.println("--- Starting Functional Simulation ---");
+        if (drainPipeline()) {
+            return; // Restored mid-flight and the halt was already in the pipeline
+        }
+        FunctionalSimulator iss = new FunctionalSimulator(textSegment, textBase, registerFile, dataMemory);
+        iss.setBlockCacheEnabled(blockCacheEnabled);
+        iss.setTranslationThreshold(translationThreshold);
+        iss.setPc(pc);
+        long start = System.nanoTime();
+        long budget = checkpointAt >= 0 ? Math.max(checkpointAt - instructionsRetired, 0) : Long.MAX_VALUE;
+        if (maxCycles > 0) {
+            budget = Math.min(budget, Math.max(maxCycles - instructionsRetired, 0));
+        }
+        iss.run(budget);
+        long elapsed = System.nanoTime() - start;
+        pc = iss.getPc();
+        long executed = iss.getInstructionsExecuted();
+        instructionsRetired += executed;
+        console.printf("Executed %d instructions in %.3f ms (%.1f MIPS)\n", executed, elapsed / 1e6,
+                executed * 1e3 / Math.max(elapsed, 1));
+        if (blockCacheEnabled) {
+            console.printf("Basic blocks built: %d, translated: %d, text rewrites: %d\n", iss.getBlocksBuilt(),
+                    iss.getBlocksTranslated(), iss.getTextRewrites());
+        }
+        if (checkpointAt >= 0 && !iss.isHalted()) {
+            saveCheckpoint(checkpointFile);
+        }
+        if (maxCycles > 0 && instructionsRetired >= maxCycles && !iss.isHalted()) {
+            truncate("instructions");
+        }
+    }
+
+    private void truncate(String unit) {
+        truncated = true;
+        System.err.printf("Warning: stopped after %d %s (--max-cycles) before the program ended.\n", maxCycles,
+                unit);
+    }
+
+    // Retire whatever is still in the pipeline without fetching (e.g. after restoring a pipelined
+    // checkpoint into an architectural-only mode); true if the program halted on the way
+    private boolean drainPipeline() {
+        fetchStopped = true;
+        boolean halted = false;
+        while (if_id_reg.valid || id_ex_reg.valid || ex_mem_reg.valid || mem_wb_reg.valid) {
+            pipelineCycle();
+            if (mem_wb_reg.instruction.halt) {
+                halted = true;
+                break;
             }
-            if (printBPUEnabled) {
-                System.out.println(bpu.toString());
+        }
+        fetchStopped = false;
+        hazardStall = dataForwardingStall = branchStall = missStall = unitStall = branchMispredictFlush = false;
+        return halted;
+    }
+
+    // --- Sampled Simulation ---
+    // SMARTS-style: each sampling unit of samplePeriod instructions is mostly fast-forwarded by the
+    // functional simulator. The last sampleWarmup instructions before a sample also train the
+    // branch predictor and warm the caches. The pipeline then starts from that architectural state, runs
+    // sampleDetailWarmup instructions to fill, measures the cycles of the next sampleWindow
+    // instructions, and drains (fetch stopped) so the functional simulator can take over again.
+    private void runSampled() {
+        console.println("--- Starting Sampled Simulation ---");
+        console.printf("Sampling: period=%d, warmup=%d, detailWarmup=%d, window=%d\n", samplePeriod,
+                sampleWarmup, sampleDetailWarmup, sampleWindow);
+        long fastForward = samplePeriod - sampleWarmup - sampleDetailWarmup - sampleWindow;
+        if (fastForward < 0 || sampleWindow <= 0) {
+            System.err.println("Error: sample period must cover warmup, detailed warmup and window.");
+            return;
+        }
+        FunctionalSimulator iss = new FunctionalSimulator(textSegment, textBase, registerFile, dataMemory);
+        iss.setTranslationThreshold(translationThreshold);
+        iss.setPc(pc);
+        functional = iss;
+        FunctionalSimulator.BranchListener warmer = (branchPC, taken, target) ->
+                bpu.warm(branchPC, instructionAt(branchPC), taken, target);
+
+        List<Double> sampleCpi = new ArrayList<>();
+        long detailedCycles = 0;
+        long start = System.nanoTime();
+        while (true) {
+            if (maxCycles > 0 && iss.getInstructionsExecuted() + instructionsRetired >= maxCycles) {
+                truncate("instructions");
+                break;
             }
+            iss.run(fastForward);
+            if (iss.isHalted())
+                break;
+            iss.runWarming(sampleWarmup, warmer, caches.isEnabled() ? caches : null);
+            if (iss.isHalted())
+                break;
 
-            // --- Termination Check ---
-            // Check if pipeline is empty (all stages hold invalid or NOP) and no more
-            // instructions fetched
-            boolean pipelineEmpty = !if_id_reg.valid && !id_ex_reg.valid && !ex_mem_reg.valid && !mem_wb_reg.valid;
-            boolean noMoreInstructions = textSegment.getOrDefault(formatHex(pc), NOP_INSTRUCTION)
-                    .equals(NOP_INSTRUCTION);
+            // Detailed window from the functional state
+            clearPipelineRegisters();
+            hazardStall = dataForwardingStall = branchStall = missStall = unitStall = branchMispredictFlush = false;
+            pc = iss.getPc();
+            long cycleStart = clockCycle;
+            if (!runDetailed(sampleDetailWarmup))
+                break;
+            long measureCycles = clockCycle;
+            long measureRetired = instructionsRetired;
+            if (!runDetailed(sampleWindow))
+                break;
+            sampleCpi.add((double) (clockCycle - measureCycles) / (instructionsRetired - measureRetired));
 
-            // Crude termination: Stop if PC points to NOP and pipeline is empty
-            if (pipelineEmpty && noMoreInstructions) {
-                System.out.println("\n--- Pipeline Empty and PC points to NOP. Simulation finished. ---");
+            // Drain, then hand the architectural state back
+            boolean halted = drainPipeline();
+            detailedCycles += clockCycle - cycleStart;
+            if (halted)
                 break;
+            iss.setPc(pc);
+        }
+        fetchStopped = false;
+        long elapsed = System.nanoTime() - start;
+        instructionsRetired += iss.getInstructionsExecuted();
+        reportSamples(sampleCpi, detailedCycles, elapsed);
+    }
+
+    // Run the pipeline until 'count' more instructions retire; false if the program ends first
+    private boolean runDetailed(long count) {
+        long target = instructionsRetired + count;
+        while (instructionsRetired < target) {
+            if (pipelineCycle() || mem_wb_reg.instruction.halt) {
+                return false;
             }
-            // if (clockCycle >= maxCycles && maxCycles > 10) {
-            // System.err.println("Warning: Maximum cycle limit reached (" + maxCycles + ").
-            // Terminating simulation.");
-            // break;
-            // }
+        }
+        return true;
+    }
+
+    private void reportSamples(List<Double> sampleCpi, long detailedCycles, long elapsedNanos) {
+        int n = sampleCpi.size();
+        console.printf("Samples: %d (detailed cycles simulated: %d, %.3f ms)\n", n, detailedCycles,
+                elapsedNanos / 1e6);
+        if (n == 0) {
+            console.println("No complete sample windows; use a smaller --sample-period for this program.");
+            return;
+        }
+        double mean = 0;
+        for (double cpi : sampleCpi) {
+            mean += cpi;
+        }
+        mean /= n;
+        sampledCpi = mean;
+        double variance = 0;
+        for (double cpi : sampleCpi) {
+            variance += (cpi - mean) * (cpi - mean);
+        }
+        variance = n > 1 ? variance / (n - 1) : 0;
+        double halfWidth = 1.96 * Math.sqrt(variance / n); // 95% confidence (normal approximation)
+        console.printf("Estimated CPI: %.4f +/- %.4f (95%% confidence, +/-%.2f%%)\n", mean, halfWidth,
+                mean == 0 ? 0 : 100 * halfWidth / mean);
+        console.printf("Estimated Clock Cycles: %.0f\n", mean * instructionsRetired);
+        if (n > 1 && mean > 0) {
+            // Samples needed for +/-3% at 95% confidence given the observed coefficient of variation
+            double cv = Math.sqrt(variance) / mean;
+            console.printf("Samples needed for +/-3%%: %d\n", (long) Math.ceil(Math.pow(1.96 * cv / 0.03, 2)));
         }
     }
 
     // Simplified single-cycle execution (like Phase 2)
     private void runSingleCycle() {
-        System.out.println("--- Starting Single-Cycle Simulation (Pipelining Disabled) ---");
+        console.println("--- Starting Single-Cycle Simulation (Pipelining Disabled) ---");
         // Use original code structure variables temporarily for mimicry
-        String ir;
+        DecodedInstruction ir;
         long pcTemp = 0;
         long currentPC = pc;
         // Reset pipeline regs if switching dynamically (unlikely use case)
-        if_id_reg.clear();
-        id_ex_reg.clear();
-        ex_mem_reg.clear();
-        mem_wb_reg.clear();
+        clearPipelineRegisters();
 
         while (true) {
             clockCycle++;
-            System.out.println("\n--- Cycle: " + clockCycle + " (PC=" + formatHex(currentPC) + ") ---");
+            if (trace.cycles) {
+                trace.println("\n--- Cycle: " + clockCycle + " (PC=" + formatHex(currentPC) + ") ---");
+            }
 
             // 1. Fetch
             // instructionFetch();
-            ir = textSegment.getOrDefault(formatHex(currentPC), NOP_INSTRUCTION);
-            System.out.println("Fetch: IR = " + ir);
-            if (ir.equals(NOP_INSTRUCTION) || ir.equals("0xDEADBEEF")) {
-                System.out.println("Termination: " + ir);
+            ir = instructionAt(currentPC);
+            if (trace.stage) {
+                trace.println("Fetch: IR = " + ir.hex);
+            }
+            if (ir.nop || ir.halt) {
+                trace.message("Termination: " + ir.hex);
                 break;
             }
             pcTemp = currentPC + 4; // Calculate potential next PC
 
             // Reset temporary 'stage' outputs before decode/execute
-            id_ex_reg.clear();
-            ex_mem_reg.clear();
-            mem_wb_reg.clear();
+            clearPipelineRegisters();
 
             // 2. Decode (Directly sets temporary state for execute)
             if_id_reg.instruction = ir; // Simulate passing IR
             if_id_reg.instructionPC = currentPC;
             if_id_reg.nextPC = pcTemp;
+            if_id_reg.predictedTarget = pcTemp; // No frontend to speculate: always "not taken"
             if_id_reg.valid = true;
-            instructionDecode(); // Decodes into id_ex_reg directly
-            System.out.println("Decode: " + id_ex_reg.toString());
-            if (!id_ex_reg.valid || id_ex_reg.aluOp.equals("INVALID")) {
+            instructionDecode(); // Decodes into id_ex_next
+            latchIDEX(); // Each stage's output is latched straight away in single-cycle mode
+            if (trace.stage) {
+                trace.println("Decode: " + id_ex_reg.toString());
+            }
+            if (!id_ex_reg.valid || id_ex_reg.aluOp == AluOp.INVALID) {
                 System.err.println("Decode Error. Halting.");
                 break;
             }
@@ -1309,7 +1806,10 @@ public class PipelinedCPU {
             // In single cycle, PC update logic is simpler
             pc = pcTemp; // Assume PC+4 unless branch/jump overrides
             execute(); // execute() updates 'pc' directly if branch/jump occurs
-            System.out.println("Execute: " + ex_mem_reg.toString());
+            latchEXMEM();
+            if (trace.stage) {
+                trace.println("Execute: " + ex_mem_reg.toString());
+            }
             if (!ex_mem_reg.valid) { // Should not happen unless decode failed
                 System.err.println("Execute Error. Halting.");
                 break;
@@ -1317,7 +1817,10 @@ public class PipelinedCPU {
 
             // 4. Memory Access (Reads from ex_mem_reg, writes to mem_wb_reg)
             memoryAccess();
-            System.out.println("Memory: " + mem_wb_reg.toString());
+            latchMEMWB();
+            if (trace.stage) {
+                trace.println("Memory: " + mem_wb_reg.toString());
+            }
             if (!mem_wb_reg.valid) { // Should not happen
                 System.err.println("Memory Stage Error. Halting.");
                 break;
@@ -1329,21 +1832,104 @@ public class PipelinedCPU {
 
             // Update PC for the *next* cycle's fetch
             currentPC = pc;
+            if (clockCycle == checkpointAt) {
+                saveCheckpoint(checkpointFile);
+                break;
+            }
 
-            if (printRegistersEnabled) {
-                printRegisterFileState();
+            if (trace.regs) {
+                trace.print(formatRegisterFileState());
             }
 
-            if (clockCycle > 5000) { // Safety break
+            if (maxCycles > 0 && clockCycle >= maxCycles) {
+                truncate("cycles");
+                break;
+            }
+            if (maxCycles == 0 && clockCycle > 5000) { // Safety break unless --max-cycles sets the limit
                 System.err.println("Error: Single-cycle execution exceeded 5000 cycles.");
+                truncated = true;
                 break;
             }
         }
     }
 
+    // --- Checkpoints ---
+    // Everything needed to resume exactly where the run stopped; see Checkpoint for the file layout.
+
+    public void saveCheckpoint(String path) {
+        Checkpoint.Writer out = new Checkpoint.Writer();
+        out.writeRegisters(registerFile);
+        out.writeText(textBase, textSegment);
+        out.writeLatch(if_id_reg);
+        out.writeLatch(if_id_next);
+        out.writeLatch(id_ex_reg);
+        out.writeLatch(id_ex_next);
+        out.writeLatch(ex_mem_reg);
+        out.writeLatch(ex_mem_next);
+        out.writeLatch(mem_wb_reg);
+        out.writeLatch(mem_wb_next);
+        out.writeBranchPredictor(bpu);
+        out.writeCaches(caches);
+        out.writeUnits(units);
+        out.writeCounters(perf);
+        Checkpoint.Header header = new Checkpoint.Header();
+        header.pc = pc;
+        header.clockCycle = clockCycle;
+        header.instructionsRetired = instructionsRetired;
+        header.hazardStall = hazardStall;
+        header.dataForwardingStall = dataForwardingStall;
+        header.branchStall = branchStall;
+        header.missStall = missStall;
+        header.unitStall = unitStall;
+        header.branchMispredictFlush = branchMispredictFlush;
+        try {
+            out.finish(path, header, dataMemory);
+            console.printf("Checkpoint written to %s at cycle %d (%d instructions retired, %d data pages)\n",
+                    path, clockCycle, instructionsRetired, dataMemory.getAllocatedPages());
+        } catch (IOException e) {
+            System.err.println("Error writing checkpoint: " + path);
+            e.printStackTrace();
+        }
+    }
+
+    // Throws if the file is missing, unreadable or damaged; the machine is then in no usable state
+    public void restoreCheckpoint(String path) throws IOException {
+        try (Checkpoint.Reader in = new Checkpoint.Reader(path)) {
+            in.readRegisters(registerFile);
+            textBase = in.readTextBase();
+            textSegment = in.readText();
+            in.readLatch(if_id_reg);
+            in.readLatch(if_id_next);
+            in.readLatch(id_ex_reg);
+            in.readLatch(id_ex_next);
+            in.readLatch(ex_mem_reg);
+            in.readLatch(ex_mem_next);
+            in.readLatch(mem_wb_reg);
+            in.readLatch(mem_wb_next);
+            in.readBranchPredictor(bpu);
+            in.readCaches(caches);
+            in.readUnits(units);
+            in.readCounters(perf);
+            in.readPages(dataMemory);
+            pc = in.header.pc;
+            clockCycle = in.header.clockCycle;
+            instructionsRetired = in.header.instructionsRetired;
+            hazardStall = in.header.hazardStall;
+            dataForwardingStall = in.header.dataForwardingStall;
+            branchStall = in.header.branchStall;
+            missStall = in.header.missStall;
+            unitStall = in.header.unitStall;
+            branchMispredictFlush = in.header.branchMispredictFlush;
+            console.printf("Restored %s: cycle %d, PC %s, %d data pages\n", path, clockCycle, formatHex(pc),
+                    dataMemory.getAllocatedPages());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(path + " is corrupt", e); // The state section doesn't match its own layout
+        }
+    }
+
     // --- Input Parsing ---
     public void parseMachineCodeFromFile(String filePath) {
-        textSegment.clear();
+        TreeMap<Long, Integer> loadedText = new TreeMap<>(); // Raw words, predecoded once parsing is done
         dataMemory.clear(); // Clear previous memory state
         long basePC = -1; // Track the first instruction address
 
@@ -1394,14 +1980,11 @@ public class PipelinedCPU {
                         basePC = address; // Set starting PC to the address of the first instruction
                     }
                     long instruction = value; // The parsed value is the instruction word
-                    textSegment.put(formatHex(address), formatHex(instruction));
+                    loadedText.put(address, (int) instruction);
 
                     // Also load instruction bytes into dataMemory (little-endian)
                     // This supports inspection or potential self-modifying code.
-                    for (int i = 0; i < 4; i++) {
-                        long byteVal = (instruction >> (i * 8)) & 0xFF;
-                        dataMemory.put(formatHex(address + i), String.format("%02X", byteVal));
-                    }
+                    dataMemory.storeWord(address, (int) instruction);
                 } else {
                     // Data memory line (no comma expected)
                     // Example: 0x10000000 0x0A
@@ -1414,8 +1997,8 @@ public class PipelinedCPU {
                                         + line + ". Storing truncated byte.");
                         value = value & 0xFF; // Store only the lower byte
                     }
-                    // Store the byte value, formatted as two hex characters.
-                    dataMemory.put(formatHex(address), String.format("%02X", value));
+                    // Store the byte value.
+                    dataMemory.storeByte(address, (int) value);
                 }
             }
         } catch (IOException e) {
@@ -1426,117 +2009,293 @@ public class PipelinedCPU {
             e.printStackTrace();
         }
 
+        predecodeTextSegment(loadedText);
+
         if (basePC != -1) {
             this.pc = basePC; // Set PC to the start of the text segment
-            System.out.println("Set initial PC to: " + formatHex(this.pc));
+            console.println("Set initial PC to: " + formatHex(this.pc));
         } else {
-            System.out.println("No instructions found in text segment. PC remains at 0x0.");
+            console.println("No instructions found in text segment. PC remains at 0x0.");
         }
         // Initialize instruction count for Knob 5 tracking (assuming this is part of a
         // larger class)
         this.instructionCount = 0; // Reset for new program run
-        System.out.println("Parsing done. Loaded " + textSegment.size() + " instructions.");
+        console.println("Parsing done. Loaded " + loadedText.size() + " instructions.");
+    }
+
+    // Decode every loaded word once into a dense array indexed by (pc - textBase) >> 2
+    private void predecodeTextSegment(TreeMap<Long, Integer> loadedText) {
+        if (loadedText.isEmpty()) {
+            textBase = 0;
+            textSegment = new DecodedInstruction[0];
+            return;
+        }
+        textBase = loadedText.firstKey();
+        textSegment = new DecodedInstruction[(int) ((loadedText.lastKey() - textBase) >> 2) + 1];
+        Arrays.fill(textSegment, DecodedInstruction.NOP); // Gaps in the text segment read as NOPs
+        for (Map.Entry<Long, Integer> entry : loadedText.entrySet()) {
+            DecodedInstruction decoded = DecodedInstruction.decode(entry.getValue());
+            if (!decoded.valid) {
+                System.err.println("Error: Unsupported opcode " + Integer.toBinaryString(decoded.opcode) + " at PC "
+                        + formatHex(entry.getKey()));
+            }
+            textSegment[(int) ((entry.getKey() - textBase) >> 2)] = decoded;
+        }
     }
 
     // --- Printing Methods ---
     private void printRegisterFileState() {
-        System.out.println("Register File State:");
-        TreeMap<Integer, String> sortedRegs = new TreeMap<>();
+        console.print(formatRegisterFileState());
+    }
+
+    private String formatRegisterFileState() {
+        StringBuilder sb = new StringBuilder("Register File State:\n");
         for (int i = 0; i < 32; i++) {
-            sortedRegs.put(i, registerFile.get("x" + i));
+            sb.append(String.format("  x%d: 0x%08X ", i, registerFile.read(i)));
+            if ((i + 1) % 4 == 0)
+                sb.append('\n'); // Newline every 4 registers
         }
-        for (Map.Entry<Integer, String> entry : sortedRegs.entrySet()) {
-            System.out.printf("  x%d: %s ", entry.getKey(), entry.getValue());
-            if ((entry.getKey() + 1) % 4 == 0)
-                System.out.println(); // Newline every 4 registers
-        }
-        if (sortedRegs.size() % 4 != 0)
-            System.out.println(); // Ensure final newline
+        return sb.toString();
     }
 
     private void printDataMemoryState() {
-        System.out.println("\nData Memory State (Non-zero Bytes):");
-        TreeMap<Long, String> sortedMemory = new TreeMap<>();
-        for (Map.Entry<String, String> entry : dataMemory.entrySet()) {
-            try {
-                long addr = parseHex(entry.getKey());
-                // Optionally filter out initial instruction bytes if desired
-                // if (!textSegment.containsKey(entry.getKey())) { // Basic check
-                sortedMemory.put(addr, entry.getValue());
-                // }
-            } catch (NumberFormatException e) {
-                /* Ignore malformed keys */ }
-        }
-        if (sortedMemory.isEmpty()) {
-            System.out.println("  <Empty or All Zeroes>");
-        } else {
-            // Print in groups (e.g., words) for readability
-            long currentWordAddr = -1;
-            StringBuilder wordLine = new StringBuilder();
-            int bytesInLine = 0;
-
-            for (Map.Entry<Long, String> entry : sortedMemory.entrySet()) {
-                long addr = entry.getKey();
-                String byteVal = entry.getValue();
-                long wordAddr = addr & ~3L; // Get the word-aligned address
-
-                if (wordAddr != currentWordAddr) {
-                    // Print previous line if it exists
-                    if (bytesInLine > 0) {
-                        System.out.printf("  0x%08X: %s\n", currentWordAddr, wordLine.toString());
-                    }
-                    // Start new line
-                    currentWordAddr = wordAddr;
-                    wordLine = new StringBuilder();
-                    // Add padding for unaligned start
-                    for (long padAddr = wordAddr; padAddr < addr; padAddr++) {
-                        wordLine.append("   "); // 3 spaces per missing byte
-                        bytesInLine++;
-                    }
-                    wordLine.append(byteVal).append(" ");
-                    bytesInLine++;
-                } else {
-                    // Pad missing bytes within the word
-                    for (long padAddr = (addr - bytesInLine); padAddr < addr; padAddr++) {
-                        wordLine.append("   ");
-                    }
-                    wordLine.append(byteVal).append(" ");
-                    bytesInLine++;
-                }
-                if (bytesInLine == 4) {
-                    System.out.printf("  0x%08X: %s\n", currentWordAddr, wordLine.toString());
-                    wordLine = new StringBuilder();
-                    bytesInLine = 0;
-                    currentWordAddr = -1; // Reset for next word boundary
-                }
-            }
-            // Print any remaining partial line
-            if (bytesInLine > 0) {
-                System.out.printf("  0x%08X: %s\n", currentWordAddr, wordLine.toString());
+        console.println("\nData Memory State (Non-zero Bytes):");
+        // Print word by word, skipping words that are entirely zero
+        long[] printed = {0};
+        dataMemory.forEachPage((base, page) -> {
+            for (int offset = 0; offset < page.length; offset += 4) {
+                if ((page[offset] | page[offset + 1] | page[offset + 2] | page[offset + 3]) == 0)
+                    continue;
+                console.printf("  0x%08X: %02X %02X %02X %02X\n", base + offset,
+                        page[offset], page[offset + 1], page[offset + 2], page[offset + 3]);
+                printed[0]++;
             }
+        });
+        if (printed[0] == 0) {
+            console.println("  <Empty or All Zeroes>");
         }
     }
 
     private void printFinalState() {
-        System.out.println("\n--- Simulation Complete ---");
-        System.out.println("Total Clock Cycles: " + clockCycle);
-        // Calculate CPI if instructions were tracked properly
-        // long executedInstructions = // Need a counter incremented in WB stage maybe?
-        // System.out.printf("Executed Instructions: %d\n", executedInstructions);
-        // System.out.printf("CPI: %.2f\n", (double) clockCycle / executedInstructions);
-        if (pipeliningEnabled && printBPUEnabled) {
-            System.out.println(bpu.toString()); // Final BPU stats
+        console.println("\n--- Simulation Complete ---");
+        if (functionalMode || sampledMode) {
+            console.println("Instructions Executed: " + instructionsRetired);
+        } else {
+            console.println("Total Clock Cycles: " + clockCycle);
+        }
+        if (!functionalMode && !sampledMode) {
+            perf.print(console, clockCycle, instructionsRetired, pipeliningEnabled,
+                    bpu.getDirectionPredictor().describe(), bpu.getTargetBuffer().summary());
+            if (pipeliningEnabled && units.isMultiCycle()) {
+                units.print(console, clockCycle);
+            }
+            if (pipeliningEnabled && caches.isEnabled()) {
+                caches.print(console);
+            }
+            if (statsFile != null) {
+                try {
+                    perf.writeJson(statsFile, clockCycle, instructionsRetired);
+                } catch (IOException e) {
+                    System.err.println("Error writing stats file: " + statsFile);
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (pipeliningEnabled && printBPUEnabled && !functionalMode && !sampledMode) {
+            console.println(bpu.toString()); // Final BPU stats
         }
         printRegisterFileState();
         printDataMemoryState();
     }
 
     // --- Main Method ---
-    public static void main(String[] args) {
+    // --- Command-Line Options (--name=value, after the positional arguments) ---
+    private void applyOptions(Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String value = option.getValue();
+            switch (option.getKey()) {
+                case "trace": // Comma-separated categories: stage,hazard,bpu,memory,regs (or all/none)
+                    traceCategories = Tracer.parseCategories(value);
+                    break;
+                case "trace-level": // 0 = off, 1 = events, 2 = per-cycle detail
+                    traceLevel = Integer.parseInt(value);
+                    break;
+                case "trace-file":
+                    traceFile = value;
+                    break;
+                case "trace-binary": // Pipelined mode only; render with TraceDecoder
+                    binaryTraceFile = value;
+                    break;
+                case "block-cache":
+                    blockCacheEnabled = Boolean.parseBoolean(value);
+                    break;
+                case "jit-threshold":
+                    translationThreshold = Integer.parseInt(value);
+                    break;
+                case "mode": // functional, sampled, pipeline or single (the latter two also follow the positional knob)
+                    functionalMode = value.equals("functional");
+                    sampledMode = value.equals("sampled");
+                    if (value.equals("pipeline") || value.equals("single")) {
+                        pipeliningEnabled = value.equals("pipeline");
+                    } else if (!functionalMode && !sampledMode) {
+                        System.err.println("Warning: Unknown mode " + value);
+                    }
+                    break;
+                case "sample-period":
+                    samplePeriod = Long.parseLong(value);
+                    break;
+                case "sample-warmup":
+                    sampleWarmup = Long.parseLong(value);
+                    break;
+                case "sample-detail-warmup":
+                    sampleDetailWarmup = Long.parseLong(value);
+                    break;
+                case "sample-window":
+                    sampleWindow = Long.parseLong(value);
+                    break;
+                case "checkpoint-at": // Not supported in sampled mode
+                    checkpointAt = Long.parseLong(value);
+                    break;
+                case "max-cycles": // Instructions in functional and sampled mode
+                    maxCycles = Long.parseLong(value);
+                    break;
+                case "checkpoint-file":
+                    checkpointFile = value;
+                    break;
+                case "restore":
+                    restoreFile = value;
+                    break;
+                case "stats-file":
+                    statsFile = value;
+                    break;
+                case "bpu":
+                    predictorKind = value;
+                    break;
+                case "bpu-entries":
+                    predictorEntries = Integer.parseInt(value);
+                    break;
+                case "bpu-history":
+                    predictorHistory = Integer.parseInt(value);
+                    break;
+                case "ras-depth":
+                    rasDepth = Integer.parseInt(value);
+                    break;
+                case "indirect-entries":
+                    indirectEntries = Integer.parseInt(value);
+                    break;
+                case "btb-entries":
+                    btbEntries = Integer.parseInt(value);
+                    break;
+                case "btb-ways":
+                    btbWays = Integer.parseInt(value);
+                    break;
+                case "btb-tag-bits":
+                    btbTagBits = Integer.parseInt(value);
+                    break;
+                case "btb-replacement":
+                    btbReplacement = value;
+                    break;
+                case "mul-latency": // Pipelined mode only; 1 = single-cycle ALU
+                case "div-latency":
+                    int latency = Integer.parseInt(value);
+                    if (latency < 1) {
+                        System.err.println("Warning: --" + option.getKey() + " must be at least 1");
+                        break;
+                    }
+                    (option.getKey().startsWith("mul") ? units.multiplier : units.divider).latency = latency;
+                    break;
+                case "mul-pipelined":
+                    units.multiplier.pipelined = Boolean.parseBoolean(value);
+                    break;
+                case "div-pipelined":
+                    units.divider.pipelined = Boolean.parseBoolean(value);
+                    break;
+                case "branch-resolve":
+                    if (!value.equals("ex") && !value.equals("id")) {
+                        System.err.println("Warning: --branch-resolve must be ex or id; keeping "
+                                + (earlyBranchResolution ? "id" : "ex"));
+                        break;
+                    }
+                    earlyBranchResolution = value.equals("id");
+                    break;
+                default: // Cache geometry and miss latencies
+                    if (!caches.setOption(option.getKey(), value)) {
+                        System.err.println("Warning: Unknown option --" + option.getKey());
+                    }
+                    break;
+            }
+        }
+        try {
+            bpu.setDirectionPredictor(DirectionPredictor.create(predictorKind, predictorEntries, predictorHistory));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + e.getMessage() + "; keeping the default predictor");
+        }
+        try {
+            bpu.setReturnStack(rasDepth == 0 ? null : new ReturnAddressStack(rasDepth));
+            bpu.setIndirectPredictor(indirectEntries == 0 ? null : new IndirectTargetPredictor(indirectEntries));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + e.getMessage() + "; keeping the default jump predictors");
+        }
+        try {
+            bpu.setTargetBuffer(new BranchTargetBuffer(btbEntries, btbWays, btbTagBits, btbReplacement));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + e.getMessage() + "; keeping the default BTB");
+        }
+        try {
+            caches.build();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + e.getMessage() + "; running without caches");
+        }
+    }
+
+    // A CPU with the command-line knob defaults, then any --options on top (also used by BatchRunner)
+    static PipelinedCPU configure(boolean pipeliningEnabled, boolean dataForwardingEnabled,
+            Map<String, String> options) {
+        PipelinedCPU cpu = new PipelinedCPU();
+        // --- Set Knobs from arguments ---
+        cpu.pipeliningEnabled = pipeliningEnabled;
+        cpu.dataForwardingEnabled = dataForwardingEnabled;
+        cpu.traceInstructionNum = -1;
+        cpu.printRegistersEnabled = false;
+        cpu.printPipelineRegsEnabled = true;
+        // cpu.traceInstructionNum = 5;
+        cpu.printBPUEnabled = true;
+        cpu.applyOptions(options); // --trace etc. override the knob defaults above
+        return cpu;
+    }
+
+    // Load the program, or the --restore checkpoint when one was given
+    void load(String filePath) throws IOException {
+        if (restoreFile != null) {
+            restoreCheckpoint(restoreFile); // Replaces the program, memory and pipeline state
+        } else {
+            parseMachineCodeFromFile(filePath);
+        }
+    }
+
+    // Split arguments into positional values and --name=value options
+    static List<String> parseArguments(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                options.put(name, eq < 0 ? "true" : arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+
+    public static void main(String[] rawArgs) {
         String filePath = "output.mc"; // Default machine code file name
         boolean pipeliningEnabled = true; // Default: enabled
         boolean dataForwardingEnabled = true; // Default: enabled
 
+        Map<String, String> options = new LinkedHashMap<>();
+        String[] args = parseArguments(rawArgs, options).toArray(new String[0]);
+
         // Parse command-line arguments
         if (args.length > 0) {
             filePath = args[0];
@@ -1555,19 +2314,16 @@ public class PipelinedCPU {
             System.out.println("Data forwarding enabled: " + dataForwardingEnabled);
         }
 
-        PipelinedCPU cpu = new PipelinedCPU();
         System.out.println(dataForwardingEnabled + " "+ pipeliningEnabled);
-        // --- Set Knobs from arguments ---
-        cpu.pipeliningEnabled = pipeliningEnabled;
-        cpu.dataForwardingEnabled = dataForwardingEnabled;
-        cpu.traceInstructionNum = -1;
-        cpu.printRegistersEnabled = false;
-        cpu.printPipelineRegsEnabled = true;
-        // cpu.traceInstructionNum = 5;
-        cpu.printBPUEnabled = true;
+        PipelinedCPU cpu = configure(pipeliningEnabled, dataForwardingEnabled, options);
 
         // --- Parse and Run ---
-        cpu.parseMachineCodeFromFile(filePath);
+        try {
+            cpu.load(filePath);
+        } catch (IOException e) {
+            System.err.println("Error reading checkpoint: " + e);
+            System.exit(1);
+        }
         cpu.run(); // Starts simulation
     }
 }
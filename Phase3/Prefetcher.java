@@ -0,0 +1,325 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Hardware data prefetchers next to the L1D (--prefetch, --prefetch-degree, --prefetch-entries).
+// MemoryHierarchy shows each one every demand load/store MEM makes and issues the addresses it
+// asks for. Issuing never stalls: a prefetched line is in flight until its fill latency has
+// passed, and a demand access that gets there first waits only for the rest (a late prefetch).
+//
+//   nextline - the next 'degree' lines after every miss
+//   stride   - PC-indexed table of last address and stride; once a load repeats its stride,
+//              fetch 'degree' strides ahead
+//   stream   - 'entries' stream buffers of 'degree' lines each. A miss no buffer holds starts a
+//              stream at the following lines; a miss a buffer does hold is served from it (no L1D
+//              pollution) and tops the buffer up.
+abstract class Prefetcher {
+
+    static final String[] KINDS = {"nextline", "stride", "stream"};
+
+    final String kind;
+    final int degree;
+    final int entries; // Stride table entries or stream buffers (0 for nextline)
+    final int lineSize;
+
+    // Addresses train() wants fetched, requests[0 .. requestCount)
+    final long[] requests;
+    int requestCount;
+
+    // Statistics
+    long issued; // Prefetches sent to the next level
+    long useful; // Prefetched lines a demand access used
+    long late; // ... of those, still in flight when it did
+    long lateCycles; // Cycles those accesses waited anyway
+    long unused; // Prefetched lines evicted or dropped before any use
+    long uncovered; // Demand misses no prefetch covered
+
+    Prefetcher(String kind, int degree, int entries, int lineSize) {
+        if (degree < 1 || degree > 16) {
+            throw new IllegalArgumentException("Prefetch degree must be 1 to 16: " + degree);
+        }
+        this.kind = kind;
+        this.degree = degree;
+        this.entries = entries;
+        this.lineSize = lineSize;
+        this.requests = new long[degree];
+    }
+
+    // 'degree' and 'entries' <= 0 pick the prefetcher's defaults
+    static Prefetcher create(String kind, int degree, int entries, int lineSize) {
+        switch (kind) {
+            case "nextline":
+                return new NextLine(degree > 0 ? degree : 1, lineSize);
+            case "stride":
+                return new Stride(degree > 0 ? degree : 2, entries > 0 ? entries : 64, lineSize);
+            case "stream":
+                return new Stream(degree > 0 ? degree : 4, entries > 0 ? entries : 4, lineSize);
+            default:
+                throw new IllegalArgumentException("Unknown prefetcher " + kind);
+        }
+    }
+
+    // A demand access by the instruction at 'pc', after the L1D lookup ('miss' = not in the L1D)
+    abstract void train(long pc, long address, boolean miss);
+
+    final void request(long address) {
+        if (requestCount < requests.length) {
+            requests[requestCount++] = address;
+        }
+    }
+
+    // --- Stream buffers (the other prefetchers fill the L1D itself) ---
+
+    boolean buffers() {
+        return false;
+    }
+
+    // Arrival cycle of 'line' if a buffer holds it (it moves to the L1D), else -1
+    long takeBuffered(long line) {
+        return -1;
+    }
+
+    // An issued request will be in the buffer from 'readyCycle'
+    void buffered(long line, long readyCycle) {
+    }
+
+    // --- Reports ---
+
+    String describe() {
+        String size = entries == 0 ? "" : String.format(", %d %s", entries, buffers() ? "buffers" : "entries");
+        return String.format("%s, degree %d%s", kind, degree, size);
+    }
+
+    String summary() {
+        return String.format(Locale.ROOT, "Prefetch (%s): issued %d, useful %d, accuracy %s, coverage %s,"
+                        + " timely %s (late %d, %d cycles waited), unused %d", describe(), issued, useful,
+                percent(useful, issued), percent(useful, useful + uncovered), percent(useful - late, useful), late,
+                lateCycles, unused);
+    }
+
+    private static String percent(long count, long total) {
+        return total == 0 ? "n/a" : String.format(Locale.ROOT, "%.2f%%", 100.0 * count / total);
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 48;
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putLong(issued).putLong(useful).putLong(late).putLong(lateCycles).putLong(unused).putLong(uncovered);
+    }
+
+    void restoreState(ByteBuffer in) {
+        issued = in.getLong();
+        useful = in.getLong();
+        late = in.getLong();
+        lateCycles = in.getLong();
+        unused = in.getLong();
+        uncovered = in.getLong();
+    }
+
+    // --- Implementations ---
+
+    static final class NextLine extends Prefetcher {
+        NextLine(int degree, int lineSize) {
+            super("nextline", degree, 0, lineSize);
+        }
+
+        @Override
+        void train(long pc, long address, boolean miss) {
+            if (miss) {
+                for (int k = 1; k <= degree; k++) {
+                    request(address + (long) k * lineSize);
+                }
+            }
+        }
+    }
+
+    static final class Stride extends Prefetcher {
+        private final int mask;
+        private final long[] tags; // PC, -1 = empty
+        private final long[] lastAddress;
+        private final long[] strides;
+        private final byte[] confidence; // 0-3: times in a row the stride repeated
+
+        Stride(int degree, int entries, int lineSize) {
+            super("stride", degree, entries, lineSize);
+            if (entries < 1 || Integer.bitCount(entries) != 1) {
+                throw new IllegalArgumentException("Stride table size must be a power of two: " + entries);
+            }
+            this.mask = entries - 1;
+            this.tags = new long[entries];
+            this.lastAddress = new long[entries];
+            this.strides = new long[entries];
+            this.confidence = new byte[entries];
+            Arrays.fill(tags, -1);
+        }
+
+        @Override
+        void train(long pc, long address, boolean miss) {
+            int i = (int) (pc >>> 2) & mask;
+            if (tags[i] != pc) {
+                tags[i] = pc;
+                lastAddress[i] = address;
+                strides[i] = 0;
+                confidence[i] = 0;
+                return;
+            }
+            long stride = address - lastAddress[i];
+            lastAddress[i] = address;
+            if (stride == strides[i] && stride != 0) {
+                confidence[i] = DirectionPredictor.saturate(confidence[i], true, 0, 3);
+            } else {
+                strides[i] = stride;
+                confidence[i] = 0;
+                return;
+            }
+            for (int k = 1; k <= degree; k++) {
+                request(address + k * stride);
+            }
+        }
+
+        @Override
+        int stateSize() {
+            return super.stateSize() + entries * 25;
+        }
+
+        @Override
+        void saveState(ByteBuffer out) {
+            super.saveState(out);
+            for (int i = 0; i < entries; i++) {
+                out.putLong(tags[i]).putLong(lastAddress[i]).putLong(strides[i]).put(confidence[i]);
+            }
+        }
+
+        @Override
+        void restoreState(ByteBuffer in) {
+            super.restoreState(in);
+            for (int i = 0; i < entries; i++) {
+                tags[i] = in.getLong();
+                lastAddress[i] = in.getLong();
+                strides[i] = in.getLong();
+                confidence[i] = in.get();
+            }
+        }
+    }
+
+    static final class Stream extends Prefetcher {
+        // Buffer b holds lines[b * degree ..] in stream order, 'counts[b]' of them valid
+        private final long[] lines;
+        private final long[] ready;
+        private final int[] counts;
+        private final long[] nextLine; // Next line each stream will fetch
+        private final long[] lastUse; // LRU stamps for reallocating buffers
+        private long clock;
+        private int hitBuffer = -1; // Buffer the last takeBuffered() found its line in
+        private int filling = -1; // Buffer the current requests go to
+
+        Stream(int degree, int entries, int lineSize) {
+            super("stream", degree, entries, lineSize);
+            if (entries < 1 || entries > 64) {
+                throw new IllegalArgumentException("Stream buffer count must be 1 to 64: " + entries);
+            }
+            this.lines = new long[entries * degree];
+            this.ready = new long[entries * degree];
+            this.counts = new int[entries];
+            this.nextLine = new long[entries];
+            this.lastUse = new long[entries];
+        }
+
+        @Override
+        boolean buffers() {
+            return true;
+        }
+
+        @Override
+        long takeBuffered(long line) {
+            for (int b = 0; b < entries; b++) {
+                int base = b * degree;
+                for (int k = 0; k < counts[b]; k++) {
+                    if (lines[base + k] == line) {
+                        long arrival = ready[base + k];
+                        unused += k; // Skipped-over lines are dropped
+                        int left = counts[b] - k - 1;
+                        System.arraycopy(lines, base + k + 1, lines, base, left);
+                        System.arraycopy(ready, base + k + 1, ready, base, left);
+                        counts[b] = left;
+                        lastUse[b] = ++clock;
+                        hitBuffer = b;
+                        return arrival;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void train(long pc, long address, boolean miss) {
+            int b = hitBuffer;
+            hitBuffer = -1;
+            filling = -1;
+            if (!miss) {
+                return;
+            }
+            if (b < 0) {
+                // Restart the least recently used buffer just past the miss
+                b = 0;
+                for (int i = 1; i < entries; i++) {
+                    if (lastUse[i] < lastUse[b]) {
+                        b = i;
+                    }
+                }
+                unused += counts[b];
+                counts[b] = 0;
+                nextLine[b] = address / lineSize + 1;
+                lastUse[b] = ++clock;
+            }
+            filling = b;
+            for (int k = counts[b]; k < degree; k++) {
+                request(nextLine[b]++ * lineSize);
+            }
+        }
+
+        @Override
+        void buffered(long line, long readyCycle) {
+            int b = filling;
+            lines[b * degree + counts[b]] = line;
+            ready[b * degree + counts[b]] = readyCycle;
+            counts[b]++;
+        }
+
+        @Override
+        int stateSize() {
+            return super.stateSize() + 8 + entries * (20 + degree * 16);
+        }
+
+        @Override
+        void saveState(ByteBuffer out) {
+            super.saveState(out);
+            out.putLong(clock);
+            for (int b = 0; b < entries; b++) {
+                out.putInt(counts[b]).putLong(nextLine[b]).putLong(lastUse[b]);
+            }
+            for (int i = 0; i < lines.length; i++) {
+                out.putLong(lines[i]).putLong(ready[i]);
+            }
+        }
+
+        @Override
+        void restoreState(ByteBuffer in) {
+            super.restoreState(in);
+            clock = in.getLong();
+            for (int b = 0; b < entries; b++) {
+                counts[b] = in.getInt();
+                nextLine[b] = in.getLong();
+                lastUse[b] = in.getLong();
+            }
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = in.getLong();
+                ready[i] = in.getLong();
+            }
+        }
+    }
+}
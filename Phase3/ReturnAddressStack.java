@@ -0,0 +1,210 @@
+import java.nio.ByteBuffer;
+
+// Return address stack (--ras-depth). Fetch pushes PC+4 for calls and pops the predicted target
+// for returns, following the RISC-V link-register hints (x1/x5):
+//   JAL/JALR with rd = link                          - push
+//   JALR with rs1 = link, rd not a link              - pop
+//   JALR with rs1 = link, rd = the other link        - pop, then push (coroutine swap)
+// The stack is circular: an overflow overwrites the oldest entry, an underflow predicts nothing.
+// When EX redirects, only the instruction in IF/ID is on the wrong path; a store that rewrites the
+// text squashes ID/EX too. So the state before each of the newest two push/pops is kept, and
+// squashes come youngest first. The records cover the statistics as well, so those count only
+// the pushes and pops of instructions that stay.
+final class ReturnAddressStack {
+
+    static final int DEFAULT_DEPTH = 8;
+
+    final int depth;
+    private final long[] stack;
+    private int top = -1; // Newest entry
+    private int count; // Valid entries, up to 'depth'
+
+    // State before the newest two fetches' push/pops, newest first
+    private static final int UNDO_DEPTH = 2;
+    private final Undo[] undo = new Undo[UNDO_DEPTH];
+
+    // Statistics
+    long pushes;
+    long pops;
+    long overflows; // Pushes that dropped the oldest entry
+    long underflows; // Returns fetched with the stack empty
+
+    ReturnAddressStack(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Return address stack depth must be >= 1: " + depth);
+        }
+        this.depth = depth;
+        this.stack = new long[depth];
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            undo[i] = new Undo(depth);
+        }
+    }
+
+    private static final class Undo {
+        long pc = -1;
+        final long[] stack;
+        int top;
+        int count;
+        long pushes, pops, overflows, underflows;
+
+        Undo(int depth) {
+            stack = new long[depth];
+        }
+    }
+
+    static boolean isLink(int register) {
+        return register == 1 || register == 5;
+    }
+
+    static boolean isCall(AluOp op, int rd) {
+        return (op == AluOp.JAL || op == AluOp.JALR) && isLink(rd);
+    }
+
+    static boolean isReturn(AluOp op, int rd, int rs1) {
+        return op == AluOp.JALR && isLink(rs1) && !(isLink(rd) && rd == rs1);
+    }
+
+    // Apply a fetched instruction's push/pop; returns the predicted return address, or -1
+    long onFetch(long pc, DecodedInstruction instruction) {
+        boolean pop = isReturn(instruction.aluOp, instruction.rd, instruction.rs1);
+        boolean push = isCall(instruction.aluOp, instruction.rd);
+        if (!pop && !push) {
+            return -1;
+        }
+        Undo record = undo[UNDO_DEPTH - 1]; // Reuse the oldest
+        System.arraycopy(undo, 0, undo, 1, UNDO_DEPTH - 1);
+        undo[0] = record;
+        record.pc = pc;
+        System.arraycopy(stack, 0, record.stack, 0, depth);
+        record.top = top;
+        record.count = count;
+        record.pushes = pushes;
+        record.pops = pops;
+        record.overflows = overflows;
+        record.underflows = underflows;
+        return apply(pc, pop, push, true);
+    }
+
+    // Sampled mode's functional warming: the same push/pop for an executed jump, so each detailed
+    // window starts with the calls that are really open. Not counted, and never squashed.
+    void onWarm(long pc, DecodedInstruction instruction) {
+        boolean pop = isReturn(instruction.aluOp, instruction.rd, instruction.rs1);
+        boolean push = isCall(instruction.aluOp, instruction.rd);
+        if (pop || push) {
+            for (Undo record : undo) {
+                record.pc = -1;
+            }
+            apply(pc, pop, push, false);
+        }
+    }
+
+    private long apply(long pc, boolean pop, boolean push, boolean counted) {
+        long target = -1;
+        if (pop) {
+            if (count == 0) {
+                if (counted) {
+                    underflows++;
+                }
+            } else {
+                target = stack[top];
+                top = (top - 1 + depth) % depth;
+                count--;
+                if (counted) {
+                    pops++;
+                }
+            }
+        }
+        if (push) {
+            top = (top + 1) % depth;
+            stack[top] = pc + 4;
+            if (count == depth) {
+                if (counted) {
+                    overflows++;
+                }
+            } else {
+                count++;
+            }
+            if (counted) {
+                pushes++;
+            }
+        }
+        return target;
+    }
+
+    // The wrong-path instruction at 'pc' was squashed: roll back its push/pop (squash younger
+    // instructions first)
+    void squash(long pc) {
+        Undo record = undo[0];
+        if (pc != record.pc) {
+            return;
+        }
+        System.arraycopy(record.stack, 0, stack, 0, depth);
+        top = record.top;
+        count = record.count;
+        pushes = record.pushes;
+        pops = record.pops;
+        overflows = record.overflows;
+        underflows = record.underflows;
+        record.pc = -1;
+        System.arraycopy(undo, 1, undo, 0, UNDO_DEPTH - 1); // The older record is now the newest
+        undo[UNDO_DEPTH - 1] = record;
+    }
+
+    // --- Checkpoint State ---
+
+    int stateSize() {
+        return 40 + depth * 8 + UNDO_DEPTH * (48 + depth * 8);
+    }
+
+    void saveState(ByteBuffer out) {
+        out.putInt(top).putInt(count);
+        out.putLong(pushes).putLong(pops).putLong(overflows).putLong(underflows);
+        for (int i = 0; i < depth; i++) {
+            out.putLong(stack[i]);
+        }
+        for (Undo record : undo) {
+            out.putLong(record.pc).putInt(record.top).putInt(record.count);
+            out.putLong(record.pushes).putLong(record.pops).putLong(record.overflows).putLong(record.underflows);
+            for (int i = 0; i < depth; i++) {
+                out.putLong(record.stack[i]);
+            }
+        }
+    }
+
+    void restoreState(ByteBuffer in) {
+        top = in.getInt();
+        count = in.getInt();
+        pushes = in.getLong();
+        pops = in.getLong();
+        overflows = in.getLong();
+        underflows = in.getLong();
+        for (int i = 0; i < depth; i++) {
+            stack[i] = in.getLong();
+        }
+        for (Undo record : undo) {
+            record.pc = in.getLong();
+            record.top = in.getInt();
+            record.count = in.getInt();
+            record.pushes = in.getLong();
+            record.pops = in.getLong();
+            record.overflows = in.getLong();
+            record.underflows = in.getLong();
+            for (int i = 0; i < depth; i++) {
+                record.stack[i] = in.getLong();
+            }
+        }
+    }
+
+    // --- Trace Dump: valid entries, newest first ---
+
+    void dump(StringBuilder sb) {
+        sb.append(String.format(" Return Address Stack (depth %d): pushes=%d, pops=%d, overflows=%d,"
+                + " underflows=%d\n", depth, pushes, pops, overflows, underflows));
+        if (count == 0) {
+            sb.append("  <Empty>\n");
+        }
+        for (int i = 0; i < count; i++) {
+            sb.append(String.format("  [%d] 0x%08X\n", i, stack[(top - i + depth) % depth]));
+        }
+    }
+}
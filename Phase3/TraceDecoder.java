@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Offline renderer for --trace-binary files.
+// Prints the same "--- Cycle: N ---" blocks as the text pipeline trace, optionally limited
+// to a cycle range and/or to the pipeline registers holding one instruction address.
+//
+// Usage: java TraceDecoder <trace.bin> [--from=N] [--to=N] [--pc=0xADDR]
+public class TraceDecoder {
+
+    public static void main(String[] rawArgs) {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> args = PipelinedCPU.parseArguments(rawArgs, options);
+        if (args.isEmpty()) {
+            System.err.println("Usage: java TraceDecoder <trace.bin> [--from=N] [--to=N] [--pc=0xADDR]");
+            System.exit(1);
+        }
+
+        long from = Long.parseLong(options.getOrDefault("from", "1"));
+        long to = Long.parseLong(options.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+        String pcOption = options.get("pc");
+        long pc = pcOption == null ? -1 : Long.decode(pcOption);
+
+        try (BinaryTrace.Reader reader = new BinaryTrace.Reader(args.get(0))) {
+            while (reader.next() && reader.cycle <= to) {
+                if (reader.cycle < from)
+                    continue; // Records are delta-encoded, so earlier cycles still have to be read
+                if (pc < 0) {
+                    System.out.println("\n--- Cycle: " + reader.cycle + " ---");
+                    System.out.println(reader.ifId);
+                    System.out.println(reader.idEx);
+                    System.out.println(reader.exMem);
+                    System.out.println(reader.memWb);
+                } else {
+                    printMatching(reader, pc);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading trace: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Print only the pipeline registers currently holding the instruction at 'pc'
+    private static void printMatching(BinaryTrace.Reader reader, long pc) {
+        boolean inIF = reader.ifId.valid && reader.ifId.instructionPC == pc;
+        boolean inID = reader.idEx.valid && reader.idEx.instructionPC == pc;
+        boolean inEX = reader.exMem.valid && reader.exMem.instructionPC == pc;
+        boolean inWB = reader.memWb.valid && reader.memWb.instructionPC == pc;
+        if (!(inIF || inID || inEX || inWB))
+            return;
+        System.out.println("\n--- Cycle: " + reader.cycle + " ---");
+        if (inIF)
+            System.out.println(reader.ifId);
+        if (inID)
+            System.out.println(reader.idEx);
+        if (inEX)
+            System.out.println(reader.exMem);
+        if (inWB)
+            System.out.println(reader.memWb);
+    }
+}
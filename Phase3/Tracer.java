@@ -0,0 +1,262 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+// Simulation trace output.
+// The category/level switches are resolved once into final booleans, so a disabled category
+// costs one field test at the call site. Enabled output is handed to a background writer
+// thread through a bounded ring buffer and written to a buffered channel (a file or stdout).
+final class Tracer implements AutoCloseable {
+
+    enum Category {
+        STAGE, // Cycle headers, pipeline registers, write-back
+        HAZARD, // Load-use / forwarding stalls and flushes
+        BPU, // Predictions, mispredictions and predictor tables
+        MEMORY, // Data memory reads and writes
+        REGS // Register file dumps
+    }
+
+    static final int LEVEL_OFF = 0;
+    static final int LEVEL_EVENTS = 1; // One line per event (accesses, write-backs, stalls, mispredicts)
+    static final int LEVEL_DETAIL = 2; // Also dump pipeline registers, predictor tables and registers each cycle
+
+    // --- Resolved switches, tested at the call sites ---
+    final boolean cycles; // Anything enabled: print cycle headers
+    final boolean stage;
+    final boolean stageDetail;
+    final boolean hazard;
+    final boolean bpu;
+    final boolean bpuDetail;
+    final boolean memory;
+    final boolean regs;
+
+    private final String filePath; // null: the console
+    private final PrintStream console; // Status messages, and the trace when there is no file
+    private AsyncWriter writer; // Started on first use
+
+    Tracer(EnumSet<Category> categories, int level, String filePath, PrintStream console) {
+        boolean on = level > LEVEL_OFF;
+        this.stage = on && categories.contains(Category.STAGE);
+        this.stageDetail = stage && level >= LEVEL_DETAIL;
+        this.hazard = on && categories.contains(Category.HAZARD);
+        this.bpu = on && categories.contains(Category.BPU);
+        this.bpuDetail = bpu && level >= LEVEL_DETAIL;
+        this.memory = on && categories.contains(Category.MEMORY);
+        this.regs = on && categories.contains(Category.REGS) && level >= LEVEL_DETAIL;
+        this.cycles = stage || hazard || bpu || memory || regs;
+        this.filePath = filePath;
+        this.console = console;
+    }
+
+    static Tracer disabled() {
+        return new Tracer(EnumSet.noneOf(Category.class), LEVEL_OFF, null, System.out);
+    }
+
+    // Parse a comma-separated category list ("stage,bpu", "all" or "none")
+    static EnumSet<Category> parseCategories(String list) {
+        EnumSet<Category> categories = EnumSet.noneOf(Category.class);
+        for (String name : list.split(",")) {
+            name = name.trim().toUpperCase(Locale.ROOT);
+            if (name.isEmpty() || name.equals("NONE"))
+                continue;
+            if (name.equals("ALL")) {
+                categories = EnumSet.allOf(Category.class);
+            } else {
+                categories.add(Category.valueOf(name));
+            }
+        }
+        return categories;
+    }
+
+    // --- Emitting ---
+
+    public void println(String line) {
+        if (writer == null) {
+            writer = new AsyncWriter(openChannel(), filePath != null);
+        }
+        writer.put(line);
+    }
+
+    public void printf(String format, Object... args) {
+        if (writer != null && writer.failure != null) {
+            writer.dropped++; // Don't format lines that can't be written
+            return;
+        }
+        println(String.format(format, args));
+    }
+
+    // Multi-line text (e.g. a BPU table dump) without a trailing newline
+    public void print(String text) {
+        println(text.endsWith("\n") ? text.substring(0, text.length() - 1) : text);
+    }
+
+    // Status lines that are always shown; kept in order with any trace output already queued
+    public void message(String line) {
+        if (writer == null) {
+            console.println(line);
+        } else {
+            writer.put(line);
+        }
+    }
+
+    // Drain the queue and stop the writer thread
+    @Override
+    public void close() {
+        if (writer != null) {
+            IOException failure = writer.close();
+            if (failure != null) {
+                System.err.println("Trace output failed: " + failure.getMessage() + " (" + writer.dropped
+                        + " lines dropped)");
+            }
+            writer = null;
+        }
+    }
+
+    private WritableByteChannel openChannel() {
+        try {
+            if (filePath != null) {
+                return FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            console.flush(); // Anything printed before tracing started goes first
+            if (console != System.out) {
+                return Channels.newChannel(console);
+            }
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open trace output " + filePath, e);
+        }
+    }
+
+    // --- Background Writer ---
+    // Single-producer/single-consumer ring of lines. The simulator thread only blocks when the
+    // ring is full; the writer thread encodes lines into a direct buffer and writes it out in blocks.
+    // If the output fails (a closed pipe, a full disk) the writer stops and later lines are dropped,
+    // so the simulation still finishes; close() reports the failure.
+    private static final class AsyncWriter implements Runnable {
+        private static final int RING_SIZE = 1 << 14; // Power of two
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final String[] ring = new String[RING_SIZE];
+        private volatile long head; // Next slot the producer fills
+        private volatile long tail; // Next slot the writer drains
+        private volatile boolean closing;
+        private volatile IOException failure; // Set by the writer thread when the output fails
+        private long dropped; // Lines put after the failure (producer thread only)
+
+        private final WritableByteChannel channel;
+        private final boolean closeChannel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final Thread thread;
+
+        AsyncWriter(WritableByteChannel channel, boolean closeChannel) {
+            this.channel = channel;
+            this.closeChannel = closeChannel;
+            this.thread = new Thread(this, "trace-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void put(String line) {
+            long h = head;
+            while (h - tail >= RING_SIZE) { // Full: wait for the writer to catch up
+                if (failure != null) {
+                    dropped++;
+                    return;
+                }
+                LockSupport.unpark(thread);
+                Thread.onSpinWait();
+            }
+            if (failure != null) {
+                dropped++;
+                return;
+            }
+            ring[(int) (h & (RING_SIZE - 1))] = line;
+            head = h + 1; // Volatile write publishes the slot
+        }
+
+        // Drain the ring and stop the writer; returns the output's failure, or null if it had none
+        IOException close() {
+            closing = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long t = tail;
+                    if (t == head) {
+                        if (closing && t == head)
+                            break;
+                        flush();
+                        LockSupport.parkNanos(50_000);
+                        continue;
+                    }
+                    int slot = (int) (t & (RING_SIZE - 1));
+                    encode(ring[slot]);
+                    ring[slot] = null;
+                    tail = t + 1;
+                }
+                flush();
+                if (closeChannel) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+                if (closeChannel) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Already failed; the first error is the one reported
+                    }
+                }
+            }
+        }
+
+        private void encode(String line) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(line);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isOverflow()) {
+                    flush();
+                } else {
+                    break;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) '\n');
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
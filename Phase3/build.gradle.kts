@@ -0,0 +1,28 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+// The simulator sources sit directly in Phase3/ (unnamed package, also built by hand with javac);
+// the benchmarks live under src/jmh/java and load the assembled test cases as resources.
+sourceSets {
+    main {
+        java.setSrcDirs(listOf("."))
+        java.include("*.java")
+    }
+    named("jmh") {
+        resources.srcDir("../composeApp/src/testCases")
+        resources.include("*.mc")
+    }
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.release.set(17)
+    options.encoding = "UTF-8"
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh.asProvider())
+    profilers.add("gc") // Allocation rate (bytes/op) next to the timings
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,124 @@
+package riscv.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Emits larger synthetic programs in the assembler's .mc format ("0xADDR 0xWORD , text" lines,
+// ending with the 0xDEADBEEF halt word), sized by an iteration count:
+//   alu    - dependent integer and M-extension arithmetic in a counted loop
+//   memory - load/add/store sweeps over a 1 KiB array
+//   branch - an LCG driving a data-dependent (hard to predict) branch
+final class KernelGenerator {
+
+    static final String[] KERNELS = {"alu", "memory", "branch"};
+
+    private static final int DATA_BASE = 0x10000000;
+    private static final int ARRAY_WORDS = 256;
+
+    private final List<String> lines = new ArrayList<>();
+    private int pc;
+
+    private KernelGenerator() {
+    }
+
+    static String generate(String kernel, int iterations) {
+        KernelGenerator g = new KernelGenerator();
+        switch (kernel) {
+            case "alu":
+                g.alu(iterations);
+                break;
+            case "memory":
+                g.memory(iterations);
+                break;
+            case "branch":
+                g.branch(iterations);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown kernel " + kernel);
+        }
+        g.emit(0xDEADBEEF, "ends");
+        return String.join("\n", g.lines) + "\n";
+    }
+
+    // --- Kernels ---
+
+    private void alu(int iterations) {
+        li(1, iterations);
+        li(6, 0x1234);
+        li(8, 3);
+        int loop = pc;
+        emit(r(0x00, 6, 5, 0x0, 5), "add x5 x5 x6");
+        emit(r(0x00, 5, 6, 0x4, 6), "xor x6 x6 x5");
+        emit(r(0x00, 8, 5, 0x1, 7), "sll x7 x5 x8");
+        emit(r(0x20, 6, 7, 0x0, 9), "sub x9 x7 x6");
+        emit(r(0x01, 5, 9, 0x0, 10), "mul x10 x9 x5");
+        emit(r(0x00, 9, 10, 0x3, 11), "sltu x11 x10 x9");
+        emit(r(0x00, 10, 11, 0x6, 12), "or x12 x11 x10");
+        emit(i(0x13, 0x0, 1, 1, -1), "addi x1 x1 -1");
+        emit(b(0x1, 1, 0, loop - pc), "bne x1 x0 loop");
+    }
+
+    private void memory(int iterations) {
+        li(1, Math.max(1, iterations / ARRAY_WORDS));
+        int outer = pc;
+        li(3, DATA_BASE);
+        li(4, ARRAY_WORDS);
+        int inner = pc;
+        emit(i(0x03, 0x2, 3, 5, 0), "lw x5 0(x3)");
+        emit(r(0x00, 5, 6, 0x0, 6), "add x6 x6 x5");
+        emit(i(0x13, 0x0, 5, 5, 1), "addi x5 x5 1");
+        emit(s(0x2, 3, 5, 0), "sw x5 0(x3)");
+        emit(i(0x13, 0x0, 3, 3, 4), "addi x3 x3 4");
+        emit(i(0x13, 0x0, 4, 4, -1), "addi x4 x4 -1");
+        emit(b(0x1, 4, 0, inner - pc), "bne x4 x0 inner");
+        emit(i(0x13, 0x0, 1, 1, -1), "addi x1 x1 -1");
+        emit(b(0x1, 1, 0, outer - pc), "bne x1 x0 outer");
+    }
+
+    private void branch(int iterations) {
+        li(1, iterations);
+        li(5, 12345);
+        li(6, 1103515245);
+        int loop = pc;
+        emit(r(0x01, 6, 5, 0x0, 5), "mul x5 x5 x6");
+        emit(i(0x13, 0x0, 5, 5, 1013), "addi x5 x5 1013");
+        emit(i(0x13, 0x5, 5, 7, 16), "srli x7 x5 16");
+        emit(i(0x13, 0x7, 7, 7, 1), "andi x7 x7 1");
+        emit(b(0x0, 7, 0, 8), "beq x7 x0 skip");
+        emit(i(0x13, 0x0, 9, 9, 1), "addi x9 x9 1");
+        emit(i(0x13, 0x0, 1, 1, -1), "skip: addi x1 x1 -1");
+        emit(b(0x1, 1, 0, loop - pc), "bne x1 x0 loop");
+    }
+
+    // --- Encoding ---
+
+    // Load a 32-bit constant with lui + addi
+    private void li(int rd, int value) {
+        int upper = (value + 0x800) >>> 12;
+        int lower = value - (upper << 12);
+        emit((upper << 12) | (rd << 7) | 0x37, "lui x" + rd + " " + upper);
+        emit(i(0x13, 0x0, rd, rd, lower), "addi x" + rd + " x" + rd + " " + lower);
+    }
+
+    private static int r(int funct7, int rs2, int rs1, int funct3, int rd) {
+        return (funct7 << 25) | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) | (rd << 7) | 0x33;
+    }
+
+    private static int i(int opcode, int funct3, int rs1, int rd, int imm) {
+        return (imm << 20) | (rs1 << 15) | (funct3 << 12) | (rd << 7) | opcode;
+    }
+
+    private static int s(int funct3, int rs1, int rs2, int imm) {
+        return ((imm >> 5) << 25) | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) | ((imm & 0x1F) << 7) | 0x23;
+    }
+
+    private static int b(int funct3, int rs1, int rs2, int offset) {
+        return (((offset >> 12) & 1) << 31) | (((offset >> 5) & 0x3F) << 25) | (rs2 << 20) | (rs1 << 15)
+                | (funct3 << 12) | (((offset >> 1) & 0xF) << 8) | (((offset >> 11) & 1) << 7) | 0x63;
+    }
+
+    private void emit(int word, String text) {
+        lines.add(String.format("0x%x 0x%08x , %s", pc, word, text));
+        pc += 4;
+    }
+}
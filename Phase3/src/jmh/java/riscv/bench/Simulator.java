@@ -0,0 +1,81 @@
+package riscv.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+// Bridge to PipelinedCPU. The simulator lives in the unnamed package, which a named package
+// cannot import (and JMH refuses to generate benchmarks in the unnamed package), so its entry
+// points are bound once as method handles; invokeExact on them costs about a direct call.
+final class Simulator {
+
+    private static final MethodHandle CONFIGURE; // (boolean, boolean, Map) -> cpu
+    private static final MethodHandle SET_CONSOLE;
+    private static final MethodHandle LOAD;
+    private static final MethodHandle RUN;
+    private static final MethodHandle CLOCK_CYCLE;
+    private static final MethodHandle INSTRUCTIONS_RETIRED;
+    private static final MethodHandle IS_TRUNCATED;
+
+    static {
+        try {
+            Class<?> cpu = Class.forName("PipelinedCPU");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(cpu, MethodHandles.lookup());
+            CONFIGURE = lookup.findStatic(cpu, "configure",
+                    MethodType.methodType(cpu, boolean.class, boolean.class, Map.class))
+                    .asType(MethodType.methodType(Object.class, boolean.class, boolean.class, Map.class));
+            SET_CONSOLE = virtual(lookup, cpu, "setConsole", void.class, PrintStream.class);
+            LOAD = virtual(lookup, cpu, "load", void.class, String.class);
+            RUN = virtual(lookup, cpu, "run", void.class);
+            CLOCK_CYCLE = virtual(lookup, cpu, "getClockCycle", long.class);
+            INSTRUCTIONS_RETIRED = virtual(lookup, cpu, "getInstructionsRetired", long.class);
+            IS_TRUNCATED = virtual(lookup, cpu, "isTruncated", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(MethodHandles.Lookup lookup, Class<?> cpu, String name, Class<?> result,
+            Class<?>... parameters) throws ReflectiveOperationException {
+        MethodHandle handle = lookup.findVirtual(cpu, name, MethodType.methodType(result, parameters));
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    private final boolean pipelining;
+    private final boolean forwarding;
+    private final Map<String, String> options;
+    private final PrintStream console = new PrintStream(OutputStream.nullOutputStream());
+
+    long cycles; // Of the last run
+    long instructions;
+
+    Simulator(boolean pipelining, boolean forwarding, Map<String, String> options) {
+        this.pipelining = pipelining;
+        this.forwarding = forwarding;
+        this.options = options;
+    }
+
+    // Load and run 'program' on a fresh CPU; fails if the run stopped at --max-cycles
+    void run(String program) {
+        boolean truncated;
+        try {
+            Object cpu = (Object) CONFIGURE.invokeExact(pipelining, forwarding, options);
+            SET_CONSOLE.invokeExact(cpu, console);
+            LOAD.invokeExact(cpu, program);
+            RUN.invokeExact(cpu);
+            cycles = (long) CLOCK_CYCLE.invokeExact(cpu);
+            instructions = (long) INSTRUCTIONS_RETIRED.invokeExact(cpu);
+            truncated = (boolean) IS_TRUNCATED.invokeExact(cpu);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        if (truncated) {
+            throw new IllegalStateException(program + " was cut off at " + options.get("max-cycles") + " cycles");
+        }
+    }
+}
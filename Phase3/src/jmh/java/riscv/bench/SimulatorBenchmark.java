@@ -0,0 +1,120 @@
+package riscv.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole-program simulation speed.
+//
+// One operation loads a program into a fresh PipelinedCPU and runs it to completion. The
+// auxiliary counters report simulated cycles/s and retired instructions/s (divide 1e9 by them
+// for host ns per cycle / per instruction); run with the gc profiler (on by default in
+// build.gradle.kts) for the allocation rate.
+//
+// The test cases are tiny, so their numbers include the load; the generated kernels run for
+// about a million cycles and give the steady-state rate. Every configuration runs the whole
+// program: --max-cycles replaces the single-cycle model's 5000-cycle safety stop, as it does
+// for BatchRunner jobs, and a run that still hits the limit fails the benchmark.
+//
+//   ./gradlew :Phase3:jmh
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatorBenchmark {
+
+    @Param({"factorial", "bubbleSort", "fibbonacci", "kernel-alu", "kernel-memory", "kernel-branch"})
+    public String program;
+
+    @Param({"pipelined", "no-forwarding", "single-cycle"})
+    public String config;
+
+    @Param("100000")
+    public int kernelIterations;
+
+    // Far beyond any program here; only a runaway simulation reaches it
+    private static final Map<String, String> OPTIONS = Map.of("trace", "none", "max-cycles", "1000000000");
+
+    // Reported by JMH as rates: simulated cycles and retired instructions per second
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Simulated {
+        public long cycles;
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cycles = 0;
+            instructions = 0;
+        }
+    }
+
+    private Path programFile;
+    private Simulator simulator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        programFile = Files.createTempFile("bench-" + program, ".mc");
+        if (program.startsWith("kernel-")) {
+            Files.writeString(programFile, KernelGenerator.generate(program.substring(7), kernelIterations));
+        } else {
+            try (InputStream in = SimulatorBenchmark.class.getResourceAsStream("/" + program + ".mc")) {
+                if (in == null) {
+                    throw new IllegalStateException("Missing test case " + program + ".mc");
+                }
+                Files.write(programFile, in.readAllBytes());
+            }
+        }
+        switch (config) {
+            case "pipelined":
+                simulator = new Simulator(true, true, OPTIONS);
+                break;
+            case "no-forwarding":
+                simulator = new Simulator(true, false, OPTIONS);
+                break;
+            case "single-cycle":
+                simulator = new Simulator(false, true, OPTIONS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown config " + config);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            Files.deleteIfExists(programFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Benchmark
+    public long run(Simulated counters) {
+        simulator.run(programFile.toString());
+        counters.cycles += simulator.cycles;
+        counters.instructions += simulator.instructions;
+        return simulator.cycles;
+    }
+}
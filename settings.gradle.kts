@@ -28,4 +28,5 @@ dependencyResolutionManagement {
     }
 }
 
-include(":composeApp")
\ No newline at end of file
+include(":composeApp")
+include(":Phase3")
\ No newline at end of file